@@ -0,0 +1,629 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class contains command line benchmarks used to measure the application against a local PostgreSQL loaded with
+ * the sample data. Run it with the benchmark name as the first argument, e.g.
+ * {@code java -cp app.jar Benchmark server 127.0.0.1 5050 200 5}.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class Benchmark {
+
+    /**
+     * This runs the benchmark named by the first argument.
+     *
+     * @param args The benchmark name followed by its own arguments.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: Benchmark server <host> <port> <clients> <sessionsPerClient> [titleSearch]");
+            System.out.println("       Benchmark trending [width] [depth] [candidates] [syntheticWatches]");
+            System.out.println("       Benchmark collection [size] [repetitions]");
+            System.out.println("       Benchmark hashing [seconds] [cost]");
+            System.out.println("       Benchmark similar [users]");
+            System.out.println("       Benchmark neighbours [maxThreads]");
+            System.out.println("       Benchmark lsh [users] [bandsxrows ...]");
+            System.out.println("       Benchmark items [users]");
+            return;
+        }
+        String[] rest = Arrays.copyOfRange(args, 1, args.length);
+        switch (args[0]) {
+            case "server" -> serverThroughput(rest);
+            case "trending" -> trendingAccuracy(rest);
+            case "collection" -> collectionWatch(rest);
+            case "hashing" -> passwordHashing(rest);
+            case "similar" -> similarUsers(rest);
+            case "neighbours" -> neighbourScaling(rest);
+            case "lsh" -> minHashRecall(rest);
+            case "items" -> itemRecommendations(rest);
+            default -> System.out.println("Unknown benchmark " + args[0] + ".");
+        }
+    }
+
+    /**
+     * This drives N simulated clients against a running server (started with InitConnection --server). Each client
+     * repeatedly creates a throwaway account, runs a title search, then logs out and disconnects, and the benchmark
+     * reports completed sessions per second and session latency percentiles.
+     *
+     * @param args host, port, number of concurrent clients, sessions per client, and the title to search for.
+     */
+    private static void serverThroughput(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : MovieServer.DEFAULT_PORT;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int sessionsPerClient = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        String titleSearch = args.length > 4 ? args[4] : "the";
+
+        AtomicInteger failures = new AtomicInteger();
+        List<Future<long[]>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                results.add(executor.submit(() -> {
+                    long[] latencies = new long[sessionsPerClient];
+                    for (int i = 0; i < sessionsPerClient; i++) {
+                        long sessionStart = System.nanoTime();
+                        try {
+                            runScriptedSession(host, port, titleSearch);
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                        latencies[i] = System.nanoTime() - sessionStart;
+                    }
+                    return latencies;
+                }));
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long[] all = new long[clients * sessionsPerClient];
+        int n = 0;
+        for (Future<long[]> result : results) {
+            for (long latency : result.get()) {
+                all[n++] = latency;
+            }
+        }
+        Arrays.sort(all);
+        System.out.printf("%d clients x %d sessions in %.2fs: %.1f sessions/s, %d failed%n", clients,
+                sessionsPerClient, seconds, all.length / seconds, failures.get());
+        System.out.printf("session latency p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms%n",
+                percentile(all, 0.50), percentile(all, 0.95), percentile(all, 0.99), all[all.length - 1] / 1e6);
+    }
+
+    /**
+     * This connects one simulated client, sends a scripted conversation, and reads until the server hangs up. Since the
+     * server reads commands line by line, the whole script is sent up front.
+     *
+     * @param host The server host.
+     * @param port The server port.
+     * @param titleSearch The text to run a title search for.
+     */
+    private static void runScriptedSession(String host, int port, String titleSearch) throws IOException {
+        String email = "load-" + UUID.randomUUID() + "@example.com";
+        String[] script = {
+                "Create Account", email, "Load", "Test", "loadtester", "password",
+                "Movies", "Search", "Title", titleSearch, "Exit", "Exit", "Exit",
+                "Logout", "Exit"
+        };
+        try (Socket socket = new Socket(host, port);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), false, StandardCharsets.UTF_8);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                     StandardCharsets.UTF_8))) {
+            for (String line : script) {
+                out.println(line);
+            }
+            out.flush();
+            char[] buffer = new char[8192];
+            while (in.read(buffer) != -1) {
+                // Drain the responses; the server closes the socket once the session exits.
+            }
+        }
+    }
+
+    /**
+     * This measures how closely the trending sketch matches exact counts. First every watch in the database is replayed
+     * into a sketch in the order it started, and every 90 days of the replay the top 20 of each window ending there is
+     * checked against the sums of watch_day. Then a stream of synthetic watches, skewed so a few movies get most of
+     * them the way real trending lists are, is checked against exact counts kept alongside it, which also measures how
+     * fast watches are recorded. Connects with -Ddb.url, -Ddb.user, and -Ddb.password.
+     *
+     * @param args sketch width, sketch depth, candidates kept per day, and the number of synthetic watches.
+     */
+    private static void trendingAccuracy(String[] args) throws Exception {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int candidates = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int synthetic = args.length > 3 ? Integer.parseInt(args[3]) : 5_000_000;
+        int[] windows = {7, 30, 90};
+
+        try (Connection con = DriverManager.getConnection(System.getProperty("db.url"),
+                System.getProperty("db.user", ""), System.getProperty("db.password", ""))) {
+            // Check every window ending on the day before each replayed watch that starts a new 90 day period.
+            TrendingSketch sketch = new TrendingSketch(WatchHistory.MAX_WINDOW, depth, width, candidates);
+            int[][] totals = new int[windows.length][3];
+            LocalDate checkpoint = null;
+            int watches = 0;
+            try (PreparedStatement replayStmt = con.prepareStatement(
+                    "SELECT mid, starttime::date AS day FROM watches ORDER BY starttime");
+                 PreparedStatement exactStmt = con.prepareStatement("SELECT mid, SUM(watch_count) AS watches " +
+                         "FROM watch_day WHERE day > ? AND day <= ? GROUP BY mid")) {
+                ResultSet replay = replayStmt.executeQuery();
+                while (replay.next()) {
+                    LocalDate day = replay.getDate("day").toLocalDate();
+                    if (checkpoint == null) {
+                        checkpoint = day.plusDays(WatchHistory.MAX_WINDOW);
+                    } else if (day.isAfter(checkpoint)) {
+                        for (int w = 0; w < windows.length; w++) {
+                            Map<Integer, Long> exact = new HashMap<>();
+                            exactStmt.setObject(1, checkpoint.minusDays(windows[w]));
+                            exactStmt.setObject(2, checkpoint);
+                            ResultSet exactSet = exactStmt.executeQuery();
+                            while (exactSet.next()) {
+                                exact.put(exactSet.getInt("mid"), exactSet.getLong("watches"));
+                            }
+                            int[] result = compareTop(sketch.top(20, windows[w], checkpoint), exact);
+                            for (int i = 0; i < 3; i++) {
+                                totals[w][i] += result[i];
+                            }
+                        }
+                        checkpoint = day.plusDays(WatchHistory.MAX_WINDOW);
+                    }
+                    // Replayed in the order they started, so each watch's day is the current day of the replay.
+                    sketch.record(replay.getInt("mid"), day, 1, day);
+                    watches++;
+                }
+            }
+            System.out.println("Sample data: " + watches + " watches replayed");
+            for (int w = 0; w < windows.length; w++) {
+                System.out.printf("  %d days: %d of %d in the exact top 20, %d counts overestimated%n", windows[w],
+                        totals[w][0], totals[w][1], totals[w][2]);
+            }
+        }
+
+        // Zipf-like popularity over 10000 movies, with watches spread evenly over the longest window.
+        int movies = 10000;
+        double[] cumulative = new double[movies];
+        double total = 0;
+        for (int m = 0; m < movies; m++) {
+            total += 1.0 / (m + 1);
+            cumulative[m] = total;
+        }
+        Random random = new Random(320);
+        int[] mids = new int[synthetic];
+        int[] dayOffsets = new int[synthetic];
+        for (int i = 0; i < synthetic; i++) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            mids[i] = index < 0 ? -index - 1 : index;
+            dayOffsets[i] = random.nextInt(WatchHistory.MAX_WINDOW);
+        }
+        LocalDate today = LocalDate.now();
+        TrendingSketch sketch = new TrendingSketch(WatchHistory.MAX_WINDOW, depth, width, candidates);
+        long start = System.nanoTime();
+        for (int i = 0; i < synthetic; i++) {
+            sketch.record(mids[i], today.minusDays(dayOffsets[i]), 1, today);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Synthetic: %d watches recorded in %.2fs (%.0f watches/s)%n", synthetic, seconds,
+                synthetic / seconds);
+        for (int window : windows) {
+            Map<Integer, Long> exact = new HashMap<>();
+            for (int i = 0; i < synthetic; i++) {
+                if (dayOffsets[i] < window) {
+                    exact.merge(mids[i], 1L, Long::sum);
+                }
+            }
+            long queryStart = System.nanoTime();
+            List<TrendingSketch.Estimate> top = sketch.top(20, window, today);
+            System.out.printf("  query took %.2fms%n", (System.nanoTime() - queryStart) / 1e6);
+            reportAccuracy(window, top, exact);
+        }
+    }
+
+    /**
+     * This compares the two ways of watching a collection: recording each movie with its own statement, as watching a
+     * collection used to, and recording the whole collection with one statement. Both watch the same movies as an
+     * existing user and are rolled back after each repetition, so the database is left as it was. Because nothing is
+     * committed, the per-row path is not charged for the commit after each of its statements, so the difference shown
+     * is the round trips and statement overhead alone. Connects with -Ddb.url, -Ddb.user, and -Ddb.password.
+     *
+     * @param args the number of movies in the collection and the number of times each path is timed.
+     */
+    private static void collectionWatch(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        try (Connection con = DriverManager.getConnection(System.getProperty("db.url"),
+                System.getProperty("db.user", ""), System.getProperty("db.password", ""))) {
+            con.setAutoCommit(false);
+            int userId;
+            try (PreparedStatement userStmt = con.prepareStatement("SELECT MIN(uid) FROM users")) {
+                ResultSet userSet = userStmt.executeQuery();
+                userSet.next();
+                userId = userSet.getInt(1);
+            }
+            List<Integer> found = new ArrayList<>();
+            List<Integer> lengths = new ArrayList<>();
+            try (PreparedStatement movieStmt = con.prepareStatement(
+                    "SELECT mid, length FROM movie ORDER BY mid LIMIT ?")) {
+                movieStmt.setInt(1, size);
+                ResultSet movieSet = movieStmt.executeQuery();
+                while (movieSet.next()) {
+                    found.add(movieSet.getInt("mid"));
+                    lengths.add(movieSet.getInt("length"));
+                }
+            }
+            int[] mids = found.stream().mapToInt(Integer::intValue).toArray();
+            int[] starts = new int[mids.length];
+            int[] ends = new int[mids.length];
+            int sessionTime = 0;
+            for (int i = 0; i < mids.length; i++) {
+                starts[i] = sessionTime;
+                sessionTime += lengths.get(i);
+                ends[i] = sessionTime;
+            }
+
+            long[] perRow = new long[repetitions];
+            long[] batched = new long[repetitions];
+            // One untimed run of each warms up the JIT and the server's plan caches.
+            for (int r = -1; r < repetitions; r++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < mids.length; i++) {
+                    WatchHistory.record(con, userId, mids[i], starts[i], ends[i]);
+                }
+                long perRowNanos = System.nanoTime() - start;
+                con.rollback();
+                start = System.nanoTime();
+                WatchHistory.recordAll(con, userId, mids, starts, ends);
+                long batchedNanos = System.nanoTime() - start;
+                con.rollback();
+                if (r >= 0) {
+                    perRow[r] = perRowNanos;
+                    batched[r] = batchedNanos;
+                }
+            }
+            Arrays.sort(perRow);
+            Arrays.sort(batched);
+            System.out.printf("Collection of %d movies, %d repetitions%n", mids.length, repetitions);
+            System.out.printf("  per row: p50=%.2fms p95=%.2fms%n", percentile(perRow, 0.5), percentile(perRow, 0.95));
+            System.out.printf("  batched: p50=%.2fms p95=%.2fms%n", percentile(batched, 0.5),
+                    percentile(batched, 0.95));
+        }
+    }
+
+    /**
+     * This measures how many password hashes each algorithm makes per second, first on one thread and then on one
+     * thread per core, along with how fast salts are generated. The per core rate is what picking a cost trades
+     * against: each login and new account costs one hash, so it bounds how many of them a server can take per second.
+     *
+     * @param args the seconds to run each measurement for, and the PBKDF2 cost to measure.
+     */
+    private static void passwordHashing(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        int cost = args.length > 1 ? Integer.parseInt(args[1]) : PasswordHasher.COST;
+        int cores = Runtime.getRuntime().availableProcessors();
+        long nanos = (long) (seconds * 1e9);
+
+        long start = System.nanoTime();
+        long salts = 0;
+        while (System.nanoTime() - start < nanos) {
+            PasswordHasher.newSalt();
+            salts++;
+        }
+        System.out.printf("Salts: %.0f/s on one thread%n", salts / seconds);
+
+        String salt = PasswordHasher.newSalt();
+        for (PasswordHasher.Algorithm algorithm : PasswordHasher.Algorithm.values()) {
+            int algorithmCost = algorithm == PasswordHasher.Algorithm.SHA3_256 ? 0 : cost;
+            double single = hashRate(algorithm, algorithmCost, salt, 1, nanos);
+            double all = hashRate(algorithm, algorithmCost, salt, cores, nanos);
+            System.out.printf("%s cost=%d: %.0f hashes/s on one thread, %.0f hashes/s on %d threads (%.0f per core, " +
+                    "%.2fms each)%n", algorithm.id(), algorithmCost, single, all, cores, all / cores, 1e3 / single);
+        }
+    }
+
+    /**
+     * This is a helper method that hashes the same password on the given number of threads for the given time.
+     *
+     * @return the hashes made per second across every thread.
+     */
+    private static double hashRate(PasswordHasher.Algorithm algorithm, int cost, String salt, int threads, long nanos)
+            throws Exception {
+        // One untimed hash first, so the JIT has compiled the hashing loop before it is measured.
+        PasswordHasher.hash(algorithm, cost, "warm up", salt);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> counts = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                counts.add(pool.submit(() -> {
+                    long hashes = 0;
+                    while (System.nanoTime() - start < nanos) {
+                        PasswordHasher.hash(algorithm, cost, "correct horse battery staple", salt);
+                        hashes++;
+                    }
+                    return hashes;
+                }));
+            }
+            long total = 0;
+            for (Future<Long> count : counts) {
+                total += count.get();
+            }
+            return total / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * This compares finding similar users with the query against finding them from the in-memory profiles, for the
+     * users who have watched the most movies, since theirs are the slowest queries. It reports the latency of each and
+     * how many of the users each finds are found by the other. Connects with -Ddb.url, -Ddb.user, and -Ddb.password.
+     *
+     * @param args the number of users to compare.
+     */
+    private static void similarUsers(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+        try (Connection con = DriverManager.getConnection(System.getProperty("db.url"),
+                System.getProperty("db.user", ""), System.getProperty("db.password", ""))) {
+            long loadStart = System.nanoTime();
+            UserProfiles.load(con);
+            System.out.printf("Profiles loaded in %.0fms%n", (System.nanoTime() - loadStart) / 1e6);
+
+            List<Integer> uids = new ArrayList<>();
+            try (PreparedStatement userStmt = con.prepareStatement(
+                    "SELECT uid FROM watches GROUP BY uid ORDER BY COUNT(DISTINCT mid) DESC, uid LIMIT ?")) {
+                userStmt.setInt(1, users);
+                ResultSet userSet = userStmt.executeQuery();
+                while (userSet.next()) {
+                    uids.add(userSet.getInt("uid"));
+                }
+            }
+
+            long[] queryNanos = new long[uids.size()];
+            long[] profileNanos = new long[uids.size()];
+            long both = 0;
+            long either = 0;
+            // One untimed run of each warms up the JIT and the server's plan cache.
+            MovieRecommendationPage.similarUsersQuery(con, uids.get(0));
+            UserProfiles.similarUsers(uids.get(0));
+            for (int i = 0; i < uids.size(); i++) {
+                long start = System.nanoTime();
+                List<Integer> fromQuery = MovieRecommendationPage.similarUsersQuery(con, uids.get(i));
+                queryNanos[i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                List<Integer> fromProfiles = UserProfiles.similarUsers(uids.get(i));
+                profileNanos[i] = System.nanoTime() - start;
+                for (int uid : fromProfiles) {
+                    if (fromQuery.contains(uid)) {
+                        both++;
+                    }
+                }
+                either += fromQuery.size() + fromProfiles.size();
+            }
+            either -= both;
+            Arrays.sort(queryNanos);
+            Arrays.sort(profileNanos);
+            System.out.printf("%d users%n", uids.size());
+            System.out.printf("  query:    p50=%.2fms p95=%.2fms%n", percentile(queryNanos, 0.5),
+                    percentile(queryNanos, 0.95));
+            System.out.printf("  profiles: p50=%.3fms p95=%.3fms (%.0fx faster at p50)%n",
+                    percentile(profileNanos, 0.5), percentile(profileNanos, 0.95),
+                    percentile(queryNanos, 0.5) / percentile(profileNanos, 0.5));
+            System.out.printf("  %d of %d similar users found by both%n", both, either);
+        }
+    }
+
+    /**
+     * This measures how the neighbours job scales with cores: it finds every user's neighbours with 1 thread, then
+     * doubles the threads up to the given maximum, and reports users per second and the speedup over 1 thread for
+     * each. Nothing is written. Connects with -Ddb.url, -Ddb.user, and -Ddb.password.
+     *
+     * @param args the most threads to try, which defaults to the number of cores.
+     */
+    private static void neighbourScaling(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+        try (Connection con = DriverManager.getConnection(System.getProperty("db.url"),
+                System.getProperty("db.user", ""), System.getProperty("db.password", ""))) {
+            UserProfiles.load(con);
+        }
+        int[] uids = UserProfiles.userIds();
+        // One untimed pass warms up the JIT.
+        Neighbours.compute(uids, maxThreads);
+        double single = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long start = System.nanoTime();
+            Neighbours.compute(uids, threads);
+            double usersPerSecond = uids.length / ((System.nanoTime() - start) / 1e9);
+            if (threads == 1) {
+                single = usersPerSecond;
+            }
+            System.out.printf("%2d threads: %d users at %.0f users/s (%.2fx)%n", threads, uids.length,
+                    usersPerSecond, usersPerSecond / single);
+        }
+    }
+
+    /**
+     * This measures how closely the approximate similar users match the exact ones. For a random sample of users, it
+     * finds their similar users exactly, then with a MinHash index built with each given number of bands and rows, and
+     * reports recall@50 (the share of the exact similar users also found approximately), how many candidates were
+     * ranked per user, and the latency of each. Connects with -Ddb.url, -Ddb.user, and -Ddb.password.
+     *
+     * @param args the number of users to sample, then each index to try as bands x rows, e.g. 32x2.
+     */
+    private static void minHashRecall(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        String[] configs = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length)
+                : new String[]{"16x2", "32x2", "64x2", "32x3", "64x3"};
+
+        try (Connection con = DriverManager.getConnection(System.getProperty("db.url"),
+                System.getProperty("db.user", ""), System.getProperty("db.password", ""))) {
+            UserProfiles.load(con);
+        }
+        int[] uids = UserProfiles.userIds();
+        Random random = new Random(320);
+        int[] sample = new int[Math.min(users, uids.length)];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = uids[random.nextInt(uids.length)];
+        }
+
+        List<List<Integer>> exact = new ArrayList<>();
+        long[] exactNanos = new long[sample.length];
+        UserProfiles.similarUsers(sample[0], null);
+        for (int i = 0; i < sample.length; i++) {
+            long start = System.nanoTime();
+            exact.add(UserProfiles.similarUsers(sample[i], null));
+            exactNanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(exactNanos);
+        System.out.printf("%d users, %d sampled%n", uids.length, sample.length);
+        System.out.printf("  exact:  p50=%.3fms p95=%.3fms%n", percentile(exactNanos, 0.5),
+                percentile(exactNanos, 0.95));
+
+        for (String config : configs) {
+            String[] parts = config.split("x");
+            int bands = Integer.parseInt(parts[0]);
+            int rows = Integer.parseInt(parts[1]);
+            long buildStart = System.nanoTime();
+            UserProfiles.MinHashIndex index = UserProfiles.minHashIndex(bands, rows);
+            long buildNanos = System.nanoTime() - buildStart;
+
+            long[] nanos = new long[sample.length];
+            long found = 0;
+            long expected = 0;
+            long candidates = 0;
+            UserProfiles.similarUsers(sample[0], index);
+            for (int i = 0; i < sample.length; i++) {
+                long start = System.nanoTime();
+                List<Integer> approximate = UserProfiles.similarUsers(sample[i], index);
+                nanos[i] = System.nanoTime() - start;
+                for (int uid : exact.get(i)) {
+                    if (approximate.contains(uid)) {
+                        found++;
+                    }
+                }
+                expected += exact.get(i).size();
+                candidates += index.candidates(sample[i]).length;
+            }
+            Arrays.sort(nanos);
+            System.out.printf("  %3dx%d: recall@50=%.3f candidates=%.0f p50=%.3fms p95=%.3fms built in %.0fms%n",
+                    bands, rows, expected == 0 ? 1.0 : (double) found / expected,
+                    (double) candidates / sample.length, percentile(nanos, 0.5), percentile(nanos, 0.95),
+                    buildNanos / 1e6);
+        }
+    }
+
+    /**
+     * This measures the item-item recommender: how long the matrix takes to build, how big it is, and the latency of
+     * recommending movies to the users who have watched or rated the most, whose recommendations walk the most rows.
+     * Connects with -Ddb.url, -Ddb.user, and -Ddb.password.
+     *
+     * @param args the number of users to recommend movies to.
+     */
+    private static void itemRecommendations(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        List<Integer> uids = new ArrayList<>();
+        try (Connection con = DriverManager.getConnection(System.getProperty("db.url"),
+                System.getProperty("db.user", ""), System.getProperty("db.password", ""))) {
+            long loadStart = System.nanoTime();
+            ItemMatrix.load(con);
+            System.out.printf("Matrix built in %.0fms (%s)%n", (System.nanoTime() - loadStart) / 1e6,
+                    ItemMatrix.stats());
+            try (PreparedStatement userStmt = con.prepareStatement("SELECT uid FROM (SELECT uid, mid FROM watches " +
+                    "UNION SELECT uid, mid FROM rates) h GROUP BY uid ORDER BY COUNT(*) DESC, uid LIMIT ?")) {
+                userStmt.setInt(1, users);
+                ResultSet userSet = userStmt.executeQuery();
+                while (userSet.next()) {
+                    uids.add(userSet.getInt("uid"));
+                }
+            }
+        }
+
+        // One untimed pass warms up the JIT.
+        for (int uid : uids) {
+            ItemMatrix.recommend(uid);
+        }
+        long[] nanos = new long[uids.size()];
+        long recommended = 0;
+        for (int i = 0; i < uids.size(); i++) {
+            long start = System.nanoTime();
+            recommended += ItemMatrix.recommend(uids.get(i)).size();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%d users, %.1f movies recommended each: p50=%.3fms p95=%.3fms max=%.3fms%n", uids.size(),
+                (double) recommended / uids.size(), percentile(nanos, 0.5), percentile(nanos, 0.95),
+                nanos[nanos.length - 1] / 1e6);
+    }
+
+    /**
+     * This is a helper method that compares the sketch's top movies with exact counts.
+     *
+     * @return how many of the sketch's movies belong in the exact top 20 (including ties with the exact 20th), how
+     * many movies the sketch returned, and how many of their counts were overestimated.
+     */
+    private static int[] compareTop(List<TrendingSketch.Estimate> top, Map<Integer, Long> exact) {
+        long[] counts = exact.values().stream().mapToLong(Long::longValue).sorted().toArray();
+        long cutoff = counts.length == 0 ? 0 : counts[Math.max(0, counts.length - 20)];
+        int[] result = {0, top.size(), 0};
+        for (TrendingSketch.Estimate estimate : top) {
+            long actual = exact.getOrDefault(estimate.mid(), 0L);
+            if (actual >= cutoff && actual > 0) {
+                result[0]++;
+            }
+            if (estimate.watches() > actual) {
+                result[2]++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * This prints how many of the sketch's top movies really belong in the exact top 20, counting a movie tied with
+     * the exact 20th as belonging, and how far the sketch's counts for them are from the exact counts.
+     */
+    private static void reportAccuracy(int window, List<TrendingSketch.Estimate> top, Map<Integer, Long> exact) {
+        int correct = compareTop(top, exact)[0];
+        double totalError = 0;
+        double maxError = 0;
+        for (TrendingSketch.Estimate estimate : top) {
+            long actual = exact.getOrDefault(estimate.mid(), 0L);
+            double error = actual == 0 ? 1 : (double) (estimate.watches() - actual) / actual;
+            totalError += error;
+            maxError = Math.max(maxError, error);
+        }
+        System.out.printf("  %d days: %d of %d in the exact top 20, overestimate mean %.2f%% max %.2f%%%n", window,
+                correct, top.size(), top.isEmpty() ? 0 : 100 * totalError / top.size(), 100 * maxError);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+    }
+}
@@ -1,8 +1,10 @@
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class contains methods that show a menu to users, allowing them to modify, create, or delete collections as well
@@ -15,82 +17,78 @@ import java.util.Scanner;
  * @author Veronika Zsenits vmz5751
  */
 public class CollectionPage {
-    private static final Scanner InputReader = new Scanner(System.in);
-    private static int UserID;
 
     /**
      * This method displays the options for the collections menu, allowing users to create, review, and watch
      * collections. Users can also exit to return to the main menu.
      *
-     * @param id The int representing the uid of the currently logged-in user.
+     * @param session The session of the currently logged-in user.
      */
-    public static void CollectionMenu(int id) throws SQLException {
-        UserID = id;
-
+    public static void CollectionMenu(UserSession session) throws SQLException {
         while (true) {
-            System.out.println("Please select one of the following options: ");
-            System.out.println("1. Create Collection.");
-            System.out.println("2. Add [id] - Allows user to start adding movies to the collection with given ID.");
-            System.out.println("3. Remove [id] - Allows user to start removing movies from the collection with given ID.");
-            System.out.println("4. Show Collections.");
-            System.out.println("5. Delete [id] - Deletes collection with given ID.");
-            System.out.println("6. Rename [id] - Renames the collection with given ID.");
-            System.out.println("7. Watch [id] - Watches the collection with given ID.");
-            System.out.println("8. Exit");
-
-            String userCommand = InputReader.nextLine().trim();
+            session.println("Please select one of the following options: ");
+            session.println("1. Create Collection.");
+            session.println("2. Add [id] - Allows user to start adding movies to the collection with given ID.");
+            session.println("3. Remove [id] - Allows user to start removing movies from the collection with given ID.");
+            session.println("4. Show Collections.");
+            session.println("5. Delete [id] - Deletes collection with given ID.");
+            session.println("6. Rename [id] - Renames the collection with given ID.");
+            session.println("7. Watch [id] - Watches the collection with given ID.");
+            session.println("8. Exit");
+
+            String userCommand = session.nextLine().trim();
 
             if (userCommand.equals("Exit")) {
                 return;
             } else if (userCommand.startsWith("Create")) {
-                createCollection();
+                createCollection(session);
             } else if (userCommand.startsWith("Add")) {
                 String collectionIDString = userCommand.substring(3).trim();
                 try {
                     int collectionID = Integer.parseInt(collectionIDString);
-                    addMovie(collectionID);
+                    addMovie(session, collectionID);
                 } catch (NumberFormatException e) {
-                    System.out.println("Please provide a number for collection ID.");
+                    session.println("Please provide a number for collection ID.");
                 }
 
             } else if (userCommand.startsWith("Remove")) {
                 String collectionIDString = userCommand.substring(6).trim();
                 try {
                     int collectionID = Integer.parseInt(collectionIDString);
-                    removeMovie(collectionID);
+                    removeMovie(session, collectionID);
                 } catch (NumberFormatException e) {
-                    System.out.println("Please provide a number for collection ID.");
+                    session.println("Please provide a number for collection ID.");
                 }
 
             } else if (userCommand.startsWith("Show")) {
-                showCollections();
+                showCollections(session);
 
             } else if (userCommand.startsWith("Delete")) {
                 String collectionIDString = userCommand.substring(6).trim();
                 try {
                     int collectionID = Integer.parseInt(collectionIDString);
-                    deleteCollection(collectionID);
+                    deleteCollection(session, collectionID);
                 } catch (NumberFormatException e) {
-                    System.out.println("Please provide a number for collection ID.");
+                    session.println("Please provide a number for collection ID.");
                 }
             } else if (userCommand.startsWith("Rename")) {
                 String collectionIDString = userCommand.substring(6).trim();
                 try {
                     int collectionID = Integer.parseInt(collectionIDString);
-                    renameCollection(collectionID);
+                    renameCollection(session, collectionID);
                 } catch (NumberFormatException e) {
-                    System.out.println("Please provide a number for collection ID.");
+                    session.println("Please provide a number for collection ID.");
                 }
             } else if (userCommand.startsWith("Watch")) {
                 String collectionIDString = userCommand.substring(5).trim();
                 try {
                     int collectionID = Integer.parseInt(collectionIDString);
-                    watchCollection(collectionID);
+                    watchCollection(session, collectionID);
                 } catch (NumberFormatException e) {
-                    System.out.println("Please provide a number for collection ID.");
+                    session.println("Please provide a number for collection ID.");
                 }
             } else {
-                System.out.println("Please enter a valid command from those provided.");
+                session.println("Please enter a valid command from those provided.");
             }
         }
     }
@@ -98,14 +96,16 @@ public class CollectionPage {
 
     /**
      * This method prompts users to create a new collection by providing a name and initial movie ID.
+     *
+     * @param session The session of the user interacting with this page.
      */
-    private static void createCollection() throws SQLException {
-        System.out.println("Please enter the name of the collection: ");
-        String collectionName = InputReader.nextLine().trim();
+    private static void createCollection(UserSession session) throws SQLException {
+        session.println("Please enter the name of the collection: ");
+        String collectionName = session.nextLine().trim();
 
-        System.out.println("Please enter a starting movie ID for this collection or Exit to leave the menu: ");
+        session.println("Please enter a starting movie ID for this collection or Exit to leave the menu: ");
         while (true) {
-            String movieIDString = InputReader.nextLine().trim();
+            String movieIDString = session.nextLine().trim();
             if (movieIDString.equals("Exit")) {
                 return;
             }
@@ -114,21 +114,22 @@ public class CollectionPage {
             try {
                 movieID = Integer.parseInt(movieIDString);
             } catch (NumberFormatException e) {
-                System.out.println("Please provide a number for movie ID.");
+                session.println("Please provide a number for movie ID.");
                 continue;
             }
 
-            if (!checkMovieID(movieID)) {
-                System.out.println("Movie ID does not exist.");
+            if (!checkMovieID(session, movieID)) {
+                session.println("Movie ID does not exist.");
                 continue;
             }
 
             // Creates the collection
-            try (PreparedStatement createCollectionStmt = InitConnection.getCon().prepareStatement(
+            try (Connection con = session.getCon();
+                 PreparedStatement createCollectionStmt = con.prepareStatement(
                     "INSERT INTO collection (name, creatoruid) VALUES (?, ?);",
                     Statement.RETURN_GENERATED_KEYS)) {
                 createCollectionStmt.setString(1, collectionName);
-                createCollectionStmt.setInt(2, UserID);
+                createCollectionStmt.setInt(2, session.getUserId());
                 createCollectionStmt.executeUpdate();
 
                 // Gets the cid from the new collection
@@ -137,12 +138,12 @@ public class CollectionPage {
                         int cID = rs.getInt(1);
 
                         // Adds the collection cid and mid to partof relation
-                        try (PreparedStatement partOfStmt = InitConnection.getCon().prepareStatement(
+                        try (PreparedStatement partOfStmt = con.prepareStatement(
                                 "INSERT INTO partof (cid, mid) VALUES (?, ?);")) {
                             partOfStmt.setInt(1, cID);
                             partOfStmt.setInt(2, movieID);
                             partOfStmt.executeUpdate();
-                            System.out.println("Collection successfully created!");
+                            session.println("Collection successfully created!");
                         }
                     }
                 }
@@ -154,19 +155,20 @@ public class CollectionPage {
     /**
      * This method prompts the user to enter movie IDs to add to the provided collection.
      *
+     * @param session The session of the user interacting with this page.
      * @param collectionID The cid of the collection to add movies to.
      */
-    public static void addMovie(int collectionID) throws SQLException {
-        if (!checkCollectionID(collectionID)) {
-            System.out.println("Collection with given ID does not exist.");
+    public static void addMovie(UserSession session, int collectionID) throws SQLException {
+        if (!checkCollectionID(session, collectionID)) {
+            session.println("Collection with given ID does not exist.");
             return;
         }
 
-        System.out.println("Please enter the ID of a movie to add or Exit to return to the collection menu: ");
+        session.println("Please enter the ID of a movie to add or Exit to return to the collection menu: ");
         int movieID;
         String movieIDString;
         while (true) {
-            movieIDString = InputReader.nextLine().trim();
+            movieIDString = session.nextLine().trim();
             if (movieIDString.equals("Exit")) {
                 return;
             }
@@ -174,33 +176,33 @@ public class CollectionPage {
             try {
                 movieID = Integer.parseInt(movieIDString);
             } catch (NumberFormatException e) {
-                System.out.println("Please provide a number for movie ID.");
+                session.println("Please provide a number for movie ID.");
                 continue;
             }
 
-            if (!checkMovieID(movieID)) {
-                System.out.println("Movie with the given ID does not exist.");
+            if (!checkMovieID(session, movieID)) {
+                session.println("Movie with the given ID does not exist.");
                 continue;
             }
 
             // Checks to see if movie already exists in collection
-            try (PreparedStatement stmt = InitConnection.getCon().prepareStatement(
+            try (Connection con = session.getCon(); PreparedStatement stmt = con.prepareStatement(
                     "select 1 from partof where cid = ? and mid = ?")) {
                 stmt.setInt(1, collectionID);
                 stmt.setInt(2, movieID);
                 ResultSet rs = stmt.executeQuery();
                 if (rs.next()) {
-                    System.out.println("This movie is already in the collection.");
+                    session.println("This movie is already in the collection.");
                     continue;
                 }
             }
 
-            try (PreparedStatement stmt = InitConnection.getCon().prepareStatement(
+            try (Connection con = session.getCon(); PreparedStatement stmt = con.prepareStatement(
                     "INSERT INTO partof (cid, mid) VALUES (?, ?);")) {
                 stmt.setInt(1, collectionID);
                 stmt.setInt(2, movieID);
                 stmt.executeUpdate();
-                System.out.println("Movie successfully added to the collection.");
+                session.println("Movie successfully added to the collection.");
             }
         }
     }
@@ -208,19 +210,20 @@ public class CollectionPage {
     /**
      * This method prompts the user to enter movie IDs to remove from the provided collection.
      *
+     * @param session The session of the user interacting with this page.
      * @param collectionID The cid of the collection to remove movies from.
      */
-    public static void removeMovie(int collectionID) throws SQLException {
-        if (!checkCollectionID(collectionID)) {
-            System.out.println("Collection with given ID does not exist.");
+    public static void removeMovie(UserSession session, int collectionID) throws SQLException {
+        if (!checkCollectionID(session, collectionID)) {
+            session.println("Collection with given ID does not exist.");
             return;
         }
 
-        System.out.println("Please enter the ID of a movie to remove or Exit to return to the collection menu: ");
+        session.println("Please enter the ID of a movie to remove or Exit to return to the collection menu: ");
         int movieID;
         String movieIDString;
         while (true) {
-            movieIDString = InputReader.nextLine().trim();
+            movieIDString = session.nextLine().trim();
             if (movieIDString.equals("Exit")) {
                 return;
             }
@@ -228,37 +231,40 @@ public class CollectionPage {
             try {
                 movieID = Integer.parseInt(movieIDString);
             } catch (NumberFormatException e) {
-                System.out.println("Please provide a number for movie ID.");
+                session.println("Please provide a number for movie ID.");
                 continue;
             }
 
-            if (!checkMovieID(movieID)) {
-                System.out.println("Movie with the given ID does not exist.");
+            if (!checkMovieID(session, movieID)) {
+                session.println("Movie with the given ID does not exist.");
                 continue;
             }
 
-            try (PreparedStatement removeStmt = InitConnection.getCon().prepareStatement(
+            try (Connection con = session.getCon(); PreparedStatement removeStmt = con.prepareStatement(
                     "delete from partof where cid = ? and mid = ?")) {
                 removeStmt.setInt(1, collectionID);
                 removeStmt.setInt(2, movieID);
                 int rowsDeleted = removeStmt.executeUpdate();
                 if (rowsDeleted == 1) {
-                    System.out.println("You have successfully deleted a movie.");
+                    session.println("You have successfully deleted a movie.");
                 } else {
-                    System.out.println("The given movie was not in the collection.");
+                    session.println("The given movie was not in the collection.");
                 }
             }
 
             // Delete collection if it contains no movies.
-            try (PreparedStatement checkStmt = InitConnection.getCon().prepareStatement(
+            boolean isEmpty;
+            try (Connection con = session.getCon(); PreparedStatement checkStmt = con.prepareStatement(
                     "select 1 from partof where cid = ?")) {
                 checkStmt.setInt(1, collectionID);
                 ResultSet rs = checkStmt.executeQuery();
-                if (!rs.next()) {
-                    deleteCollection(collectionID);
-                    System.out.println("Collection was empty after removing movie and has been deleted.");
-                    return;
-                }
+                isEmpty = !rs.next();
+            }
+            // The check connection is returned first so deleting never holds two pooled connections at once.
+            if (isEmpty) {
+                deleteCollection(session, collectionID);
+                session.println("Collection was empty after removing movie and has been deleted.");
+                return;
             }
 
         }
@@ -267,9 +273,11 @@ public class CollectionPage {
     /**
      * This method shows all collections associated with the logged-in user, ordered by name. Each collection displays
      * name, movie count and total watch length.
+     *
+     * @param session The session of the user interacting with this page.
      */
-    public static void showCollections() throws SQLException {
-        try (PreparedStatement showStmt = InitConnection.getCon().prepareStatement(
+    public static void showCollections(UserSession session) throws SQLException {
+        try (Connection con = session.getCon(); PreparedStatement showStmt = con.prepareStatement(
                 "SELECT c.cid, c.name, COUNT(p.mid) AS numMovies, SUM(m.length) AS totalLength" +
                         " FROM collection c " +
                         "LEFT JOIN partof p ON c.cid = p.cid " +
@@ -277,10 +285,10 @@ public class CollectionPage {
                         "Where c.creatoruid = ? " +
                         "GROUP BY c.cid, c.name " +
                         "ORDER BY c.name;")) {
-            showStmt.setInt(1, UserID);
+            showStmt.setInt(1, session.getUserId());
             ResultSet rs = showStmt.executeQuery();
             if (!rs.isBeforeFirst()) {
-                System.out.println("You have not made any collections yet.");
+                session.println("You have not made any collections yet.");
                 return;
             }
             while (rs.next()) {
@@ -291,12 +299,12 @@ public class CollectionPage {
                 int hours = totalLength / 60;
                 int minutes = totalLength % 60;
 
-                System.out.println(
+                session.println(
                         "Collection ID: " + cid +
                                 " | Collection name: " + collectionName +
                                 " | Number of movies: " + numMovies +
                                 " | Total length: " + hours + ":" + (minutes < 10 ? "0" + minutes : minutes));
-                System.out.println();
+                session.println();
             }
         }
     }
@@ -304,46 +312,49 @@ public class CollectionPage {
     /**
      * This method deletes the provided collection.
      *
+     * @param session The session of the user interacting with this page.
      * @param collectionID The cid of the collection that's being deleted.
      */
-    public static void deleteCollection(int collectionID) throws SQLException {
-        if (!checkCollectionID(collectionID)) {
-            System.out.println("Collection with given ID does not exist.");
+    public static void deleteCollection(UserSession session, int collectionID) throws SQLException {
+        if (!checkCollectionID(session, collectionID)) {
+            session.println("Collection with given ID does not exist.");
             return;
         }
-        try (PreparedStatement deleteStmt = InitConnection.getCon().prepareStatement(
+        try (Connection con = session.getCon(); PreparedStatement deleteStmt = con.prepareStatement(
                 "delete from collection where cid = ?")) {
             deleteStmt.setInt(1, collectionID);
             deleteStmt.executeUpdate();
-            System.out.println("Collection deleted.");
+            session.println("Collection deleted.");
         }
     }
 
     /**
      * This method lets the user enter a new name for the provided collection.
      *
+     * @param session The session of the user interacting with this page.
      * @param collectionID The cid of the collection being renamed.
      */
-    public static void renameCollection(int collectionID) throws SQLException {
-        System.out.println("Please enter the new name of the collection: ");
-        String collectionName = InputReader.nextLine().trim();
-        try (PreparedStatement renameStmt = InitConnection.getCon().prepareStatement(
+    public static void renameCollection(UserSession session, int collectionID) throws SQLException {
+        session.println("Please enter the new name of the collection: ");
+        String collectionName = session.nextLine().trim();
+        try (Connection con = session.getCon(); PreparedStatement renameStmt = con.prepareStatement(
                 "UPDATE collection SET name = ? WHERE cid = ?")) {
             renameStmt.setString(1, collectionName);
             renameStmt.setInt(2, collectionID);
             renameStmt.executeUpdate();
-            System.out.println("Collection renamed.");
+            session.println("Collection renamed.");
         }
     }
 
     /**
      * This is a helper method that checks if a movie with the given mid exists.
      *
+     * @param session The session of the user interacting with this page.
      * @param movieID mid of the movie being checked.
      * @return true/false depending on whether the movie exists.
      */
-    private static boolean checkMovieID(int movieID) throws SQLException {
-        try (PreparedStatement movieIDStmt = InitConnection.getCon().prepareStatement(
+    private static boolean checkMovieID(UserSession session, int movieID) throws SQLException {
+        try (Connection con = session.getCon(); PreparedStatement movieIDStmt = con.prepareStatement(
                 "SELECT mid FROM movie WHERE mid = ?")) {
             movieIDStmt.setInt(1, movieID);
             ResultSet rs = movieIDStmt.executeQuery();
@@ -354,11 +365,12 @@ public class CollectionPage {
     /**
      * This is a helper method that checks if a collection with the given cid exists.
      *
+     * @param session The session of the user interacting with this page.
      * @param collectionID cid of the collection being checked.
      * @return true/false depending on whether the collection exists.
      */
-    private static boolean checkCollectionID(int collectionID) throws SQLException {
-        try (PreparedStatement collectionIDStmt = InitConnection.getCon().prepareStatement(
+    private static boolean checkCollectionID(UserSession session, int collectionID) throws SQLException {
+        try (Connection con = session.getCon(); PreparedStatement collectionIDStmt = con.prepareStatement(
                 "SELECT cid FROM collection WHERE cid = ?")) {
             collectionIDStmt.setInt(1, collectionID);
             ResultSet rs = collectionIDStmt.executeQuery();
@@ -367,39 +379,40 @@ public class CollectionPage {
     }
 
     /**
-     * This method watches all movies in the provided collection, ordered by name then length.
+     * This method watches all movies in the provided collection, ordered by name then length. The movies are read
+     * first and then all watched with one statement, so the whole collection is recorded in one round trip and one
+     * transaction.
      *
+     * @param session The session of the user interacting with this page.
      * @param collectionID The cid of the collection being watched.
      */
-    private static void watchCollection(int collectionID) throws SQLException {
+    private static void watchCollection(UserSession session, int collectionID) throws SQLException {
         // Get all the movies in the collection.
-        try (PreparedStatement watchStmt = InitConnection.getCon().prepareStatement(
+        try (Connection con = session.getCon(); PreparedStatement watchStmt = con.prepareStatement(
                 "Select m.mid, m.length " +
                         "from partof p JOIN movie m ON p.mid = m.mid " +
                         "where p.cid = ? order by m.title, m.length")) {
             watchStmt.setInt(1, collectionID);
 
-            int sessionTime = 0;
+            List<int[]> movies = new ArrayList<>();
             try (ResultSet rs = watchStmt.executeQuery()) {
                 while (rs.next()) {
-                    int mid = rs.getInt("mid");
-                    int length = rs.getInt("length");
-
-                    try (PreparedStatement insertStmt = InitConnection.getCon().prepareStatement(
-                            "INSERT INTO watches (uid, mid, starttime, endtime) " +
-                                    "VALUES (?, ?, NOW() + CAST(? AS interval), NOW() + CAST(? AS interval))")) {
-                        insertStmt.setInt(1, UserID);
-                        insertStmt.setInt(2, mid);
-                        insertStmt.setString(3, (sessionTime / 60) + " hours "
-                                + (sessionTime % 60) + " minutes");
-                        // Increment time indicator by movie length as if we watched the whole movie.
-                        sessionTime += length;
-                        insertStmt.setString(4, (sessionTime / 60) + " hours "
-                                + (sessionTime % 60) + " minutes");
-                        insertStmt.executeUpdate();
-                    }
+                    movies.add(new int[]{rs.getInt("mid"), rs.getInt("length")});
                 }
             }
+
+            int[] mids = new int[movies.size()];
+            int[] starts = new int[movies.size()];
+            int[] ends = new int[movies.size()];
+            int sessionTime = 0;
+            for (int i = 0; i < mids.length; i++) {
+                mids[i] = movies.get(i)[0];
+                starts[i] = sessionTime;
+                // Increment time indicator by movie length as if we watched the whole movie.
+                sessionTime += movies.get(i)[1];
+                ends[i] = sessionTime;
+            }
+            WatchHistory.recordAll(con, session.getUserId(), mids, starts, ends);
         }
     }
 }
@@ -0,0 +1,372 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class contains a bounded pool of PostgreSQL connections shared by every page of the application. Connections are
+ * borrowed with {@link #borrow()} and handed back by calling close() on the returned connection, so pages can use them
+ * in try-with-resources blocks exactly like a normal connection. The pool validates connections that have sat idle,
+ * retires connections past their maximum lifetime, reports connections held for suspiciously long, and bounds how long
+ * a caller will wait for a free connection.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    // All limits can be overridden with -D system properties when launching the application.
+    private static final int MAX_SIZE = Integer.getInteger("pool.maxSize", 10);
+    private static final long ACQUIRE_TIMEOUT_MILLIS = Long.getLong("pool.acquireTimeoutMillis", 30_000);
+    private static final long MAX_LIFETIME_MILLIS = Long.getLong("pool.maxLifetimeMillis", 30 * 60_000);
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = Long.getLong("pool.validateAfterIdleMillis", 5_000);
+    private static final long LEAK_THRESHOLD_MILLIS = Long.getLong("pool.leakThresholdMillis", 60_000);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("pool.statementCacheSize", 64);
+    // Number of executions of the same statement before pgjdbc switches to a named server-side prepared statement.
+    private static final String PREPARE_THRESHOLD = System.getProperty("pool.prepareThreshold", "3");
+
+    private final String url;
+    private final Properties props;
+    private final Semaphore permits = new Semaphore(MAX_SIZE, true);
+    // Guarded by idleLock. A ReentrantLock is used rather than synchronized so virtual threads are never pinned.
+    private final Deque<PooledEntry> idle = new ArrayDeque<>();
+    private final ReentrantLock idleLock = new ReentrantLock();
+    private final Set<PooledEntry> borrowed = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed = false;
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong retiredCount = new AtomicLong();
+    private final AtomicLong leakCount = new AtomicLong();
+    private final StatementCache.Metrics statementMetrics = new StatementCache.Metrics();
+
+    /**
+     * A snapshot of the pool metrics at a point in time.
+     *
+     * @param active      Connections currently borrowed.
+     * @param idle        Open connections waiting to be borrowed.
+     * @param borrows     Total successful borrows.
+     * @param timeouts    Borrow attempts that gave up after the acquire timeout.
+     * @param avgWaitMillis Average time spent waiting for a connection.
+     * @param maxWaitMillis Longest time spent waiting for a connection.
+     * @param created     Physical connections opened.
+     * @param retired     Physical connections closed for age, failed validation, or errors.
+     * @param leaks       Borrows reported as held longer than the leak threshold.
+     * @param statementHits      Prepared statements served from a connection's statement cache.
+     * @param statementMisses    Prepared statements that had to be prepared on the connection.
+     * @param statementEvictions Cached statements closed to make room for newer ones.
+     */
+    public record Stats(int active, int idle, long borrows, long timeouts, double avgWaitMillis, double maxWaitMillis,
+                        long created, long retired, long leaks, long statementHits, long statementMisses,
+                        long statementEvictions) {
+        @Override
+        public String toString() {
+            return String.format("active=%d idle=%d borrows=%d timeouts=%d avgWait=%.2fms maxWait=%.2fms created=%d " +
+                    "retired=%d leaks=%d statementCache hits=%d misses=%d evictions=%d", active, idle, borrows,
+                    timeouts, avgWaitMillis, maxWaitMillis, created, retired, leaks, statementHits, statementMisses,
+                    statementEvictions);
+        }
+    }
+
+    /**
+     * This class tracks a single physical connection along with the proxy handed out to borrowers.
+     */
+    private final class PooledEntry implements InvocationHandler {
+        private final Connection raw;
+        private final StatementCache statementCache;
+        private final long createdAt = System.currentTimeMillis();
+        private long lastReturnedAt = createdAt;
+        private volatile long borrowedAt;
+        private volatile Exception borrowSite;
+        private volatile boolean leakReported;
+        private volatile boolean broken;
+        // Each borrow gets a fresh proxy so a stale reference from a previous borrower cannot touch the connection.
+        private volatile Connection proxy;
+        private volatile boolean proxyClosed;
+
+        PooledEntry(Connection raw) {
+            this.raw = raw;
+            this.statementCache = new StatementCache(raw, STATEMENT_CACHE_SIZE, statementMetrics);
+        }
+
+        Connection lend() {
+            borrowedAt = System.currentTimeMillis();
+            borrowSite = LEAK_THRESHOLD_MILLIS > 0 ? new Exception("Connection borrowed here") : null;
+            leakReported = false;
+            proxyClosed = false;
+            proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, this);
+            return proxy;
+        }
+
+        boolean expired(long now) {
+            return MAX_LIFETIME_MILLIS > 0 && now - createdAt >= MAX_LIFETIME_MILLIS;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close" -> {
+                    if (!proxyClosed && proxy == this.proxy) {
+                        proxyClosed = true;
+                        release(this);
+                    }
+                    return null;
+                }
+                case "isClosed" -> {
+                    return proxyClosed || proxy != this.proxy || raw.isClosed();
+                }
+                case "equals" -> {
+                    return proxy == args[0];
+                }
+                case "hashCode" -> {
+                    return System.identityHashCode(proxy);
+                }
+                case "toString" -> {
+                    return "Pooled" + raw;
+                }
+            }
+            if (proxyClosed || proxy != this.proxy) {
+                throw new SQLException("Connection has already been returned to the pool.");
+            }
+            // Plain prepareStatement(sql) and prepareStatement(sql, autoGeneratedKeys) go through the statement cache.
+            if (method.getName().equals("prepareStatement") && STATEMENT_CACHE_SIZE > 0) {
+                Class<?>[] types = method.getParameterTypes();
+                if (types.length == 1) {
+                    return statementCache.prepare((Connection) proxy, (String) args[0], Statement.NO_GENERATED_KEYS);
+                } else if (types.length == 2 && types[1] == int.class) {
+                    return statementCache.prepare((Connection) proxy, (String) args[0], (Integer) args[1]);
+                }
+            }
+            try {
+                return method.invoke(raw, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                // SQLState class 08 is a connection exception, so this physical connection should not be reused.
+                if (cause instanceof SQLException s && s.getSQLState() != null && s.getSQLState().startsWith("08")) {
+                    broken = true;
+                }
+                throw cause;
+            }
+        }
+    }
+
+    /**
+     * This creates a pool for the given database, which opens connections lazily as they are needed.
+     *
+     * @param url   The jdbc url of the database.
+     * @param props The connection properties, including user and password.
+     */
+    public ConnectionPool(String url, Properties props) {
+        this.url = url;
+        this.props = new Properties();
+        this.props.putAll(props);
+        // Keep the driver's own query cache at least as large as ours, so a statement we still hold never loses its
+        // server-side plan to the driver's eviction.
+        this.props.putIfAbsent("prepareThreshold", PREPARE_THRESHOLD);
+        this.props.putIfAbsent("preparedStatementCacheQueries", String.valueOf(Math.max(256, STATEMENT_CACHE_SIZE)));
+        housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1_000, Math.min(LEAK_THRESHOLD_MILLIS, 10_000));
+        housekeeper.scheduleAtFixedRate(this::houseKeep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This borrows a connection from the pool, waiting up to the acquire timeout if every connection is in use. Idle
+     * connections are validated before being handed out and connections past their lifetime are replaced. The returned
+     * connection must be closed to hand it back to the pool.
+     *
+     * @return a connection that returns itself to the pool when closed.
+     * @throws SQLException if no connection became free in time or a new connection could not be opened.
+     */
+    public Connection borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed.");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new SQLTransientConnectionException("Timed out after " + ACQUIRE_TIMEOUT_MILLIS +
+                        "ms waiting for a database connection (" + stats() + ").");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", e);
+        }
+        long waited = System.nanoTime() - start;
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        borrowCount.incrementAndGet();
+
+        try {
+            PooledEntry entry;
+            while (true) {
+                entry = pollIdle();
+                if (entry == null) {
+                    entry = new PooledEntry(DriverManager.getConnection(url, props));
+                    createdCount.incrementAndGet();
+                    break;
+                }
+                long now = System.currentTimeMillis();
+                if (entry.expired(now)) {
+                    retire(entry);
+                    continue;
+                }
+                // Only validate connections that have sat for a while, since a round trip on every borrow is costly.
+                if (now - entry.lastReturnedAt >= VALIDATE_AFTER_IDLE_MILLIS &&
+                        !entry.raw.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                    retire(entry);
+                    continue;
+                }
+                break;
+            }
+            borrowed.add(entry);
+            return entry.lend();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * This returns a snapshot of the current pool metrics.
+     *
+     * @return the current pool stats.
+     */
+    public Stats stats() {
+        long borrows = borrowCount.get();
+        int idleCount;
+        idleLock.lock();
+        try {
+            idleCount = idle.size();
+        } finally {
+            idleLock.unlock();
+        }
+        return new Stats(borrowed.size(), idleCount, borrows, timeoutCount.get(),
+                borrows == 0 ? 0 : totalWaitNanos.get() / 1e6 / borrows, maxWaitNanos.get() / 1e6,
+                createdCount.get(), retiredCount.get(), leakCount.get(), statementMetrics.hits(),
+                statementMetrics.misses(), statementMetrics.evictions());
+    }
+
+    /**
+     * This closes every idle connection and stops the pool from handing out new ones. Connections still borrowed are
+     * closed as they are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PooledEntry entry;
+        while ((entry = pollIdle()) != null) {
+            retire(entry);
+        }
+    }
+
+    private PooledEntry pollIdle() {
+        idleLock.lock();
+        try {
+            // Most recently returned first, so the warmest connections are reused and extras can age out.
+            return idle.pollFirst();
+        } finally {
+            idleLock.unlock();
+        }
+    }
+
+    private void release(PooledEntry entry) {
+        borrowed.remove(entry);
+        try {
+            // Undo any per-borrow state so the next borrower gets a connection in its default state.
+            if (!entry.broken && !entry.raw.isClosed() && !entry.raw.getAutoCommit()) {
+                entry.raw.rollback();
+                entry.raw.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            entry.broken = true;
+        }
+        try {
+            if (closed || entry.broken || entry.expired(System.currentTimeMillis())) {
+                retire(entry);
+            } else {
+                entry.lastReturnedAt = System.currentTimeMillis();
+                idleLock.lock();
+                try {
+                    idle.addFirst(entry);
+                } finally {
+                    idleLock.unlock();
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void retire(PooledEntry entry) {
+        retiredCount.incrementAndGet();
+        entry.statementCache.closeAll();
+        try {
+            entry.raw.close();
+        } catch (SQLException ignored) {
+            // The connection is being thrown away, so there is nothing useful to do with a failure here.
+        }
+    }
+
+    /**
+     * This runs periodically to report leaked connections and to close idle connections past their lifetime.
+     */
+    private void houseKeep() {
+        long now = System.currentTimeMillis();
+        if (LEAK_THRESHOLD_MILLIS > 0) {
+            for (PooledEntry entry : borrowed) {
+                if (!entry.leakReported && now - entry.borrowedAt >= LEAK_THRESHOLD_MILLIS) {
+                    entry.leakReported = true;
+                    leakCount.incrementAndGet();
+                    System.err.println("Possible connection leak: connection held for " + (now - entry.borrowedAt) +
+                            "ms.");
+                    if (entry.borrowSite != null) {
+                        entry.borrowSite.printStackTrace();
+                    }
+                }
+            }
+        }
+        idleLock.lock();
+        try {
+            idle.removeIf(entry -> {
+                if (entry.expired(now)) {
+                    retire(entry);
+                    return true;
+                }
+                return false;
+            });
+        } finally {
+            idleLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class contains the changes to follows that keep the following_feed table current. Each user's feed counts the
+ * watches of every movie by the people they follow, so following someone adds their watch history to the follower's
+ * feed and unfollowing removes it again, while WatchHistory adds each new watch to the feed of every follower. Users
+ * followed by more than the fan-out cap (-Dfeed.fanoutCap) would make every one of their watches a large write, so they
+ * are marked as celebrities instead: their watches are kept out of the feeds and counted when a follower reads the
+ * Following list.
+ * <p>
+ * A change to who follows a user holds an exclusive advisory lock on that user, and recording their watches holds a
+ * shared one, so a watch recorded while someone starts or stops following its watcher is counted exactly once.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class FollowingFeed {
+
+    // The most followers a user can have before their watches stop being fanned out to their followers' feeds.
+    private static final int FANOUT_CAP = Integer.getInteger("feed.fanoutCap", 1000);
+
+    // The first key of the advisory locks taken on a followed user; the second key is the user's uid.
+    public static final int LOCK_CLASS = 32032;
+
+    /**
+     * This makes one user follow another, adding the followed user's watches to the follower's feed in the same
+     * transaction. A user whose new follower takes them past the fan-out cap is made a celebrity.
+     *
+     * @param con        The connection to follow with.
+     * @param followerId The uid of the user following.
+     * @param followedId The uid of the user being followed.
+     * @throws SQLException if the follow breaks a constraint, such as following oneself or someone already followed.
+     */
+    public static void follow(Connection con, int followerId, int followedId) throws SQLException {
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try {
+            lockFollowed(con, followedId);
+            try (PreparedStatement followStmt = con.prepareStatement(
+                    "INSERT INTO follows(followeruid, followeduid) VALUES (?, ?)")) {
+                followStmt.setInt(1, followerId);
+                followStmt.setInt(2, followedId);
+                followStmt.executeUpdate();
+            }
+            if (!isCelebrity(con, followedId)) {
+                applyHistory(con, followerId, followedId, 1);
+                try (PreparedStatement countStmt = con.prepareStatement(
+                        "SELECT count(followeruid) AS totalFollowers FROM follows WHERE followeduid = ?")) {
+                    countStmt.setInt(1, followedId);
+                    ResultSet countSet = countStmt.executeQuery();
+                    countSet.next();
+                    if (countSet.getInt("totalFollowers") > FANOUT_CAP) {
+                        promote(con, followedId);
+                    }
+                }
+            }
+            con.commit();
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * This makes one user stop following another, removing the followed user's watches from the follower's feed in the
+     * same transaction.
+     *
+     * @param con        The connection to unfollow with.
+     * @param followerId The uid of the user unfollowing.
+     * @param followedId The uid of the user being unfollowed.
+     * @return true if the follower was following the user.
+     */
+    public static boolean unfollow(Connection con, int followerId, int followedId) throws SQLException {
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try {
+            lockFollowed(con, followedId);
+            int rowsDeleted;
+            try (PreparedStatement unfollowStmt = con.prepareStatement(
+                    "DELETE FROM follows WHERE followeruid = ? AND followeduid = ?")) {
+                unfollowStmt.setInt(1, followerId);
+                unfollowStmt.setInt(2, followedId);
+                rowsDeleted = unfollowStmt.executeUpdate();
+            }
+            if (rowsDeleted == 1 && !isCelebrity(con, followedId)) {
+                applyHistory(con, followerId, followedId, -1);
+            }
+            con.commit();
+            return rowsDeleted == 1;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * This makes a celebrity of every user already past the fan-out cap, which covers the follows made before the
+     * feeds existed and a cap lowered since the last start. Celebrities stay celebrities if the cap is raised.
+     *
+     * @param con The connection to promote users with.
+     */
+    public static void promotePopular(Connection con) throws SQLException {
+        List<Integer> popular = new ArrayList<>();
+        try (PreparedStatement popularStmt = con.prepareStatement("SELECT followeduid FROM follows " +
+                "WHERE followeduid NOT IN (SELECT uid FROM feed_celebrity) GROUP BY followeduid HAVING COUNT(*) > ?")) {
+            popularStmt.setInt(1, FANOUT_CAP);
+            ResultSet popularSet = popularStmt.executeQuery();
+            while (popularSet.next()) {
+                popular.add(popularSet.getInt("followeduid"));
+            }
+        }
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try {
+            for (int uid : popular) {
+                lockFollowed(con, uid);
+                promote(con, uid);
+                con.commit();
+            }
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * This finds the users a user follows whose watches are not in the user's feed, and must be counted on read.
+     *
+     * @param con    The connection to query with.
+     * @param userId The uid of the following user.
+     * @return the uids of the celebrities the user follows.
+     */
+    public static int[] followedCelebrities(Connection con, int userId) throws SQLException {
+        try (PreparedStatement celebrityStmt = con.prepareStatement("SELECT f.followeduid FROM follows f, " +
+                "feed_celebrity c WHERE f.followeruid = ? AND c.uid = f.followeduid ORDER BY f.followeduid")) {
+            celebrityStmt.setInt(1, userId);
+            ResultSet celebritySet = celebrityStmt.executeQuery();
+            List<Integer> celebrities = new ArrayList<>();
+            while (celebritySet.next()) {
+                celebrities.add(celebritySet.getInt(1));
+            }
+            return celebrities.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private static void lockFollowed(Connection con, int followedId) throws SQLException {
+        try (PreparedStatement lockStmt = con.prepareStatement("SELECT pg_advisory_xact_lock(?, ?)")) {
+            lockStmt.setInt(1, LOCK_CLASS);
+            lockStmt.setInt(2, followedId);
+            lockStmt.execute();
+        }
+    }
+
+    private static boolean isCelebrity(Connection con, int uid) throws SQLException {
+        try (PreparedStatement celebrityStmt = con.prepareStatement("SELECT 1 FROM feed_celebrity WHERE uid = ?")) {
+            celebrityStmt.setInt(1, uid);
+            return celebrityStmt.executeQuery().next();
+        }
+    }
+
+    private static void applyHistory(Connection con, int followerId, int followedId, int direction)
+            throws SQLException {
+        try (PreparedStatement applyStmt = con.prepareStatement("SELECT following_feed_apply(?, ?, ?)")) {
+            applyStmt.setInt(1, followerId);
+            applyStmt.setInt(2, followedId);
+            applyStmt.setInt(3, direction);
+            applyStmt.execute();
+        }
+    }
+
+    private static void promote(Connection con, int uid) throws SQLException {
+        try (PreparedStatement promoteStmt = con.prepareStatement("SELECT following_feed_promote(?)")) {
+            promoteStmt.setInt(1, uid);
+            promoteStmt.execute();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.Session;
+import java.io.IOException;
 import java.sql.*;
 import java.util.Properties;
 
@@ -17,82 +18,124 @@ import java.util.Properties;
 public class InitConnection {
 
     // Technically does not need to be static since there are no other instances of InitConnection.
-    private static Connection con = null;
-
-    private static String url;
-
-    private static Properties props;
+    private static ConnectionPool pool = null;
 
     /**
-     * This checks if the current connection is still open. If it is open, it is returned, otherwise a new connection
-     * is opened and returned. If any errors occur, a message is printed to the user and then the program ends.
+     * This borrows a connection from the shared connection pool. The connection must be closed once the caller is
+     * done with it, which returns it to the pool rather than closing the underlying database connection.
      *
-     * @return Connection if it was still open or a new one was made, otherwise program exits.
+     * @return Connection borrowed from the pool.
+     * @throws SQLException if no connection could be borrowed before the pool's acquire timeout.
      */
-    public static Connection getCon() throws SQLException{
-        try {
-            // If connection is still open, just return it as is.
-            if (!con.isClosed()) {
-                return con;
-            }
-
-            // Otherwise, attempt to re-open it.
-            con = DriverManager.getConnection(url, props);
-            if(con == null){
-                System.out.println("Connection failed.");
-                System.exit(1);
-            }else{
-                return con;
-            }
-        }catch(SQLException e){
-            System.out.println("Encountered unexpected error:  " + e.getMessage() + " Closing connection.");
-            if (con != null && !con.isClosed()) {
-                con.close();
-            }
-            System.exit(1);
+    public static Connection getCon() throws SQLException {
+        if (pool == null) {
+            throw new SQLException("The connection pool has not been initialized.");
         }
-        return null;
+        return pool.borrow();
+    }
+
+    /**
+     * This returns the shared connection pool, mainly so its metrics can be reported.
+     *
+     * @return the connection pool used by every page.
+     */
+    public static ConnectionPool getPool() {
+        return pool;
     }
 
     /**
-     * This method initializes the ssh tunnel and PostgreSQL connection used for all SQL queries during program
-     * execution. After initializing the session, the login page is called to begin user input.
+     * This method initializes the ssh tunnel and PostgreSQL connection pool used for all SQL queries during program
+     * execution. After initializing the pool, the login page is called to begin user input, or if the server flag is
+     * given, a server is started that runs the login page for every client that connects.
+     * <p>
+     * Setting -Ddb.url (with -Ddb.user and -Ddb.password) connects straight to that database instead of opening the
+     * ssh tunnel, which is how a local PostgreSQL is used for testing.
      *
-     * @param  args  User arguments, though none are used in this program.
+     * @param  args  Either no arguments for a terminal session, or "--server [port]" to serve clients over TCP.
      */
-    public static void main(String[] args) throws SQLException {
+    public static void main(String[] args) {
         String username = "";
         String password = "";
         Session session = null;
         try {
+            String url = System.getProperty("db.url");
+            if (url == null) {
+                // Set up SSH tunnel.
+                java.util.Properties config = new java.util.Properties();
+                config.put("StrictHostKeyChecking", "no");
+                JSch jsch = new JSch();
+                session = jsch.getSession(username, "{server}", 22);
+                session.setPassword(password);
+                session.setConfig(config);
+                session.setConfig("PreferredAuthentications","publickey,keyboard-interactive,password");
+                session.connect();
+                int assigned_port = session.setPortForwardingL(5432, "127.0.0.1", 5432);
+                url = "jdbc:postgresql://127.0.0.1:"+ assigned_port;
+            } else {
+                username = System.getProperty("db.user", username);
+                password = System.getProperty("db.password", password);
+            }
 
-            // Set up SSH tunnel.
-            java.util.Properties config = new java.util.Properties();
-            config.put("StrictHostKeyChecking", "no");
-            JSch jsch = new JSch();
-            session = jsch.getSession(username, "{server}", 22);
-            session.setPassword(password);
-            session.setConfig(config);
-            session.setConfig("PreferredAuthentications","publickey,keyboard-interactive,password");
-            session.connect();
-            int assigned_port = session.setPortForwardingL(5432, "127.0.0.1", 5432);
-            url = "jdbc:postgresql://127.0.0.1:"+ assigned_port;
-
-            props = new Properties();
+            Properties props = new Properties();
             props.put("user", username);
             props.put("password", password);
 
             // Load the PostgreSQL driver.
             Class.forName("org.postgresql.Driver");
-            // Open a connection to the database.
-            con = DriverManager.getConnection(url, props);
-            if (con != null) {
-                // Initialize the application by going to the welcome page.
-                LoginPage.WelcomePage();
-
+            // Create the connection pool and open a first connection to make sure the database is reachable.
+            pool = new ConnectionPool(url, props);
+            try (Connection con = getCon()) {
+                con.isValid(5);
+                if (SchemaMigrations.ENABLED) {
+                    SchemaMigrations.migrate(con);
+                }
+                FollowingFeed.promotePopular(con);
+                if (SearchIndexes.ENABLED) {
+                    SearchIndexes.load(con);
+                }
+                if (WatchHistory.SKETCH_ENABLED) {
+                    WatchHistory.load(con);
+                }
+                if (UserProfiles.ENABLED) {
+                    UserProfiles.load(con);
+                }
+                if (ItemMatrix.ENABLED) {
+                    ItemMatrix.load(con);
+                }
+            }
+            if (WatchQueue.ENABLED) {
+                WatchQueue.start();
+            }
+            if (LastAccess.ENABLED) {
+                LastAccess.start();
+            }
+            if (Leaderboards.ENABLED) {
+                Leaderboards.start();
+            }
+            if (RecommendationCache.ENABLED) {
+                RecommendationCache.start();
+            }
+            if (args.length > 0 && args[0].equals("--server")) {
+                int port = args.length > 1 ? Integer.parseInt(args[1]) : MovieServer.DEFAULT_PORT;
+                try (MovieServer server = new MovieServer(port, pool)) {
+                    // On Ctrl+C, stop accepting clients and hold the JVM open until this thread has closed the server
+                    // and everything below, so sessions in progress can finish and nothing unwritten is lost.
+                    Thread main = Thread.currentThread();
+                    Thread shutdown = new Thread(() -> {
+                        try {
+                            server.stop();
+                            main.join();
+                        } catch (IOException | InterruptedException ignored) {
+                            // Already shutting down, so there is nothing left to clean up.
+                        }
+                    });
+                    Runtime.getRuntime().addShutdownHook(shutdown);
+                    server.serve();
+                    System.out.println("Server stopped (" + server.stats() + ")");
+                }
             } else {
-                System.out.println("Connection failed.");
-                System.exit(1);
+                // Initialize the application by going to the welcome page.
+                LoginPage.WelcomePage(new UserSession(System.in, System.out, pool));
             }
         } catch (SQLException s) {
             // Handle any SQL exceptions that occur, which are all thrown up from lower methods since we should stop
@@ -102,9 +145,37 @@ public class InitConnection {
             // Handle any other exceptions that may occur.
             System.out.println("Exception " + e.getMessage());
         } finally {
-            if (con != null && !con.isClosed()) {
-                System.out.println("Closing Database Connection");
-                con.close();
+            if (pool != null) {
+                if (WatchQueue.ENABLED) {
+                    try {
+                        WatchQueue.close();
+                    } catch (InterruptedException ignored) {
+                        // Watches not yet written stay in the journal and are written at the next start.
+                    }
+                    System.out.println("Watch queue (" + WatchQueue.stats() + ")");
+                }
+                if (LastAccess.ENABLED) {
+                    try {
+                        LastAccess.close();
+                    } catch (InterruptedException ignored) {
+                        // Logins not yet written only leave lastaccess a little stale.
+                    }
+                    System.out.println("Last access (" + LastAccess.stats() + ")");
+                }
+                if (Leaderboards.ENABLED) {
+                    Leaderboards.close();
+                    System.out.println("Leaderboards (" + Leaderboards.stats() + ")");
+                }
+                if (RecommendationCache.ENABLED) {
+                    try {
+                        RecommendationCache.close();
+                    } catch (InterruptedException ignored) {
+                        // Only recommendations still warming up are lost, and they are computed again when asked for.
+                    }
+                    System.out.println("Recommendation cache (" + RecommendationCache.stats() + ")");
+                }
+                System.out.println("Closing Database Connections (" + pool.stats() + ")");
+                pool.close();
             }
             if (session != null && session.isConnected()) {
                 System.out.println("Closing SSH Connection");
@@ -0,0 +1,706 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class contains the item-item recommender, which finds movies like the ones a user has watched. It keeps a
+ * sparse matrix with a row for every movie, listing each other movie that some user has both watched or rated, how
+ * many users have both, and how much the users who rated both agreed about them. Two movies are as similar as the
+ * users they share, counted up for each who rated them alike and down for each who rated them far apart, relative to
+ * how many users each has, and a user's recommendations are the movies most similar to what they watched, weighted by
+ * how they rated it.
+ * <p>
+ * The matrix is stored as compressed sparse rows in primitive arrays, which -Drecommend.items.offHeap=true places
+ * outside the Java heap. It is built from watches and ratings at startup and updated as they are committed: pairs
+ * already in the matrix are updated in place, and pairs seen for the first time are kept aside and merged into the
+ * rows once -Drecommend.items.compactAt of them have built up. The merge runs on a background thread, which builds the
+ * new rows while the old ones keep answering and then swaps them in, so the session committing a watch never waits
+ * for it. The arrays a merge retires are kept and filled by the next merge if they are big enough, so at most two sets
+ * of them are ever allocated. Setting -Drecommend.items=false turns it off.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class ItemMatrix {
+
+    private static final int FETCH_SIZE = 10000;
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("recommend.items", "true"));
+
+    private static final boolean OFF_HEAP = Boolean.parseBoolean(System.getProperty("recommend.items.offHeap",
+            "false"));
+
+    private static final int COMPACT_AT = Integer.getInteger("recommend.items.compactAt", 10000);
+
+    // How much room a merge leaves past the pairs it stores, so the arrays it retires can hold the next merge's rows.
+    private static final double HEADROOM = 1.25;
+
+    // How many sets of scratch arrays are kept for recommending between calls. More calls than this at once each
+    // allocate their own, which are dropped afterwards.
+    private static final int SCRATCH_POOL = Integer.getInteger("recommend.items.scratch",
+            Runtime.getRuntime().availableProcessors());
+
+    // The most movies recommended.
+    public static final int LIMIT = 20;
+
+    /**
+     * A recommended movie and its score.
+     */
+    public record Scored(int mid, double score) {
+    }
+
+    /**
+     * The movies one user has watched or rated, sorted, with their rating of each or 0 if they have not rated it.
+     */
+    private static final class History {
+        private int[] mids = new int[4];
+        private byte[] ratings = new byte[4];
+        private int count;
+
+        int indexOf(int mid) {
+            return Arrays.binarySearch(mids, 0, count, mid);
+        }
+    }
+
+    /**
+     * A pair of movies not yet merged into the matrix.
+     */
+    private static final class Cell {
+        private int together;
+        private float agreement;
+    }
+
+    /**
+     * The scores of the movies one call is recommending, kept in a pool between calls and only reset where used.
+     */
+    private static final class Scratch {
+        private double[] scores = new double[0];
+        private boolean[] seen = new boolean[0];
+        private int[] touched = new int[64];
+    }
+
+    // Row m is the entries from offsets[m] up to offsets[m + 1]: the other movie, how many users have both, and the
+    // sum of how alike each user who rated both rated them.
+    private static int[] offsets = new int[1];
+    private static IntBuffer columns = IntBuffer.allocate(0);
+    private static IntBuffer together = IntBuffer.allocate(0);
+    private static FloatBuffer agreement = FloatBuffer.allocate(0);
+    // Pairs not yet in the rows, by row and then column.
+    private static Map<Integer, Map<Integer, Cell>> pending = new HashMap<>();
+    private static int pendingCount = 0;
+    // While a merge runs, the pending pairs it is merging. The rows and these pairs are not changed until it finishes,
+    // so every change made in the meantime goes to pending, even for a pair already in a row.
+    private static Map<Integer, Map<Integer, Cell>> merging = null;
+    // The arrays the last merge retired, which the next one fills if they are big enough.
+    private static IntBuffer spareColumns;
+    private static IntBuffer spareTogether;
+    private static FloatBuffer spareAgreement;
+    // Counted up by every load, so a merge of rows that have since been rebuilt is thrown away.
+    private static int generation = 0;
+    private static int compactions = 0;
+    private static long maxCompactNanos = 0;
+    // How many users have watched or rated each movie.
+    private static int[] users = new int[0];
+    private static final Map<Integer, History> histories = new HashMap<>();
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Pooled rather than kept per thread, since server sessions run on virtual threads that are never reused.
+    private static final ArrayBlockingQueue<Scratch> scratchPool = new ArrayBlockingQueue<>(SCRATCH_POOL);
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "item-matrix-compact");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static volatile boolean loaded = false;
+
+    /**
+     * This builds the matrix from every user's watches and ratings. Each row is built in turn by adding up the
+     * histories of the users with that movie into one array of counts, so only the rows themselves are ever stored.
+     *
+     * @param con The connection to read the tables with.
+     */
+    public static void load(Connection con) throws SQLException {
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        lock.writeLock().lock();
+        try {
+            histories.clear();
+            pending = new HashMap<>();
+            pendingCount = 0;
+            merging = null;
+            spareColumns = null;
+            spareTogether = null;
+            spareAgreement = null;
+            generation++;
+            int maxMid = 0;
+            try (PreparedStatement watchStmt = con.prepareStatement("SELECT DISTINCT uid, mid FROM watches")) {
+                watchStmt.setFetchSize(FETCH_SIZE);
+                ResultSet watchSet = watchStmt.executeQuery();
+                while (watchSet.next()) {
+                    add(histories.computeIfAbsent(watchSet.getInt(1), uid -> new History()), watchSet.getInt(2), 0);
+                    maxMid = Math.max(maxMid, watchSet.getInt(2));
+                }
+            }
+            try (PreparedStatement rateStmt = con.prepareStatement("SELECT uid, mid, rating FROM rates")) {
+                rateStmt.setFetchSize(FETCH_SIZE);
+                ResultSet rateSet = rateStmt.executeQuery();
+                while (rateSet.next()) {
+                    add(histories.computeIfAbsent(rateSet.getInt(1), uid -> new History()), rateSet.getInt(2),
+                            rateSet.getInt(3));
+                    maxMid = Math.max(maxMid, rateSet.getInt(2));
+                }
+            }
+
+            // The users with each movie, and their rating of it.
+            users = new int[maxMid + 1];
+            for (History history : histories.values()) {
+                for (int i = 0; i < history.count; i++) {
+                    users[history.mids[i]]++;
+                }
+            }
+            History[][] byMovie = new History[maxMid + 1][];
+            byte[][] ratingsByMovie = new byte[maxMid + 1][];
+            for (int mid = 0; mid <= maxMid; mid++) {
+                byMovie[mid] = new History[users[mid]];
+                ratingsByMovie[mid] = new byte[users[mid]];
+            }
+            int[] filled = new int[maxMid + 1];
+            for (History history : histories.values()) {
+                for (int i = 0; i < history.count; i++) {
+                    int mid = history.mids[i];
+                    ratingsByMovie[mid][filled[mid]] = history.ratings[i];
+                    byMovie[mid][filled[mid]++] = history;
+                }
+            }
+
+            int[] rowTogether = new int[maxMid + 1];
+            float[] rowAgreement = new float[maxMid + 1];
+            int[] rowColumns = new int[maxMid + 1];
+            offsets = new int[maxMid + 2];
+            List<int[]> builtColumns = new ArrayList<>();
+            List<int[]> builtTogether = new ArrayList<>();
+            List<float[]> builtAgreement = new ArrayList<>();
+            for (int mid = 0; mid <= maxMid; mid++) {
+                int size = 0;
+                for (int u = 0; u < byMovie[mid].length; u++) {
+                    History history = byMovie[mid][u];
+                    int rating = ratingsByMovie[mid][u];
+                    for (int i = 0; i < history.count; i++) {
+                        int other = history.mids[i];
+                        if (other == mid) {
+                            continue;
+                        }
+                        if (rowTogether[other]++ == 0) {
+                            rowColumns[size++] = other;
+                        }
+                        rowAgreement[other] += alike(rating, history.ratings[i]);
+                    }
+                }
+                Arrays.sort(rowColumns, 0, size);
+                int[] rowTogetherOut = new int[size];
+                float[] rowAgreementOut = new float[size];
+                for (int i = 0; i < size; i++) {
+                    rowTogetherOut[i] = rowTogether[rowColumns[i]];
+                    rowAgreementOut[i] = rowAgreement[rowColumns[i]];
+                    rowTogether[rowColumns[i]] = 0;
+                    rowAgreement[rowColumns[i]] = 0;
+                }
+                builtColumns.add(Arrays.copyOf(rowColumns, size));
+                builtTogether.add(rowTogetherOut);
+                builtAgreement.add(rowAgreementOut);
+                offsets[mid + 1] = offsets[mid] + size;
+            }
+            store(builtColumns, builtTogether, builtAgreement);
+            con.commit();
+        } finally {
+            lock.writeLock().unlock();
+            con.setAutoCommit(autoCommit);
+        }
+        loaded = true;
+    }
+
+    /**
+     * @return true if the matrix has been loaded and can recommend movies.
+     */
+    public static boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * This adds a committed watch to the matrix: the movie now shares one more user with each other movie in the
+     * user's history. Watching a movie already in the history changes nothing.
+     *
+     * @param userId  The uid of the user who watched the movie.
+     * @param movieId The mid of the movie watched.
+     */
+    public static void watched(int userId, int movieId) {
+        if (!loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            History history = histories.computeIfAbsent(userId, uid -> new History());
+            if (history.indexOf(movieId) < 0) {
+                addToHistory(history, movieId, 0);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This adds a committed rating to the matrix, replacing how alike any earlier rating of the movie by the user was
+     * to their ratings of the other movies they rated.
+     *
+     * @param userId  The uid of the user who rated the movie.
+     * @param movieId The mid of the movie rated.
+     * @param rating  The rating, from 1 to 5.
+     */
+    public static void rated(int userId, int movieId, int rating) {
+        if (!loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            History history = histories.computeIfAbsent(userId, uid -> new History());
+            int index = history.indexOf(movieId);
+            if (index < 0) {
+                addToHistory(history, movieId, rating);
+                return;
+            }
+            int previous = history.ratings[index];
+            history.ratings[index] = (byte) rating;
+            for (int i = 0; i < history.count; i++) {
+                if (i != index && history.ratings[i] != 0) {
+                    float change = alike(rating, history.ratings[i]) - alike(previous, history.ratings[i]);
+                    update(movieId, history.mids[i], 0, change);
+                    update(history.mids[i], movieId, 0, change);
+                }
+            }
+            compactIfFull();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This recommends the movies most like the ones a user has watched or rated. Each movie in the user's history
+     * adds its similarity to every movie it shares users with, weighted by the user's rating of it: an unrated movie
+     * counts as liked, a rating of 2 counts for nothing, and a rating of 1 counts against the movies like it. Movies
+     * the user has already watched or rated are left out.
+     *
+     * @param userId The uid of the user to recommend movies to.
+     * @return up to the limit of movies with a positive score, highest first, with ties in mid order.
+     */
+    public static List<Scored> recommend(int userId) {
+        List<Scored> recommended = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            History history = histories.get(userId);
+            if (history == null) {
+                return recommended;
+            }
+            Scratch scratch = scratchPool.poll();
+            if (scratch == null) {
+                scratch = new Scratch();
+            }
+            if (scratch.scores.length < users.length) {
+                scratch.scores = new double[users.length];
+                scratch.seen = new boolean[users.length];
+            }
+            int touched = 0;
+            for (int h = 0; h < history.count; h++) {
+                int mid = history.mids[h];
+                double weight = history.ratings[h] == 0 ? 1 : (history.ratings[h] - 2) / 2.0;
+                if (weight == 0) {
+                    continue;
+                }
+                Map<Integer, Cell> fresh = pending.getOrDefault(mid, Map.of());
+                if (merging == null) {
+                    // Pending pairs are never in a row, so each pair is in one place or the other.
+                    int start = mid + 1 < offsets.length ? offsets[mid] : 0;
+                    int end = mid + 1 < offsets.length ? offsets[mid + 1] : 0;
+                    for (int e = start; e < end; e++) {
+                        touched = score(scratch, touched, history, mid, columns.get(e),
+                                together.get(e) + agreement.get(e), weight);
+                    }
+                    for (Map.Entry<Integer, Cell> cell : fresh.entrySet()) {
+                        touched = score(scratch, touched, history, mid, cell.getKey(), shared(cell.getValue()),
+                                weight);
+                    }
+                } else {
+                    touched = scoreWhileMerging(scratch, touched, history, mid, fresh, weight);
+                }
+            }
+
+            // Pack each positive score with its mid so one sort of primitives orders them, best first.
+            long[] ranked = new long[touched];
+            int count = 0;
+            for (int t = 0; t < touched; t++) {
+                int mid = scratch.touched[t];
+                float score = (float) scratch.scores[mid];
+                if (score > 0) {
+                    ranked[count++] = (long) Float.floatToIntBits(score) << 32 | (Integer.MAX_VALUE - mid);
+                }
+                scratch.scores[mid] = 0;
+                scratch.seen[mid] = false;
+            }
+            // Only handed back once reset; if the pool is full it is left to the garbage collector.
+            scratchPool.offer(scratch);
+            Arrays.sort(ranked, 0, count);
+            for (int r = count - 1; r >= 0 && recommended.size() < LIMIT; r--) {
+                recommended.add(new Scored(Integer.MAX_VALUE - (int) ranked[r],
+                        Float.intBitsToFloat((int) (ranked[r] >>> 32))));
+            }
+            return recommended;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This returns the size of the matrix: how many movies and pairs of movies it has, how many of those pairs are
+     * waiting to be merged into the rows, and how many bytes the rows take.
+     *
+     * @return the current matrix stats.
+     */
+    public static String stats() {
+        lock.readLock().lock();
+        try {
+            return String.format("movies=%d pairs=%d pending=%d merging=%b bytes=%d spareBytes=%d offHeap=%b " +
+                            "compactions=%d maxCompact=%.2fms", offsets.length - 1, offsets[offsets.length - 1],
+                    pendingCount, merging != null, 4L * offsets.length + 12L * columns.capacity(),
+                    spareColumns == null ? 0 : 12L * spareColumns.capacity(), OFF_HEAP, compactions,
+                    maxCompactNanos / 1e6);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This is a helper method that adds one movie's contribution to another's score, unless the user already has the
+     * other movie. A pair is as similar as the users who have both, adjusted by how alike they rated it, relative to
+     * the geometric mean of how many users have each.
+     *
+     * @return how many movies have been scored so far.
+     */
+    private static int score(Scratch scratch, int touched, History history, int mid, int other, double shared,
+                             double weight) {
+        if (shared <= 0 || history.indexOf(other) >= 0) {
+            return touched;
+        }
+        if (!scratch.seen[other]) {
+            scratch.seen[other] = true;
+            if (touched == scratch.touched.length) {
+                scratch.touched = Arrays.copyOf(scratch.touched, touched * 2);
+            }
+            scratch.touched[touched++] = other;
+        }
+        scratch.scores[other] += weight * shared / Math.sqrt((double) users[mid] * users[other]);
+        return touched;
+    }
+
+    /**
+     * This is a helper method that scores the movies one movie shares users with while a merge is running, when a pair
+     * can have counts in its row or among the pairs being merged as well as among the pending pairs. The counts of each
+     * pair are added up before it is scored, and each pair is scored once.
+     *
+     * @return how many movies have been scored so far.
+     */
+    private static int scoreWhileMerging(Scratch scratch, int touched, History history, int mid,
+                                         Map<Integer, Cell> fresh, double weight) {
+        Map<Integer, Cell> merged = merging.getOrDefault(mid, Map.of());
+        int start = mid + 1 < offsets.length ? offsets[mid] : 0;
+        int end = mid + 1 < offsets.length ? offsets[mid + 1] : 0;
+        for (int e = start; e < end; e++) {
+            int other = columns.get(e);
+            touched = score(scratch, touched, history, mid, other,
+                    together.get(e) + agreement.get(e) + shared(fresh.get(other)), weight);
+        }
+        for (Map.Entry<Integer, Cell> cell : merged.entrySet()) {
+            touched = score(scratch, touched, history, mid, cell.getKey(),
+                    shared(cell.getValue()) + shared(fresh.get(cell.getKey())), weight);
+        }
+        for (Map.Entry<Integer, Cell> cell : fresh.entrySet()) {
+            if (!merged.containsKey(cell.getKey()) && find(mid, cell.getKey()) < 0) {
+                touched = score(scratch, touched, history, mid, cell.getKey(), shared(cell.getValue()), weight);
+            }
+        }
+        return touched;
+    }
+
+    private static double shared(Cell cell) {
+        return cell == null ? 0 : cell.together + cell.agreement;
+    }
+
+    /**
+     * This is a helper method that gives how alike two ratings of different movies by the same user are: 1 if they
+     * are the same, falling by a half for each star between them, so ratings more than 2 apart count against the pair.
+     * A movie the user has not rated adds nothing.
+     */
+    private static float alike(int rating, int otherRating) {
+        if (rating == 0 || otherRating == 0) {
+            return 0;
+        }
+        return 1 - Math.abs(rating - otherRating) / 2f;
+    }
+
+    /**
+     * This is a helper method that adds a movie to a user's history, sharing it with every movie already there. The
+     * caller must hold the write lock.
+     */
+    private static void addToHistory(History history, int movieId, int rating) {
+        if (movieId >= users.length) {
+            users = Arrays.copyOf(users, movieId + 1);
+        }
+        users[movieId]++;
+        for (int i = 0; i < history.count; i++) {
+            float alike = alike(rating, history.ratings[i]);
+            update(movieId, history.mids[i], 1, alike);
+            update(history.mids[i], movieId, 1, alike);
+        }
+        add(history, movieId, rating);
+        compactIfFull();
+    }
+
+    /**
+     * This is a helper method that inserts a movie into a history, or sets its rating if it is already there.
+     */
+    private static void add(History history, int movieId, int rating) {
+        int index = history.indexOf(movieId);
+        if (index >= 0) {
+            if (rating != 0) {
+                history.ratings[index] = (byte) rating;
+            }
+            return;
+        }
+        index = -index - 1;
+        if (history.count == history.mids.length) {
+            history.mids = Arrays.copyOf(history.mids, history.count * 2);
+            history.ratings = Arrays.copyOf(history.ratings, history.count * 2);
+        }
+        System.arraycopy(history.mids, index, history.mids, index + 1, history.count - index);
+        System.arraycopy(history.ratings, index, history.ratings, index + 1, history.count - index);
+        history.mids[index] = movieId;
+        history.ratings[index] = (byte) rating;
+        history.count++;
+    }
+
+    /**
+     * This is a helper method that changes one pair of movies, in place if it is already in its row and among the
+     * pending pairs otherwise. While a merge is running the rows are left as they are and every change is pending.
+     * The caller must hold the write lock.
+     */
+    private static void update(int row, int column, int addTogether, float addAgreement) {
+        int index = merging == null ? find(row, column) : -1;
+        if (index >= 0) {
+            together.put(index, together.get(index) + addTogether);
+            agreement.put(index, agreement.get(index) + addAgreement);
+            return;
+        }
+        Cell cell = pending.computeIfAbsent(row, r -> new HashMap<>()).get(column);
+        if (cell == null) {
+            cell = new Cell();
+            pending.get(row).put(column, cell);
+            pendingCount++;
+        }
+        cell.together += addTogether;
+        cell.agreement += addAgreement;
+    }
+
+    /**
+     * This is a helper method that finds a pair of movies in its row.
+     *
+     * @return the index of the pair in the arrays, or -1 if it is not in the row.
+     */
+    private static int find(int row, int column) {
+        if (row + 1 >= offsets.length) {
+            return -1;
+        }
+        int low = offsets[row];
+        int high = offsets[row + 1] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int found = columns.get(middle);
+            if (found < column) {
+                low = middle + 1;
+            } else if (found > column) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * This is a helper method that hands the pending pairs to a background merge once enough have built up, unless one
+     * is already running. The caller must hold the write lock.
+     */
+    private static void compactIfFull() {
+        if (pendingCount < COMPACT_AT || merging != null) {
+            return;
+        }
+        merging = pending;
+        pending = new HashMap<>();
+        pendingCount = 0;
+        int rows = Math.max(offsets.length - 1, users.length);
+        int[] baseOffsets = offsets;
+        IntBuffer baseColumns = columns;
+        IntBuffer baseTogether = together;
+        FloatBuffer baseAgreement = agreement;
+        IntBuffer reuseColumns = spareColumns;
+        IntBuffer reuseTogether = spareTogether;
+        FloatBuffer reuseAgreement = spareAgreement;
+        spareColumns = null;
+        spareTogether = null;
+        spareAgreement = null;
+        Map<Integer, Map<Integer, Cell>> cells = merging;
+        int merge = generation;
+        compactor.execute(() -> compact(merge, rows, baseOffsets, baseColumns, baseTogether, baseAgreement, cells,
+                reuseColumns, reuseTogether, reuseAgreement));
+    }
+
+    /**
+     * This is a helper method, run on the background thread, that merges pairs into a copy of the rows and swaps the
+     * copy in. Neither the rows nor the pairs change while it runs, so it reads them without the lock. Rows with
+     * nothing to merge are copied whole, and only the columns merged into a row are sorted. It takes the write lock
+     * only to swap the new rows in and to move the changes made in the meantime into them.
+     */
+    private static void compact(int merge, int rows, int[] baseOffsets, IntBuffer baseColumns,
+                                IntBuffer baseTogether, FloatBuffer baseAgreement,
+                                Map<Integer, Map<Integer, Cell>> cells, IntBuffer reuseColumns,
+                                IntBuffer reuseTogether, FloatBuffer reuseAgreement) {
+        long startNanos = System.nanoTime();
+        int[][] added = new int[rows][];
+        for (Map.Entry<Integer, Map<Integer, Cell>> row : cells.entrySet()) {
+            int[] rowColumns = row.getValue().keySet().stream().mapToInt(Integer::intValue).toArray();
+            Arrays.sort(rowColumns);
+            added[row.getKey()] = rowColumns;
+        }
+        int[] merged = new int[rows + 1];
+        for (int row = 0; row < rows; row++) {
+            int base = row + 1 < baseOffsets.length ? baseOffsets[row + 1] - baseOffsets[row] : 0;
+            merged[row + 1] = merged[row] + base + (added[row] == null ? 0 : added[row].length);
+        }
+        int size = merged[rows];
+        int capacity = (int) Math.max(size, Math.min(Integer.MAX_VALUE / 4, (long) (size * HEADROOM)));
+        boolean reuse = reuseColumns != null && reuseColumns.capacity() >= size;
+        IntBuffer newColumns = reuse ? reuseColumns : allocateInts(capacity);
+        IntBuffer newTogether = reuse ? reuseTogether : allocateInts(capacity);
+        FloatBuffer newAgreement = reuse ? reuseAgreement : allocateFloats(capacity);
+        for (int row = 0; row < rows; row++) {
+            int start = row + 1 < baseOffsets.length ? baseOffsets[row] : 0;
+            int end = row + 1 < baseOffsets.length ? baseOffsets[row + 1] : 0;
+            int i = merged[row];
+            if (added[row] == null) {
+                newColumns.put(i, baseColumns, start, end - start);
+                newTogether.put(i, baseTogether, start, end - start);
+                newAgreement.put(i, baseAgreement, start, end - start);
+                continue;
+            }
+            // Both are sorted and never share a column, so they merge in one pass.
+            Map<Integer, Cell> rowCells = cells.get(row);
+            int e = start;
+            for (int column : added[row]) {
+                while (e < end && baseColumns.get(e) < column) {
+                    newColumns.put(i, baseColumns.get(e));
+                    newTogether.put(i, baseTogether.get(e));
+                    newAgreement.put(i++, baseAgreement.get(e++));
+                }
+                Cell cell = rowCells.get(column);
+                newColumns.put(i, column);
+                newTogether.put(i, cell.together);
+                newAgreement.put(i++, cell.agreement);
+            }
+            newColumns.put(i, baseColumns, e, end - e);
+            newTogether.put(i, baseTogether, e, end - e);
+            newAgreement.put(i, baseAgreement, e, end - e);
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (merge != generation) {
+                return;
+            }
+            offsets = merged;
+            columns = newColumns;
+            together = newTogether;
+            agreement = newAgreement;
+            spareColumns = baseColumns;
+            spareTogether = baseTogether;
+            spareAgreement = baseAgreement;
+            merging = null;
+            // The changes made during the merge to pairs now in the rows are added to them and stop being pending.
+            for (Iterator<Map.Entry<Integer, Map<Integer, Cell>>> rowIt = pending.entrySet().iterator();
+                 rowIt.hasNext(); ) {
+                Map.Entry<Integer, Map<Integer, Cell>> row = rowIt.next();
+                for (Iterator<Map.Entry<Integer, Cell>> cellIt = row.getValue().entrySet().iterator();
+                     cellIt.hasNext(); ) {
+                    Map.Entry<Integer, Cell> cell = cellIt.next();
+                    int index = find(row.getKey(), cell.getKey());
+                    if (index >= 0) {
+                        together.put(index, together.get(index) + cell.getValue().together);
+                        agreement.put(index, agreement.get(index) + cell.getValue().agreement);
+                        cellIt.remove();
+                        pendingCount--;
+                    }
+                }
+                if (row.getValue().isEmpty()) {
+                    rowIt.remove();
+                }
+            }
+            compactions++;
+            maxCompactNanos = Math.max(maxCompactNanos, System.nanoTime() - startNanos);
+            compactIfFull();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This is a helper method that copies built rows into the matrix's arrays, on or off the heap. The offsets must
+     * already be set for them.
+     */
+    private static void store(List<int[]> rowColumns, List<int[]> rowTogether, List<float[]> rowAgreement) {
+        int size = offsets[offsets.length - 1];
+        columns = allocateInts(size);
+        together = allocateInts(size);
+        agreement = allocateFloats(size);
+        for (int row = 0; row < rowColumns.size(); row++) {
+            columns.put(rowColumns.get(row));
+            together.put(rowTogether.get(row));
+            agreement.put(rowAgreement.get(row));
+        }
+    }
+
+    private static IntBuffer allocateInts(int entries) {
+        return OFF_HEAP ? direct(entries).asIntBuffer() : IntBuffer.allocate(entries);
+    }
+
+    private static FloatBuffer allocateFloats(int entries) {
+        return OFF_HEAP ? direct(entries).asFloatBuffer() : FloatBuffer.allocate(entries);
+    }
+
+    private static ByteBuffer direct(int entries) {
+        return ByteBuffer.allocateDirect(entries * 4).order(ByteOrder.nativeOrder());
+    }
+}
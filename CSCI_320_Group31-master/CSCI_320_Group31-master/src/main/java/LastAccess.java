@@ -0,0 +1,162 @@
+import org.postgresql.PGConnection;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class contains the recording of when users last logged in. Rather than updating a user's lastaccess while they
+ * wait to log in, the time of the login is kept in memory, and a background thread writes every login since the last
+ * flush with one UPDATE on a fixed schedule. A user who logs in several times between flushes is written once, with
+ * their latest login, and each flush touches every user's row at most once, so a burst of logins does not turn into a
+ * burst of row locks on users.
+ * <p>
+ * Logins not yet flushed are written when the application shuts down, but are lost if it crashes, which only leaves a
+ * lastaccess a few seconds stale. Setting -Dlastaccess.batch=false writes each login as it happens instead, and
+ * -Dlastaccess.flushSeconds sets how often logins are written.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class LastAccess {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("lastaccess.batch", "true"));
+
+    private static final int FLUSH_SECONDS = Integer.getInteger("lastaccess.flushSeconds", 5);
+
+    // Each login is written as the given number of milliseconds before the flush, so lastaccess keeps the database's
+    // clock and the time of the login rather than the time of the flush. A row is never moved back to an older login.
+    private static final String FLUSH_QUERY = "UPDATE users u SET lastaccess = v.accessed " +
+            "FROM (SELECT uid, NOW() - delay * INTERVAL '1 MILLISECOND' AS accessed " +
+            "FROM unnest(?::int[], ?::bigint[]) AS d(uid, delay)) v " +
+            "WHERE u.uid = v.uid AND (u.lastaccess IS NULL OR u.lastaccess < v.accessed)";
+
+    // The time of each user's latest login that has not been written yet.
+    private static final Map<Integer, Long> pending = new ConcurrentHashMap<>();
+    private static final AtomicLong logins = new AtomicLong();
+    private static final AtomicLong flushes = new AtomicLong();
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong failures = new AtomicLong();
+    private static final AtomicLong maxBatch = new AtomicLong();
+    private static final AtomicLong maxFlushNanos = new AtomicLong();
+    // Only started and stopped by the main thread, alongside the connection pool.
+    private static ScheduledExecutorService flusher = null;
+    private static volatile boolean running = false;
+
+    /**
+     * This starts writing logins in the background on the flush schedule.
+     */
+    public static void start() {
+        if (flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lastaccess-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(LastAccess::flush, FLUSH_SECONDS, FLUSH_SECONDS, TimeUnit.SECONDS);
+        running = true;
+    }
+
+    /**
+     * This stops the background flushes and writes the logins still waiting, so a clean shutdown loses none of them.
+     */
+    public static void close() throws InterruptedException {
+        if (flusher != null) {
+            running = false;
+            flusher.shutdown();
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+            flusher = null;
+            flush();
+        }
+    }
+
+    /**
+     * This records that a user just logged in. While the background writer is running, the login is only noted in
+     * memory; otherwise the user's lastaccess is updated right away.
+     *
+     * @param userId The uid of the user logging in.
+     */
+    public static void record(int userId) throws SQLException {
+        logins.incrementAndGet();
+        if (running) {
+            pending.put(userId, System.currentTimeMillis());
+            return;
+        }
+        try (Connection con = InitConnection.getCon();
+             PreparedStatement accessStmt = con.prepareStatement("UPDATE users SET lastaccess = NOW() WHERE uid = ?")) {
+            accessStmt.setInt(1, userId);
+            accessStmt.executeUpdate();
+        }
+        written.incrementAndGet();
+    }
+
+    /**
+     * This returns the writer metrics: how many logins were recorded and how many rows the flushes wrote for them,
+     * which is fewer when users logged in more than once between flushes.
+     *
+     * @return the current lastaccess stats.
+     */
+    public static String stats() {
+        return String.format("logins=%d written=%d pending=%d flushes=%d failures=%d maxBatch=%d maxFlush=%.2fms",
+                logins.get(), written.get(), pending.size(), flushes.get(), failures.get(), maxBatch.get(),
+                maxFlushNanos.get() / 1e6);
+    }
+
+    /**
+     * This writes every login waiting in memory with one statement. A login made while the flush runs stays waiting
+     * for the next one, and if the write fails the logins are put back unless the user has logged in again since.
+     */
+    private static void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Integer> uids = new ArrayList<>(pending.size());
+        List<Long> times = new ArrayList<>(pending.size());
+        for (Map.Entry<Integer, Long> login : pending.entrySet()) {
+            // Only take the login if it is still the latest, so a newer one is kept for the next flush.
+            if (pending.remove(login.getKey(), login.getValue())) {
+                uids.add(login.getKey());
+                times.add(login.getValue());
+            }
+        }
+        if (uids.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        int[] userIds = new int[uids.size()];
+        long[] delays = new long[uids.size()];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = uids.get(i);
+            delays[i] = Math.max(0, now - times.get(i));
+        }
+        try (Connection con = InitConnection.getCon();
+             PreparedStatement flushStmt = con.prepareStatement(FLUSH_QUERY)) {
+            flushStmt.setArray(1, SearchIndexes.idArray(con, userIds));
+            flushStmt.setArray(2, con.unwrap(PGConnection.class).createArrayOf("int8", delays));
+            flushStmt.executeUpdate();
+            flushes.incrementAndGet();
+            written.addAndGet(userIds.length);
+            maxBatch.accumulateAndGet(userIds.length, Math::max);
+            maxFlushNanos.accumulateAndGet(System.nanoTime() - start, Math::max);
+        } catch (SQLException | RuntimeException e) {
+            // Put the logins back for the next flush, unless a newer login for the same user is already waiting.
+            failures.incrementAndGet();
+            for (int i = 0; i < userIds.length; i++) {
+                pending.putIfAbsent(userIds[i], times.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class contains the cache of the Browse lists that are the same for every user: trending over each window and
+ * new releases. A background thread rebuilds every list on a fixed schedule, and users are always served the last
+ * finished snapshot, so a list is shown without querying the database and the previous snapshot keeps being served
+ * while the next one is built. If a rebuild fails, the previous snapshot is kept until the next one succeeds. Until the
+ * first snapshot of a list is ready, callers get null and build the list themselves.
+ * <p>
+ * Setting -Dleaderboards=false turns the cache off, and -Dleaderboards.refreshSeconds sets how often the lists are
+ * rebuilt.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class Leaderboards {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("leaderboards", "true"));
+
+    private static final int REFRESH_SECONDS = Integer.getInteger("leaderboards.refreshSeconds", 60);
+
+    /**
+     * The query that builds one list, run with a connection borrowed from the pool.
+     */
+    private interface Loader {
+        List<MoviePage.SearchResult> load(Connection con) throws SQLException;
+    }
+
+    /**
+     * The cached lists and how each is built.
+     */
+    private enum Board {
+        TRENDING_7(con -> MoviePage.trendingResults(con, 7)),
+        TRENDING_30(con -> MoviePage.trendingResults(con, 30)),
+        TRENDING_90(con -> MoviePage.trendingResults(con, 90)),
+        NEW_RELEASES(MoviePage::newReleasesResults);
+
+        private final Loader loader;
+
+        Board(Loader loader) {
+            this.loader = loader;
+        }
+    }
+
+    /**
+     * A finished list, with when it was built and how long building it took.
+     */
+    private record Snapshot(List<MoviePage.SearchResult> results, long builtAtMillis, long buildNanos) {
+    }
+
+    private static final Map<Board, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private static final AtomicLong refreshCount = new AtomicLong();
+    private static final AtomicLong failureCount = new AtomicLong();
+    private static final AtomicLong maxBuildNanos = new AtomicLong();
+    // The oldest snapshot handed to a user, which is how stale a served list has been at worst.
+    private static final AtomicLong maxServedAgeMillis = new AtomicLong();
+    // Only started and stopped by the main thread, alongside the connection pool.
+    private static ScheduledExecutorService refresher = null;
+
+    /**
+     * This starts rebuilding the lists in the background, beginning right away and then on the refresh schedule.
+     */
+    public static void start() {
+        if (refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "leaderboard-refresher");
+            t.setDaemon(true);
+            return t;
+        });
+        refresher.scheduleWithFixedDelay(Leaderboards::refreshAll, 0, REFRESH_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * This stops the background rebuilds. Lists already built keep being served.
+     */
+    public static void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * @param days The trending window, which must be 7, 30, or 90 days.
+     * @return the cached trending list for the window, or null if it has not been built yet.
+     */
+    public static List<MoviePage.SearchResult> trending(int days) {
+        return serve(switch (days) {
+            case 7 -> Board.TRENDING_7;
+            case 30 -> Board.TRENDING_30;
+            default -> Board.TRENDING_90;
+        });
+    }
+
+    /**
+     * @return the cached new releases list, or null if it has not been built yet.
+     */
+    public static List<MoviePage.SearchResult> newReleases() {
+        return serve(Board.NEW_RELEASES);
+    }
+
+    /**
+     * This returns the cache metrics: how old each list is and how long it took to build, plus totals across every
+     * rebuild.
+     *
+     * @return the current leaderboard stats.
+     */
+    public static String stats() {
+        long now = System.currentTimeMillis();
+        StringJoiner lists = new StringJoiner(" ");
+        for (Board board : Board.values()) {
+            Snapshot snapshot = snapshots.get(board);
+            if (snapshot != null) {
+                lists.add(String.format("%s age=%.1fs build=%.2fms", board.name().toLowerCase(),
+                        (now - snapshot.builtAtMillis()) / 1e3, snapshot.buildNanos() / 1e6));
+            }
+        }
+        return String.format("%s refreshes=%d failures=%d maxBuild=%.2fms maxServedAge=%.1fs", lists,
+                refreshCount.get(), failureCount.get(), maxBuildNanos.get() / 1e6, maxServedAgeMillis.get() / 1e3);
+    }
+
+    private static List<MoviePage.SearchResult> serve(Board board) {
+        if (!ENABLED) {
+            return null;
+        }
+        Snapshot snapshot = snapshots.get(board);
+        if (snapshot == null) {
+            return null;
+        }
+        maxServedAgeMillis.accumulateAndGet(System.currentTimeMillis() - snapshot.builtAtMillis(), Math::max);
+        return snapshot.results();
+    }
+
+    private static void refreshAll() {
+        for (Board board : Board.values()) {
+            long start = System.nanoTime();
+            try (Connection con = InitConnection.getCon()) {
+                List<MoviePage.SearchResult> results = List.copyOf(board.loader.load(con));
+                long buildNanos = System.nanoTime() - start;
+                // Swapping in the finished snapshot is the only write, so readers never see a half-built list.
+                snapshots.put(board, new Snapshot(results, System.currentTimeMillis(), buildNanos));
+                refreshCount.incrementAndGet();
+                maxBuildNanos.accumulateAndGet(buildNanos, Math::max);
+            } catch (SQLException | RuntimeException e) {
+                // Keep serving the previous snapshot; the next scheduled refresh tries again.
+                failureCount.incrementAndGet();
+            }
+        }
+    }
+}
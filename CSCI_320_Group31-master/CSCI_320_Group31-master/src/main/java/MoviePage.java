@@ -1,8 +1,16 @@
+import java.sql.Array;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.Scanner;
+import java.sql.Timestamp;
+import java.time.DateTimeException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This class contains methods that show a menu to users, allowing them to search, watch, and rate movies.
@@ -14,50 +22,166 @@ import java.util.Scanner;
  * @author Veronika Zsenits vmz5751
  */
 public class MoviePage {
-    private static final Scanner InputReader = new Scanner(System.in);
-    private static int UserID;
+
+    /**
+     * The columns of a search result row that are read from the search query itself. The first genre and studio are
+     * only read for searches, which can be sorted by them, and are null otherwise.
+     */
+    private record MovieRow(String title, int mid, Timestamp date, int length, String mpaa, String gname,
+                            String sname) {
+    }
+
+    /**
+     * A search result kept in a search's result cache or a leaderboard: the movie and its line of the results table,
+     * already filled in with its details.
+     */
+    record SearchResult(MovieRow movie, String line) {
+    }
+
+    // The number of movies shown on each page of search results.
+    private static final int PAGE_SIZE = Integer.getInteger("search.pageSize", 20);
+
+    // The most results a search reads into memory to sort them there. Sorting a larger search pages it from the
+    // database in the chosen order instead.
+    private static final int CACHE_ROWS = Integer.getInteger("search.cacheRows", 1000);
+
+    // The most titles and people a fuzzy search shows, and how similar they must be to the search text to be shown.
+    private static final int FUZZY_LIMIT = Integer.getInteger("search.fuzzyLimit", 10);
+    private static final double FUZZY_THRESHOLD = Double.parseDouble(System.getProperty("search.fuzzyThreshold",
+            "0.3"));
+
+    // The comparators behind the sort orders, built once. Every order breaks ties by movie id, and the descending
+    // orders reverse every key. Titles, genres, and studios are compared with String.compareTo, by character code,
+    // so upper case sorts before lower case and accented letters after z; the database's own order, used for the
+    // pages of a search that is not cached, only agrees with this under the C collation.
+    private static final Map<MovieSearch.SortOrder, Comparator<SearchResult>> RESULT_ORDERS =
+            new EnumMap<>(MovieSearch.SortOrder.class);
+
+    static {
+        Comparator<SearchResult> byTitle = Comparator.comparing(r -> r.movie().title(),
+                Comparator.nullsLast(Comparator.naturalOrder()));
+        Comparator<SearchResult> byDate = Comparator.comparing(r -> r.movie().date(),
+                Comparator.nullsLast(Comparator.naturalOrder()));
+        Comparator<SearchResult> byGenre = Comparator.comparing(r -> r.movie().gname(),
+                Comparator.nullsLast(Comparator.naturalOrder()));
+        Comparator<SearchResult> byStudio = Comparator.comparing(r -> r.movie().sname(),
+                Comparator.nullsLast(Comparator.naturalOrder()));
+        Comparator<SearchResult> byMid = Comparator.comparingInt(r -> r.movie().mid());
+        RESULT_ORDERS.put(MovieSearch.SortOrder.TITLE_ASC, byTitle.thenComparing(byMid));
+        RESULT_ORDERS.put(MovieSearch.SortOrder.TITLE_DESC, byTitle.thenComparing(byMid).reversed());
+        RESULT_ORDERS.put(MovieSearch.SortOrder.DATE_ASC, byDate.thenComparing(byMid));
+        RESULT_ORDERS.put(MovieSearch.SortOrder.DATE_DESC, byDate.thenComparing(byMid).reversed());
+        RESULT_ORDERS.put(MovieSearch.SortOrder.GENRE_ASC, byGenre.thenComparing(byMid));
+        RESULT_ORDERS.put(MovieSearch.SortOrder.GENRE_DESC, byGenre.thenComparing(byMid).reversed());
+        RESULT_ORDERS.put(MovieSearch.SortOrder.STUDIO_ASC, byStudio.thenComparing(byMid));
+        RESULT_ORDERS.put(MovieSearch.SortOrder.STUDIO_DESC, byStudio.thenComparing(byMid).reversed());
+    }
+
+    /**
+     * The paging state of one search. Every result read so far is kept in order with its details, so going back a page
+     * never returns to the database. Until every result has been read, the next page is read from the database by
+     * keyset in the current order, starting right after the sort key of the last row read. Once every result has been
+     * read they form the result cache, and from then on sorting and paging happen in memory.
+     */
+    private static final class ResultPages {
+        private final MovieSearch search;
+        private MovieSearch.SortOrder order = MovieSearch.SortOrder.DEFAULT;
+        private List<SearchResult> read = new ArrayList<>();
+        private Object[] lastKey;
+        private boolean cached;
+        private int offset;
+
+        ResultPages(MovieSearch search) {
+            this.search = search;
+        }
+
+        void sort(MovieSearch.SortOrder order) {
+            read.sort(RESULT_ORDERS.get(order));
+            offset = 0;
+        }
+
+        void reorder(MovieSearch.SortOrder order) {
+            this.order = order;
+            read = new ArrayList<>();
+            lastKey = null;
+            offset = 0;
+        }
+
+        int pageNumber() {
+            return offset / PAGE_SIZE + 1;
+        }
+
+        boolean hasNext() {
+            // Until the search is cached, the row fetched past the last page read showed there are more.
+            return !cached || offset + PAGE_SIZE < read.size();
+        }
+
+        boolean next() {
+            if (!hasNext()) {
+                return false;
+            }
+            offset += PAGE_SIZE;
+            return true;
+        }
+
+        boolean previous() {
+            if (offset == 0) {
+                return false;
+            }
+            offset -= PAGE_SIZE;
+            return true;
+        }
+    }
 
     /**
      * This method prints out the options of the menu options for the Movie page, allowing users to enter a submenu
      * to search movies, watch a movie, or rate a movie. If a user exits, they are taken back to the main page
      *
-     * @param id The int representing the uid of the currently logged-in user.
+     * @param session The session of the currently logged-in user.
      */
-    public static void MovieMenu(int id) throws SQLException {
-        UserID = id;
+    public static void MovieMenu(UserSession session) throws SQLException {
         while (true) {
-            System.out.println("Movie Menu: Please select one of the following options.");
-            System.out.println("1. Search ");
-            System.out.println("2. Watch [id] - watch the movie with the given ID.");
-            System.out.println("3. Rate [id] - rate the movie with the given ID.");
-            System.out.println("4. Browse - view recommendations & top movies");
-            System.out.println("5. Exit - return to the main menu.");
-            String userCommand = InputReader.nextLine().trim();
+            session.println("Movie Menu: Please select one of the following options.");
+            session.println("1. Search ");
+            session.println("2. Watch [id] - watch the movie with the given ID.");
+            session.println("3. Rate [id] - rate the movie with the given ID.");
+            session.println("4. Ratings [id] - view the rating distribution of the movie with the given ID.");
+            session.println("5. Browse - view recommendations & top movies");
+            session.println("6. Exit - return to the main menu.");
+            String userCommand = session.nextLine().trim();
             if (userCommand.equals("Exit")) {
                 return;
             } else if (userCommand.startsWith("Search")) {
-                searchMovies();
+                searchMovies(session);
             } else if (userCommand.startsWith("Watch")) {
                 String movieIdString = userCommand.substring(5).trim();
                 try {
                     int movieId = Integer.parseInt(movieIdString);
-                    WatchMovie(movieId);
+                    WatchMovie(session, movieId);
+                } catch (NumberFormatException e) {
+                    session.println("Please provide a number for movie ID.");
+                }
+            } else if (userCommand.startsWith("Ratings")) {
+                String movieIdString = userCommand.substring(7).trim();
+                try {
+                    int movieId = Integer.parseInt(movieIdString);
+                    ratingDistribution(session, movieId);
                 } catch (NumberFormatException e) {
-                    System.out.println("Please provide a number for movie ID.");
+                    session.println("Please provide a number for movie ID.");
                 }
             } else if (userCommand.startsWith("Rate")) {
                 String movieIdString = userCommand.substring(4).trim();
                 try {
                     int movieId = Integer.parseInt(movieIdString);
                     // On our service, users can rate movies they have not yet watched.
-                    RateMovie(movieId);
+                    RateMovie(session, movieId);
                 } catch (NumberFormatException e) {
-                    System.out.println("Please provide a number for movie ID.");
+                    session.println("Please provide a number for movie ID.");
                 }
             } else if (userCommand.startsWith("Browse")) {
-                browseMovies();
+                browseMovies(session);
             } else {
-                System.out.println("Please enter a valid command from those provided.");
+                session.println("Please enter a valid command from those provided.");
             }
         }
     }
@@ -66,119 +190,225 @@ public class MoviePage {
      * This method prints out the options for the Browse Movies page. Users can browse movies by trending movies,
      * movies popular among users the user follows, new releases, and personalized recommendations. If a user exits,
      * they are taken back to the movie menu.
+     *
+     * @param session The session of the user interacting with this page.
      */
-    private static void browseMovies() throws SQLException {
+    private static void browseMovies(UserSession session) throws SQLException {
         while (true) {
-            System.out.println("Browse Movies Menu: Please select one of the following options.");
-            System.out.println("1. Trending - View list of most watched 20 movies in the last 90 days.");
-            System.out.println("2. Following - View list of most watched 20 movies among users you follow.");
-            System.out.println("3. New Releases - View list of most watched 5 new releases of the month.");
-            System.out.println("4. Recommendations - Find movies recommended just for you.");
-            System.out.println("5. Exit - Return to the Movie Menu. ");
+            session.println("Browse Movies Menu: Please select one of the following options.");
+            session.println("1. Trending [7/30/90] - View list of most watched 20 movies in the last 7, 30, or 90 " +
+                    "days (default 90).");
+            session.println("2. Following - View list of most watched 20 movies among users you follow.");
+            session.println("3. New Releases - View list of most watched 5 new releases of the month.");
+            session.println("4. Recommendations [users/movies] - Find movies recommended just for you, from similar " +
+                    "users or from movies like the ones you watched (default users).");
+            session.println("5. Exit - Return to the Movie Menu. ");
 
-            String userCommand = InputReader.nextLine().trim();
+            String userCommand = session.nextLine().trim();
 
             switch(userCommand){
-                case "Trending" -> trending();
-                case "Following" -> following();
-                case "New Releases" -> newReleases();
-                case "Recommendations" -> MovieRecommendationPage.FindMovies(UserID);
+                case "Following" -> following(session);
+                case "New Releases" -> newReleases(session);
                 case "Exit" -> {
                     return;
                 }
-                default -> System.out.println("Please enter a valid command from those provided.");
+                default -> {
+                    if (userCommand.startsWith("Trending")) {
+                        trending(session, userCommand.substring(8).trim());
+                    } else if (userCommand.startsWith("Recommendations")) {
+                        MovieRecommendationPage.FindMovies(session, userCommand.substring(15).trim());
+                    } else {
+                        session.println("Please enter a valid command from those provided.");
+                    }
+                }
             }
         }
     }
 
     /**
-     * This method prints out the 20 most-watched movies in the last 90 days (rolling).
+     * This method prints out the 20 most-watched movies in the last 7, 30, or 90 days, counting today as the last day
+     * of the window. The list is the same for every user, so it is served from the leaderboard cache when that has it.
+     *
+     * @param session The session of the user interacting with this page.
+     * @param window  The number of days to count watches over, or an empty string for the default of 90.
      */
-    private static void trending() throws SQLException {
-        String trendingQuery = "SELECT m.mid, m.title, r.date, m.length, m.mpaa FROM movie m, " +
-                "(SELECT mid, count(starttime) AS totalWatches FROM watches " +
-                "WHERE starttime >= now() - INTERVAL '90 DAY' GROUP BY mid) AS w, " +
-                "(SELECT mid, MIN(releasedate) AS date FROM releasedon GROUP BY mid) AS r " +
-                "WHERE w.mid = m.mid AND m.mid = r.mid " +
-                "GROUP BY totalWatches, m.mid, r.date " +
-                "ORDER BY totalWatches DESC LIMIT 20";
-        ResultSet movieSet;
-        try (PreparedStatement trendingStmt = InitConnection.getCon().prepareStatement(trendingQuery)) {
-            movieSet = trendingStmt.executeQuery();
-            if (movieSet.isBeforeFirst()) {
-                printSearchResults(movieSet);
+    private static void trending(UserSession session, String window) throws SQLException {
+        int days;
+        try {
+            days = window.isEmpty() ? 90 : Integer.parseInt(window);
+        } catch (NumberFormatException e) {
+            days = 0;
+        }
+        if (days != 7 && days != 30 && days != 90) {
+            session.println("Please choose a trending window of 7, 30, or 90 days.");
+            return;
+        }
+        List<SearchResult> results = Leaderboards.trending(days);
+        if (results == null) {
+            try (Connection con = session.getCon()) {
+                results = trendingResults(con, days);
             }
         }
+        if (!results.isEmpty()) {
+            printResultLines(session, results);
+        }
     }
 
     /**
-     * This method prints out the 20 most-watched movies among users that the user follows.
+     * This method finds and formats the 20 most-watched movies in the last days. They are ranked by the in-memory
+     * trending sketch when it is loaded, so the database is only asked for the details of the movies it picks, and
+     * otherwise by summing the daily rollup in watch_day, whose cost depends on the length of the window rather than
+     * on how many watches it holds.
+     *
+     * @param con  The connection to query with.
+     * @param days The number of days to count watches over.
+     * @return the formatted results, most watched first.
      */
-    private static void following() throws SQLException{
-        String trendingQuery = "SELECT count(w.starttime) as totalwatches, m.mid, m.title, " +
-                "r.date, m.length, m.mpaa FROM movie m, " +
-                "(SELECT mid, starttime, followeduid FROM watches, follows WHERE followeruid = " + UserID +
-                " AND watches.uid = followeduid  GROUP BY followeduid, mid, starttime) AS w, " +
-                "(SELECT mid, MIN(releasedate) AS date FROM releasedon GROUP BY mid) AS r " +
-                "WHERE w.mid = m.mid AND m.mid = r.mid " +
-                "GROUP BY m.mid, r.date ORDER BY totalWatches DESC LIMIT 20";
-        ResultSet movieSet;
-        try (PreparedStatement followingStmt = InitConnection.getCon().prepareStatement(trendingQuery)) {
-            movieSet = followingStmt.executeQuery();
-            if (movieSet.isBeforeFirst()) {
-                printSearchResults(movieSet);
+    static List<SearchResult> trendingResults(Connection con, int days) throws SQLException {
+        if (!WatchHistory.isLoaded()) {
+            try (PreparedStatement trendingStmt = con.prepareStatement(
+                    "SELECT m.mid, m.title, ms.first_release AS date, m.length, m.mpaa " +
+                            "FROM movie m, movie_summary ms, " +
+                            "(SELECT mid, SUM(watch_count) AS totalWatches FROM watch_day " +
+                            "WHERE day > CURRENT_DATE - ? GROUP BY mid) AS w " +
+                            "WHERE w.mid = m.mid AND ms.mid = m.mid AND ms.first_release IS NOT NULL " +
+                            "ORDER BY totalWatches DESC LIMIT 20")) {
+                trendingStmt.setInt(1, days);
+                return formatResults(con, readRows(trendingStmt.executeQuery()));
+            }
+        }
+
+        // A few spare movies are estimated in case some are left out for having no release date.
+        List<TrendingSketch.Estimate> top = WatchHistory.TRENDING.top(40, days, WatchHistory.today(con));
+        int[] mids = new int[top.size()];
+        for (int i = 0; i < mids.length; i++) {
+            mids[i] = top.get(i).mid();
+        }
+        try (PreparedStatement trendingStmt = con.prepareStatement(
+                "SELECT m.mid, m.title, ms.first_release AS date, m.length, m.mpaa FROM movie m, movie_summary ms " +
+                        "WHERE m.mid = ANY(?) AND ms.mid = m.mid AND ms.first_release IS NOT NULL")) {
+            trendingStmt.setArray(1, SearchIndexes.idArray(con, mids));
+            Map<Integer, MovieRow> found = new HashMap<>();
+            for (MovieRow row : readRows(trendingStmt.executeQuery())) {
+                found.put(row.mid(), row);
             }
+            List<MovieRow> rows = new ArrayList<>();
+            for (int i = 0; i < mids.length && rows.size() < 20; i++) {
+                if (found.containsKey(mids[i])) {
+                    rows.add(found.get(mids[i]));
+                }
+            }
+            return formatResults(con, rows);
         }
     }
 
     /**
-     * This method prints out the 5 most-watched movies released this calendar month.
+     * This method prints out the 20 most-watched movies among users that the user follows. They are read from the top
+     * of the user's following feed, which is kept current as watches and follows change, plus the watches of any
+     * celebrities they follow, which are left out of the feed and counted here instead.
+     *
+     * @param session The session of the user interacting with this page.
      */
-    private static void newReleases() throws SQLException{
-        String newReleasesQuery = "SELECT m.mid, m.title, r.date, m.length, m.mpaa FROM movie m, " +
-                "(SELECT mid, count(starttime) AS totalWatches FROM watches GROUP BY mid) AS w, " +
-                "(SELECT mid, MIN(releasedate) AS date FROM releasedon GROUP BY mid) AS r " +
-                "WHERE w.mid = m.mid AND m.mid = r.mid " +
-                "AND CAST(r.date AS varchar(7)) = CAST(now() as varchar(7)) " +
-                "GROUP BY totalWatches, m.mid, r.date " +
-                "ORDER BY totalWatches DESC LIMIT 5";
-        ResultSet movieSet;
-        try (PreparedStatement newReleasesStmt = InitConnection.getCon().prepareStatement(newReleasesQuery)) {
-            movieSet = newReleasesStmt.executeQuery();
-            if (movieSet.isBeforeFirst()) {
-                printSearchResults(movieSet);
+    private static void following(UserSession session) throws SQLException{
+        try (Connection con = session.getCon()) {
+            int[] celebrities = FollowingFeed.followedCelebrities(con, session.getUserId());
+            String followingQuery = celebrities.length == 0 ?
+                    "SELECT m.mid, m.title, ms.first_release AS date, m.length, m.mpaa " +
+                            "FROM following_feed ff, movie m, movie_summary ms " +
+                            "WHERE ff.uid = ? AND m.mid = ff.mid AND ms.mid = m.mid AND ms.first_release IS NOT NULL " +
+                            "ORDER BY ff.watch_count DESC LIMIT 20" :
+                    "SELECT m.mid, m.title, ms.first_release AS date, m.length, m.mpaa " +
+                            "FROM movie m, movie_summary ms, (SELECT mid, SUM(watch_count) AS totalWatches FROM (" +
+                            "SELECT mid, watch_count FROM following_feed WHERE uid = ? UNION ALL " +
+                            "SELECT mid, COUNT(*) FROM watches WHERE uid = ANY(?) GROUP BY mid) AS counts " +
+                            "GROUP BY mid) AS w " +
+                            "WHERE w.mid = m.mid AND ms.mid = m.mid AND ms.first_release IS NOT NULL " +
+                            "ORDER BY totalWatches DESC LIMIT 20";
+            try (PreparedStatement followingStmt = con.prepareStatement(followingQuery)) {
+                followingStmt.setInt(1, session.getUserId());
+                if (celebrities.length > 0) {
+                    followingStmt.setArray(2, SearchIndexes.idArray(con, celebrities));
+                }
+                ResultSet movieSet = followingStmt.executeQuery();
+                if (movieSet.isBeforeFirst()) {
+                    printSearchResults(session, con, readRows(movieSet));
+                }
+            }
+        }
+    }
+
+    /**
+     * This method prints out the 5 most-watched movies released this calendar month. The list is the same for every
+     * user, so it is served from the leaderboard cache when that has it.
+     *
+     * @param session The session of the user interacting with this page.
+     */
+    private static void newReleases(UserSession session) throws SQLException{
+        List<SearchResult> results = Leaderboards.newReleases();
+        if (results == null) {
+            try (Connection con = session.getCon()) {
+                results = newReleasesResults(con);
             }
         }
+        if (!results.isEmpty()) {
+            printResultLines(session, results);
+        }
+    }
+
+    /**
+     * This method finds and formats the 5 most-watched movies released this calendar month.
+     *
+     * @param con The connection to query with.
+     * @return the formatted results, most watched first.
+     */
+    static List<SearchResult> newReleasesResults(Connection con) throws SQLException {
+        // The summary's watch count and first release date answer this without touching watches or releasedon.
+        try (PreparedStatement newReleasesStmt = con.prepareStatement(
+                "SELECT m.mid, m.title, ms.first_release AS date, m.length, m.mpaa " +
+                        "FROM movie m, movie_summary ms WHERE ms.mid = m.mid AND ms.watch_count > 0 " +
+                        "AND ms.first_release >= date_trunc('month', now()) " +
+                        "AND ms.first_release < date_trunc('month', now()) + INTERVAL '1 MONTH' " +
+                        "ORDER BY ms.watch_count DESC LIMIT 5")) {
+            return formatResults(con, readRows(newReleasesStmt.executeQuery()));
+        }
     }
 
     /**
      * This method prints out the options for the Movie Search page. Users can search by title, release date, cast
      * member name (first and/or last), director name (first and/or last), studio name, or genre. If a user exits,
      * they are taken back to the movie menu.
+     *
+     * @param session The session of the user interacting with this page.
      */
-    private static void searchMovies() throws SQLException {
+    private static void searchMovies(UserSession session) throws SQLException {
         while (true) {
-            System.out.println("Movie Search Menu: Please select one of the following options.");
-            System.out.println("1. Title ");
-            System.out.println("2. Release Date ");
-            System.out.println("3. Cast Member ");
-            System.out.println("4. Director ");
-            System.out.println("5. Studio ");
-            System.out.println("6. Genre ");
-            System.out.println("7. Exit - Return to the Movie Menu.");
+            session.println("Movie Search Menu: Please select one of the following options.");
+            session.println("1. Title ");
+            session.println("2. Release Date ");
+            session.println("3. Cast Member ");
+            session.println("4. Director ");
+            session.println("5. Studio ");
+            session.println("6. Genre ");
+            session.println("7. Fuzzy [text] - Find the titles and people closest to possibly misspelled text.");
+            session.println("8. Exit - Return to the Movie Menu.");
 
-            String userCommand = InputReader.nextLine().trim();
+            String userCommand = session.nextLine().trim();
 
             switch (userCommand) {
                 case "Exit" -> {
                     return;
                 }
-                case "Title" -> searchTitle();
-                case "Release Date" -> searchReleaseDate();
-                case "Cast Member" -> searchCastMember();
-                case "Director" -> searchDirector();
-                case "Studio" -> searchStudio();
-                case "Genre" -> searchGenre();
+                case "Title" -> searchTitle(session);
+                case "Release Date" -> searchReleaseDate(session);
+                case "Cast Member" -> searchCastMember(session);
+                case "Director" -> searchDirector(session);
+                case "Studio" -> searchStudio(session);
+                case "Genre" -> searchGenre(session);
+                default -> {
+                    if (userCommand.startsWith("Fuzzy")) {
+                        searchFuzzy(session, userCommand.substring(5).trim());
+                    }
+                }
             }
         }
     }
@@ -186,31 +416,20 @@ public class MoviePage {
     /**
      * This method prompts the user for a title to search by, and then queries database for movies whose titles contain
      * the provided string.
+     *
+     * @param session The session of the user interacting with this page.
      */
-    private static void searchTitle() throws SQLException {
-        System.out.println("Please enter the title of the movie.");
-        String titleSearch = InputReader.nextLine().trim();
-
-        String titleQuery = "SELECT m.title, m.mid, r.date, m.length, m.mpaa, g.gname, s.sname FROM movie m, " +
-                "(SELECT mid, MIN(releasedate) AS date FROM releasedon GROUP BY mid) AS r, " +
-                "(SELECT mid, MIN(name) AS gname FROM genreof go, genre gr WHERE go.gid = gr.gid GROUP BY mid) AS g, " +
-                "(SELECT mid, MIN(name) AS sname FROM produces pr, studio st WHERE st.sid = pr.sid GROUP BY mid) AS s " +
-                "WHERE m.mid = r.mid AND m.mid = g.mid AND m.mid = s.mid AND title LIKE '%" + titleSearch + "%' " +
-                "GROUP BY m.mid, r.date, s.sname, g.gname";
-
-        ResultSet movieSet;
-        try (PreparedStatement titleStmt = InitConnection.getCon().prepareStatement(titleQuery +
-                " ORDER BY title, date")) {
-            movieSet = titleStmt.executeQuery();
-
-            if (!movieSet.isBeforeFirst()) {
-                System.out.println("No movies with title including " + titleSearch + " found.");
-                System.out.println("---");
-                return;
-            }
-            printSearchResults(movieSet);
+    private static void searchTitle(UserSession session) throws SQLException {
+        session.println("Please enter the title of the movie.");
+        String titleSearch = session.nextLine().trim();
+
+        ResultPages pages = new ResultPages(MovieSearch.title(titleSearch));
+        if (!printPage(session, pages)) {
+            session.println("No movies with title including " + titleSearch + " found.");
+            session.println("---");
+            return;
         }
-        filterSearch(titleQuery);
+        filterSearch(session, pages);
     }
 
     /**
@@ -220,269 +439,330 @@ public class MoviePage {
      * release date is when it first came out, not when it was added to the platform). As a result, if a movie was
      * released in 2020 on one platform and then in 2024 on another, for the purposes of searching its release year
      * would be 2020.
+     *
+     * @param session The session of the user interacting with this page.
      */
-    private static void searchReleaseDate() throws SQLException {
-        System.out.println("Please enter the release date of the movie (YYYY-MM-DD)");
-        String dateSearch = InputReader.nextLine().trim();
+    private static void searchReleaseDate(UserSession session) throws SQLException {
+        session.println("Please enter the release date of the movie (YYYY-MM-DD)");
+        String dateSearch = session.nextLine().trim();
         if (!dateSearch.matches("^\\d{4}-\\d{2}-\\d{2}$") && !dateSearch.matches("^\\d{4}-\\d{2}$") &&
                 !dateSearch.matches("^\\d{4}$")) {
-            searchReleaseDate();
+            searchReleaseDate(session);
             return;
         }
-        StringBuilder dateQuery = new StringBuilder();
-        dateQuery.append("SELECT m.title, m.mid, m.length, m.mpaa, g.gname, s.sname, " +
-                "min(date(r.releasedate)) as date FROM movie m, releasedon r," +
-                "(SELECT mid, MIN(name) AS gname FROM genreof go, genre gr WHERE go.gid = gr.gid GROUP BY mid) AS g, " +
-                "(SELECT mid, MIN(name) AS sname FROM produces pr, studio st WHERE st.sid = pr.sid GROUP BY mid) AS s " +
-                "WHERE r.mid = m.mid AND m.mid = g.mid AND m.mid = s.mid " +
-                "GROUP BY m.mid, s.sname, g.gname HAVING ");
-        if(dateSearch.matches("^\\d{4}-\\d{2}-\\d{2}$")){
-            dateQuery.append("MIN(DATE(r.releasedate)) = '" + dateSearch + "'");
-        }
-        else if(dateSearch.matches("^\\d{4}$")){
-            dateQuery.append("CAST(MIN(DATE(r.releasedate)) AS varchar(4)) = '" + dateSearch.substring(0,4) + "'");
-        }
-        else {
-            dateQuery.append("CAST(MIN(DATE(r.releasedate)) AS varchar(7)) = '" + dateSearch.substring(0,7) + "'");
-        }
-        ResultSet movieSet;
-        try (PreparedStatement dateStmt = InitConnection.getCon().prepareStatement(dateQuery + " ORDER BY title")) {
-            movieSet = dateStmt.executeQuery();
-
-            if (!movieSet.isBeforeFirst()) {
-                System.out.println("No movies with release date " + dateSearch + " found.");
-                System.out.println("---");
-                return;
-            }
-            printSearchResults(movieSet);
+        MovieSearch search;
+        try {
+            search = MovieSearch.releaseDate(dateSearch);
+        } catch (DateTimeException e) {
+            // The date has the right form but does not exist, so ask again as for a badly formed date.
+            searchReleaseDate(session);
+            return;
         }
-        filterSearch(dateQuery.toString());
+        ResultPages pages = new ResultPages(search);
+        if (!printPage(session, pages)) {
+            session.println("No movies with release date " + dateSearch + " found.");
+            session.println("---");
+            return;
+        }
+        filterSearch(session, pages);
     }
 
     /**
      * This method prompts the user for first and/or last name to search by, then queries the database for movies with a
      * cast member with that name. While a bit clunky, to avoid searching a first or last name, enter nothing in the
      * parentheses, for example First(Robert) Last().
+     *
+     * @param session The session of the user interacting with this page.
      */
-    private static void searchCastMember() throws SQLException {
+    private static void searchCastMember(UserSession session) throws SQLException {
         // Allow searching by first and/or last, where at least one is required
-        System.out.println("Please enter name of the cast member in the format: " +
+        session.println("Please enter name of the cast member in the format: " +
                 "First([first name] [middle name/initial]) Last([last name] [suffix])");
-        String actorSearch = InputReader.nextLine().trim();
+        String actorSearch = session.nextLine().trim();
         if (!actorSearch.startsWith("First(") || !actorSearch.substring(6).contains(") Last(") ||
                 !actorSearch.endsWith(")")) {
-            searchCastMember();
+            searchCastMember(session);
             return;
         }
         String firstName = actorSearch.substring(6, actorSearch.indexOf("Last(") - 2).trim();
         String lastName = actorSearch.substring(actorSearch.indexOf("Last(") + 5, actorSearch.length() - 1).trim();
         if (firstName.isBlank() && lastName.isBlank()) {
-            searchCastMember();
+            searchCastMember(session);
             return;
         }
 
-        StringBuilder nameQuery = new StringBuilder();
-        nameQuery.append("SELECT DISTINCT m.title, m.mid, r.date, g.gname, s.sname, m.length, m.mpaa " +
-                "FROM movie m, person p, actsin a, " +
-                "(SELECT mid, MIN(releasedate) AS date FROM releasedon GROUP BY mid) AS r, " +
-                "(SELECT mid, MIN(name) AS gname FROM genreof go, genre gr WHERE go.gid = gr.gid GROUP BY mid) AS g, " +
-                "(SELECT mid, MIN(name) AS sname FROM produces pr, studio st WHERE st.sid = pr.sid GROUP BY mid) AS s " +
-                "WHERE m.mid = r.mid AND p.pid = a.pid AND a.mid = m.mid AND m.mid = g.mid AND m.mid = s.mid AND ");
-        if (lastName.isBlank()) {
-            // If first name given
-            nameQuery.append("fname LIKE '%").append(firstName).append("%'");
-        } else if (firstName.isBlank()) {
-            // If last name given
-            nameQuery.append("lname LIKE '%" + lastName + "%'");
-        } else {
-            // If both given
-            nameQuery.append("fname LIKE '%" + firstName + "%' AND lname like '%" + lastName + "%'");
-        }
-        nameQuery.append(" GROUP BY m.mid, r.date, p.pid, s.sname, g.gname");
-
-        ResultSet movieSet;
-        try (Statement nameStmt = InitConnection.getCon().createStatement()) {
-            movieSet = nameStmt.executeQuery(nameQuery + " ORDER BY title, date");
-
-            if (!movieSet.isBeforeFirst()) {
-                String name = (firstName + " " + lastName).trim();
-                System.out.println("No movies with cast member " + name + " found.");
-                System.out.println("---");
-                return;
-            }
-            printSearchResults(movieSet);
+        ResultPages pages = new ResultPages(MovieSearch.castMember(firstName, lastName));
+        if (!printPage(session, pages)) {
+            String name = (firstName + " " + lastName).trim();
+            session.println("No movies with cast member " + name + " found.");
+            session.println("---");
+            return;
         }
-        filterSearch(nameQuery.toString());
+        filterSearch(session, pages);
     }
 
     /**
      * This method prompts the user for first and/or last name to search by, and then queries database for movies with
      * a director with that name. Uses the same format as cast member searching.
+     *
+     * @param session The session of the user interacting with this page.
      */
-    private static void searchDirector() throws SQLException {
+    private static void searchDirector(UserSession session) throws SQLException {
         // Allow searching by first and/or last, where at least one is required
-        System.out.println("Please enter name of the director in the format: " +
+        session.println("Please enter name of the director in the format: " +
                 "First([first name] [middle name/initial]) Last([last name] [suffix])");
-        String directorSearch = InputReader.nextLine().trim();
+        String directorSearch = session.nextLine().trim();
         if (!directorSearch.startsWith("First(") || !directorSearch.substring(6).contains(") Last(") ||
                 !directorSearch.endsWith(")")) {
-            searchDirector();
+            searchDirector(session);
             return;
         }
         String firstName = directorSearch.substring(6, directorSearch.indexOf("Last(") - 2).trim();
         String lastName = directorSearch.substring(directorSearch.indexOf("Last(") + 5, directorSearch.length() - 1).trim();
         if (firstName.isBlank() && lastName.isBlank()) {
-            searchDirector();
+            searchDirector(session);
             return;
         }
-        StringBuilder nameQuery = new StringBuilder();
-        nameQuery.append("SELECT DISTINCT m.title, m.mid, r.date,  g.gname, s.sname, m.length, m.mpaa " +
-                "FROM movie m, person p, directs d, " +
-                "(SELECT mid, MIN(releasedate) AS date FROM releasedon GROUP BY mid) AS r, " +
-                "(SELECT mid, MIN(name) AS gname FROM genreof go, genre gr WHERE go.gid = gr.gid GROUP BY mid) AS g, " +
-                "(SELECT mid, MIN(name) AS sname FROM produces pr, studio st WHERE st.sid = pr.sid GROUP BY mid) AS s " +
-                "WHERE m.mid = r.mid AND p.pid = d.pid AND d.mid = m.mid AND m.mid = g.mid AND m.mid = s.mid AND ");
-        if (lastName.isBlank()) {
-            // If first name given
-            nameQuery.append("fname LIKE '%" + firstName + "%'");
-        } else if (firstName.isBlank()) {
-            // If last name given
-            nameQuery.append("lname LIKE '%" + lastName + "%'");
-        } else {
-            // If both given
-            nameQuery.append("fname LIKE '%" + firstName + "%' AND lname like '%" + lastName + "%'");
-        }
-        nameQuery.append(" GROUP BY m.mid, r.date, p.pid, g.gname, s.sname");
-
-        ResultSet movieSet;
-        try (Statement nameStmt = InitConnection.getCon().createStatement()) {
-            movieSet = nameStmt.executeQuery(nameQuery + " ORDER BY title, date");
-
-            if (!movieSet.isBeforeFirst()) {
-                String name = (firstName + " " + lastName).trim();
-                System.out.println("No movies with director " + name + " found.");
-                System.out.println("---");
-                return;
-            }
-            printSearchResults(movieSet);
+        ResultPages pages = new ResultPages(MovieSearch.director(firstName, lastName));
+        if (!printPage(session, pages)) {
+            String name = (firstName + " " + lastName).trim();
+            session.println("No movies with director " + name + " found.");
+            session.println("---");
+            return;
         }
-        filterSearch(nameQuery.toString());
+        filterSearch(session, pages);
     }
 
     /**
      * This method prompts the user for a studio name to search by, and then queries database for movies produced by a
      * studio containing that name.
+     *
+     * @param session The session of the user interacting with this page.
      */
-    private static void searchStudio() throws SQLException {
-        System.out.println("Please enter the name of the studio.");
-        String studioSearch = InputReader.nextLine().trim();
-
-        String studioQuery = "SELECT DISTINCT m.title, m.mid, r.date, g.gname, s.name AS sname, m.length, m.mpaa " +
-                "FROM movie m, studio s, produces p, " +
-                "(SELECT mid, MIN(releasedate) AS date FROM releasedon GROUP BY mid) AS r, " +
-                "(SELECT mid, MIN(name) AS gname FROM genreof go, genre gr WHERE go.gid = gr.gid GROUP BY mid) AS g " +
-                "WHERE m.mid = r.mid AND m.mid = p.mid AND s.sid = p.sid AND m.mid = g.mid " +
-                "AND s.name LIKE '%" + studioSearch + "%' GROUP BY m.mid, r.date, s.name, g.gname ";
-        ResultSet movieSet;
-        try (PreparedStatement studioStmt = InitConnection.getCon().prepareStatement(studioQuery +
-                " ORDER BY title, date")) {
-            movieSet = studioStmt.executeQuery();
-            if (!movieSet.isBeforeFirst()) {
-                System.out.println("No movies produced by studio " + studioSearch + " found.");
-                System.out.println("---");
-                return;
-            }
-            printSearchResults(movieSet);
+    private static void searchStudio(UserSession session) throws SQLException {
+        session.println("Please enter the name of the studio.");
+        String studioSearch = session.nextLine().trim();
+
+        ResultPages pages = new ResultPages(MovieSearch.studio(studioSearch));
+        if (!printPage(session, pages)) {
+            session.println("No movies produced by studio " + studioSearch + " found.");
+            session.println("---");
+            return;
         }
-        filterSearch(studioQuery);
+        filterSearch(session, pages);
     }
 
     /**
      * This method prompts the user for a genre name to search by, and then queries database for movies with that genre.
+     *
+     * @param session The session of the user interacting with this page.
      */
-    private static void searchGenre() throws SQLException {
-        System.out.println("Please enter the genre of the movie.");
-        String genreSearch = InputReader.nextLine().trim();
-        String titleQuery = "SELECT DISTINCT m.title, m.mid, r.date, g.name AS gname, s.sname, m.length, m.mpaa " +
-                "FROM movie m, genre g, genreof o, " +
-                "(SELECT mid, MIN(releasedate) AS date FROM releasedon GROUP BY mid) r, " +
-                "(SELECT mid, MIN(name) AS sname FROM produces pr, studio st WHERE st.sid = pr.sid GROUP BY mid) AS s " +
-                "WHERE m.mid = r.mid AND m.mid = o.mid AND g.gid = o.gid AND m.mid = s.mid AND " +
-                "g.name = '" + genreSearch + "' " +
-                "GROUP BY m.mid, r.date, g.name, s.sname";
-
-        ResultSet movieSet;
-        try (PreparedStatement genreStmt = InitConnection.getCon().prepareStatement(titleQuery
-                + " ORDER BY title, date")) {
-            movieSet = genreStmt.executeQuery();
-
-            if (!movieSet.isBeforeFirst()) {
-                System.out.println("No movies with genre " + genreSearch + " found.");
-                System.out.println("---");
-                return;
+    private static void searchGenre(UserSession session) throws SQLException {
+        session.println("Please enter the genre of the movie.");
+        String genreSearch = session.nextLine().trim();
+        ResultPages pages = new ResultPages(MovieSearch.genre(genreSearch));
+        if (!printPage(session, pages)) {
+            session.println("No movies with genre " + genreSearch + " found.");
+            session.println("---");
+            return;
+        }
+        filterSearch(session, pages);
+    }
+
+    /**
+     * This method finds the movie titles and people whose names are closest to the given text, for when a search by
+     * exact substring finds nothing because of a typo. Matches are ranked by trigram similarity, using the fuzzy
+     * search indexes, and the closest titles are shown in full while the closest people are listed by name.
+     *
+     * @param session The session of the user interacting with this page.
+     * @param text    The text to search for, or blank to ask the user for it.
+     */
+    private static void searchFuzzy(UserSession session, String text) throws SQLException {
+        if (!SearchIndexes.isLoaded()) {
+            session.println("Fuzzy search is not available right now.");
+            session.println("---");
+            return;
+        }
+        if (text.isBlank()) {
+            session.println("Please enter the title or name to search for.");
+            text = session.nextLine().trim();
+        }
+        String key = SearchIndexes.fuzzyKey(text);
+        List<TrigramIndex.Match> titles = SearchIndexes.FUZZY_TITLES.similar(key, FUZZY_LIMIT, FUZZY_THRESHOLD);
+        List<TrigramIndex.Match> people = SearchIndexes.FUZZY_PEOPLE.similar(key, FUZZY_LIMIT, FUZZY_THRESHOLD);
+        if (titles.isEmpty() && people.isEmpty()) {
+            session.println("No titles or people close to " + text + " found.");
+            session.println("---");
+            return;
+        }
+
+        if (!titles.isEmpty()) {
+            int[] mids = titles.stream().mapToInt(TrigramIndex.Match::id).toArray();
+            Map<Integer, MovieRow> movies = new HashMap<>();
+            try (Connection con = session.getCon(); PreparedStatement titleStmt = MovieSearch.movies(mids)
+                    .prepare(con, MovieSearch.SortOrder.DEFAULT, null, mids.length)) {
+                ResultSet movieSet = titleStmt.executeQuery();
+                while (movieSet.next()) {
+                    movies.put(movieSet.getInt("mid"), readSearchRow(movieSet));
+                }
+                // Show the movies closest match first rather than in title order.
+                List<MovieRow> rows = new ArrayList<>();
+                for (int mid : mids) {
+                    if (movies.containsKey(mid)) {
+                        rows.add(movies.get(mid));
+                    }
+                }
+                session.println("Closest titles to " + text + ":");
+                printSearchResults(session, con, rows);
+            }
+        }
+        if (!people.isEmpty()) {
+            session.println("Closest people to " + text + ":");
+            for (TrigramIndex.Match match : people) {
+                String name = SearchIndexes.fullName(SearchIndexes.FIRST_NAMES.get(match.id()),
+                        SearchIndexes.LAST_NAMES.get(match.id()));
+                session.println(String.format("%-40s", name) + " | " + Math.round(match.similarity() * 100) +
+                        "% match");
             }
-            printSearchResults(movieSet);
+            session.println("Use Cast Member or Director search to see the movies of one of these people.");
+            session.println("---");
         }
-        filterSearch(titleQuery);
     }
 
     /**
-     * This method prints out options for filtering the search results. Users can sort results by title, release year,
-     * genre, or studio; all ascending or descending. The method re-queries the database so the same movies are
-     * displayed, now ordered by the specified attribute.
+     * This method prints out options for filtering and paging through the search results. Users can sort results by
+     * title, release year, genre, or studio; all ascending or descending, and move to the next or previous page of
+     * results. Sorting a search of no more than search.cacheRows results reads the rest of it into its result cache,
+     * and from then on sorting and paging only rearrange the cached results and never go back to the database. A
+     * larger search starts over from its first page in the chosen order, read from the database a page at a time.
      *
-     * @param baseQuery The query that retrieved relevant movies, without an 'order by' component.
+     * @param session The session of the user interacting with this page.
+     * @param pages   The search results being shown, positioned on the page the user last saw.
      */
-    private static void filterSearch(String baseQuery) throws SQLException {
+    private static void filterSearch(UserSession session, ResultPages pages) throws SQLException {
         String userCommand;
         while (true) {
-            System.out.println("Please select one of the following options to sort your search results.");
-            System.out.println("Each option must be marked (Ascending) or (Descending).");
-            System.out.println("1. Title");
-            System.out.println("2. Release Year");
-            System.out.println("4. Genre");
-            System.out.println("5. Studio");
-            System.out.println("6. Exit - Return to the Movie Search Menu.");
-            userCommand = InputReader.nextLine().trim();
-            String ordering;
+            session.println("Please select one of the following options to sort your search results.");
+            session.println("Each option must be marked (Ascending) or (Descending).");
+            session.println("1. Title");
+            session.println("2. Release Year");
+            session.println("4. Genre");
+            session.println("5. Studio");
+            session.println("6. Next - View the next page of results.");
+            session.println("7. Prev - View the previous page of results.");
+            session.println("8. Exit - Return to the Movie Search Menu.");
+            userCommand = session.nextLine().trim();
+            MovieSearch.SortOrder ordering;
             switch (userCommand) {
                 case "Exit" -> {
                     return;
                 }
-                case "Title (Ascending)" -> {
-                    ordering = " ORDER BY title ASC";
-                }
-                case "Title (Descending)" -> {
-                    ordering = " ORDER BY title DESC";
-                }
-                case "Release Year (Ascending)" -> {
-                    ordering = " ORDER BY date ASC";
-                }
-                case "Release Year (Descending)" -> {
-                    ordering = " ORDER BY date DESC";
-                }
-                case "Genre (Ascending)" -> {
-                    ordering = " ORDER BY gname ASC";
-                }
-                case "Genre (Descending)" -> {
-                    ordering = " ORDER BY gname DESC";
-                }
-                case "Studio (Ascending)" -> {
-                    ordering = " ORDER BY sname ASC";
+                case "Next" -> {
+                    if (!pages.next()) {
+                        session.println("There are no more results.");
+                    } else {
+                        printPage(session, pages);
+                    }
+                    continue;
                 }
-                case "Studio (Descending)" -> {
-                    ordering = " ORDER BY sname DESC";
+                case "Prev" -> {
+                    if (!pages.previous()) {
+                        session.println("You are already on the first page of results.");
+                    } else {
+                        printPage(session, pages);
+                    }
+                    continue;
                 }
+                case "Title (Ascending)" -> ordering = MovieSearch.SortOrder.TITLE_ASC;
+                case "Title (Descending)" -> ordering = MovieSearch.SortOrder.TITLE_DESC;
+                case "Release Year (Ascending)" -> ordering = MovieSearch.SortOrder.DATE_ASC;
+                case "Release Year (Descending)" -> ordering = MovieSearch.SortOrder.DATE_DESC;
+                case "Genre (Ascending)" -> ordering = MovieSearch.SortOrder.GENRE_ASC;
+                case "Genre (Descending)" -> ordering = MovieSearch.SortOrder.GENRE_DESC;
+                case "Studio (Ascending)" -> ordering = MovieSearch.SortOrder.STUDIO_ASC;
+                case "Studio (Descending)" -> ordering = MovieSearch.SortOrder.STUDIO_DESC;
                 default -> {
-                    System.out.println("Please choose a valid option.");
+                    session.println("Please choose a valid option.");
                     continue;
                 }
             }
-            ResultSet movieSet;
-            try (PreparedStatement query = InitConnection.getCon().prepareStatement(baseQuery + ordering)) {
-                movieSet = query.executeQuery();
-                printSearchResults(movieSet);
+            if (!pages.cached) {
+                cacheResults(session, pages);
+            }
+            if (pages.cached) {
+                pages.sort(ordering);
+            } else {
+                pages.reorder(ordering);
+            }
+            printPage(session, pages);
+        }
+    }
+
+    /**
+     * This method prints the current page of a search. Pages already read are taken straight from the results kept in
+     * memory. Otherwise the page is read by keyset with a limit of one row past the page, so no more than one page of
+     * rows is pulled from the database regardless of how many movies match, and its results are added to the ones
+     * kept. Once a page turns out to be the last, every result has been read and they become the result cache.
+     *
+     * @param session The session of the user interacting with this page.
+     * @param pages   The search results, positioned on the page to print.
+     * @return true if the page had any movies, false if it was empty.
+     */
+    private static boolean printPage(UserSession session, ResultPages pages) throws SQLException {
+        if (!pages.cached && pages.offset >= pages.read.size()) {
+            List<MovieRow> rows = new ArrayList<>();
+            try (Connection con = session.getCon()) {
+                try (PreparedStatement pageStmt = pages.search.prepare(con, pages.order, pages.lastKey,
+                        PAGE_SIZE + 1)) {
+                    ResultSet movieSet = pageStmt.executeQuery();
+                    while (rows.size() < PAGE_SIZE && movieSet.next()) {
+                        rows.add(readSearchRow(movieSet));
+                        pages.lastKey = pages.order.keyOf(movieSet);
+                    }
+                    // The extra row fetched past the page only tells us whether there is a next page.
+                    pages.cached = !movieSet.next();
+                }
+                pages.read.addAll(formatResults(con, rows));
+            }
+        }
+        List<SearchResult> results = pages.read.subList(pages.offset,
+                Math.min(pages.offset + PAGE_SIZE, pages.read.size()));
+        if (results.isEmpty()) {
+            return false;
+        }
+        printResultLines(session, results);
+        if (pages.hasNext() || pages.pageNumber() > 1) {
+            session.println("Page " + pages.pageNumber() + (pages.hasNext() ?
+                    " - enter Next to see more results." : " - this is the last page of results."));
+        }
+        return true;
+    }
+
+    /**
+     * This method reads the rest of a search, with the details of each movie, into its result cache, as long as the
+     * whole search holds no more than search.cacheRows results. Only the rows after those already read are fetched,
+     * and no more than one past the limit, so a larger search costs at most that many rows before it is left uncached.
+     *
+     * @param session The session of the user interacting with this page.
+     * @param pages   The search to cache the results of.
+     */
+    private static void cacheResults(UserSession session, ResultPages pages) throws SQLException {
+        int room = CACHE_ROWS - pages.read.size();
+        if (room <= 0) {
+            return;
+        }
+        List<MovieRow> rows = new ArrayList<>();
+        try (Connection con = session.getCon();
+             PreparedStatement searchStmt = pages.search.prepare(con, pages.order, pages.lastKey, room + 1)) {
+            ResultSet movieSet = searchStmt.executeQuery();
+            while (movieSet.next()) {
+                rows.add(readSearchRow(movieSet));
+            }
+            if (rows.size() > room) {
+                return;
             }
+            pages.read.addAll(formatResults(con, rows));
+            pages.cached = true;
         }
     }
 
@@ -490,147 +770,174 @@ public class MoviePage {
      * This method prints the search results, organized in columns by title, movie ID, release year, length,
      * MPAA rating, average user rating, genre(s), director(s), studio(s), and cast member(s).
      *
-     * @param movieSet  The result set from the performed query.
+     * @param session   The session of the user interacting with this page.
+     * @param con       The connection the rows were read from, reused for the detail queries.
+     * @param rows      The movies to print, in order.
      */
-    private static void printSearchResults(ResultSet movieSet) throws SQLException {
-        System.out.println("Search Results:");
-        System.out.println(String.format("%-30s", "Title") + " | " + String.format("%-5s", "MID")  +
+    private static void printSearchResults(UserSession session, Connection con, List<MovieRow> rows)
+            throws SQLException {
+        printResultLines(session, formatResults(con, rows));
+    }
+
+    /**
+     * This method prints already formatted search results under the results table header.
+     *
+     * @param session The session of the user interacting with this page.
+     * @param results The results to print, in order.
+     */
+    private static void printResultLines(UserSession session, List<SearchResult> results) {
+        session.println("Search Results:");
+        session.println(String.format("%-30s", "Title") + " | " + String.format("%-5s", "MID")  +
                 " | Year  | Length  | MPAA Rating  | Average User Rating  | " +
                 String.format("%-35s", "Genre(s)") + " | " + String.format("%-30s", "Director(s)") +
                 " | " + String.format("%-35s", "Studio(s)") + " | Cast");
-        while (movieSet.next()) {
-            StringBuilder output = new StringBuilder();
-            String title = movieSet.getString("title");
-            int mid = movieSet.getInt("mid");
-            java.sql.Timestamp date = movieSet.getTimestamp("date");
-            int length = movieSet.getInt("length");
-            int hours = length / 60;
-            int minutes = length % 60;
-            String mpaa = movieSet.getString("mpaa");
-            output.append(String.format("%-30s", title).substring(0, 30) + " | " + String.format("%-5s", mid) + " | "
-                    + date.toString().substring(0, 4) + "  | " +
-                    String.format("%-7s", hours + ":" + (minutes < 10 ? "0" + minutes : minutes)) + " | "
-                    + String.format("%-11s", mpaa) + "  | ");
-
-            String rateQuery = "SELECT AVG(rating) as avg FROM rates r WHERE mid = " + mid;
-            ResultSet rateSet;
-            try (PreparedStatement rateStmt = InitConnection.getCon().prepareStatement(rateQuery)) {
-                rateSet = rateStmt.executeQuery();
-                if (rateSet.isBeforeFirst()) {
-                    rateSet.next();
-                    double avgRating = rateSet.getDouble("avg");
-
-                    if (avgRating == 0.0) {
-                        output.append(String.format("%-20s", "No ratings") + " | ");
-                    } else {
-                        output.append(String.format("%-20s", (double)Math.round(avgRating * 10) / 10) + " | ");
-                    }
-                }
-            }
+        for (SearchResult result : results) {
+            session.println(result.line());
+        }
+        session.println("-------");
+    }
 
-            String genreQuery = "SELECT name FROM genre g, genreof o " +
-                    "WHERE o.mid = " + mid + " AND g.gid = o.gid ORDER BY name";
-            ResultSet genreSet;
-            StringBuilder genres = new StringBuilder();
-            try (PreparedStatement genreStmt = InitConnection.getCon().prepareStatement(genreQuery)) {
-                genreSet = genreStmt.executeQuery();
-                if (genreSet.isBeforeFirst()) {
-                    genreSet.next();
-                    genres.append(genreSet.getString("name"));
-                    while (genreSet.next()) {
-                        genres.append(", " + genreSet.getString("name"));
-                    }
-                }
-            }
-            output.append(String.format("%-35s", genres).substring(0,35) + " | ");
-
-            String directorQuery = "SELECT fname, lname FROM person p, directs d " +
-                    "WHERE d.mid = " + mid + " AND d.pid = p.pid ORDER BY fname, lname";
-            ResultSet directorSet;
-            StringBuilder directors = new StringBuilder();
-            try (PreparedStatement directorStmt = InitConnection.getCon().prepareStatement(directorQuery)) {
-                directorSet = directorStmt.executeQuery();
-                if (directorSet.isBeforeFirst()) {
-                    directorSet.next();
-                    directors.append(directorSet.getString("fname"));
-                    if (directorSet.getObject("lname") != null) {
-                        directors.append(" " + directorSet.getString("lname"));
-                    }
-                    while (directorSet.next()) {
-                        directors.append(", " + directorSet.getString("fname"));
-                        if (directorSet.getObject("lname") != null) {
-                            directors.append(" " + directorSet.getString("lname"));
-                        }
-                    }
+    /**
+     * This method formats each movie as a line of the results table, filling in its average user rating, genre(s),
+     * director(s), studio(s), and cast member(s). The details for every movie are fetched with one query per column
+     * rather than one per row.
+     *
+     * @param con  The connection to query the details with.
+     * @param rows The movies to format.
+     * @return the formatted results, in the same order as the rows.
+     */
+    private static List<SearchResult> formatResults(Connection con, List<MovieRow> rows) throws SQLException {
+        Map<Integer, Double> ratings = new HashMap<>();
+        Map<Integer, String> genres = new HashMap<>();
+        Map<Integer, String> directors = new HashMap<>();
+        Map<Integer, String> studios = new HashMap<>();
+        Map<Integer, String> cast = new HashMap<>();
+        if (!rows.isEmpty()) {
+            Array mids = con.createArrayOf("INTEGER", rows.stream().map(MovieRow::mid).distinct().toArray());
+            try (PreparedStatement rateStmt = con.prepareStatement("SELECT mid, rating_sum, rating_count " +
+                    "FROM movie_summary WHERE mid = ANY(?) AND rating_count > 0")) {
+                rateStmt.setArray(1, mids);
+                ResultSet rateSet = rateStmt.executeQuery();
+                while (rateSet.next()) {
+                    ratings.put(rateSet.getInt("mid"), (double) rateSet.getLong("rating_sum") /
+                            rateSet.getInt("rating_count"));
                 }
             }
-            output.append(String.format("%-30s", directors).substring(0, 30) + " | ");
-
-            String studioQuery = "SELECT name FROM studio s, produces p " +
-                    "WHERE p.mid = " + mid + " AND p.sid = s.sid ORDER BY name";
-            ResultSet studioSet;
-            StringBuilder studios = new StringBuilder();
-            try (PreparedStatement studioStmt = InitConnection.getCon().prepareStatement(studioQuery)) {
-                studioSet = studioStmt.executeQuery();
-                if (studioSet.isBeforeFirst()) {
-                    studioSet.next();
-                    studios.append(studioSet.getString("name"));
-                    while (studioSet.next()) {
-                        studios.append(", " + studioSet.getString("name"));
-                    }
-                }
+            fetchNameLists(con, "SELECT o.mid, name FROM genre g, genreof o " +
+                    "WHERE o.mid = ANY(?) AND g.gid = o.gid ORDER BY o.mid, name", mids, genres);
+            fetchNameLists(con, "SELECT d.mid, fname, lname FROM person p, directs d " +
+                    "WHERE d.mid = ANY(?) AND d.pid = p.pid ORDER BY d.mid, fname, lname", mids, directors);
+            fetchNameLists(con, "SELECT p.mid, name FROM studio s, produces p " +
+                    "WHERE p.mid = ANY(?) AND p.sid = s.sid ORDER BY p.mid, name", mids, studios);
+            fetchNameLists(con, "SELECT a.mid, fname, lname FROM person p, actsin a " +
+                    "WHERE a.mid = ANY(?) AND a.pid = p.pid ORDER BY a.mid, fname, lname", mids, cast);
+        }
+
+        List<SearchResult> results = new ArrayList<>(rows.size());
+        for (MovieRow row : rows) {
+            StringBuilder output = new StringBuilder();
+            int hours = row.length() / 60;
+            int minutes = row.length() % 60;
+            output.append(String.format("%-30s", row.title()).substring(0, 30) + " | " +
+                    String.format("%-5s", row.mid()) + " | " + row.date().toString().substring(0, 4) + "  | " +
+                    String.format("%-7s", hours + ":" + (minutes < 10 ? "0" + minutes : minutes)) + " | "
+                    + String.format("%-11s", row.mpaa()) + "  | ");
+
+            // Movies without any ratings have no row in the average query, just like a null average.
+            double avgRating = ratings.getOrDefault(row.mid(), 0.0);
+            if (avgRating == 0.0) {
+                output.append(String.format("%-20s", "No ratings") + " | ");
+            } else {
+                output.append(String.format("%-20s", (double)Math.round(avgRating * 10) / 10) + " | ");
             }
-            output.append(String.format("%-35s", studios).substring(0, 35) + " | ");
-
-            String castQuery = "SELECT fname, lname FROM person p, actsin a " +
-                    "WHERE a.mid = " + mid + " AND a.pid = p.pid ORDER BY fname, lname";
-            ResultSet castSet;
-            try (PreparedStatement castStmt = InitConnection.getCon().prepareStatement(castQuery)) {
-                castSet = castStmt.executeQuery();
-                if (castSet.isBeforeFirst()) {
-                    castSet.next();
-                    output.append(castSet.getString("fname"));
-                    if (castSet.getObject("lname") != null) {
-                        output.append(" " + castSet.getString("lname"));
-                    }
-                    while (castSet.next()) {
-                        output.append(", " + castSet.getString("fname"));
-                        if (castSet.getObject("lname") != null) {
-                            output.append(" " + castSet.getString("lname"));
-                        }
-                    }
+            output.append(String.format("%-35s", genres.getOrDefault(row.mid(), "")).substring(0,35) + " | ");
+            output.append(String.format("%-30s", directors.getOrDefault(row.mid(), "")).substring(0, 30) + " | ");
+            output.append(String.format("%-35s", studios.getOrDefault(row.mid(), "")).substring(0, 35) + " | ");
+            output.append(cast.getOrDefault(row.mid(), ""));
+
+            results.add(new SearchResult(row, output.toString()));
+        }
+        return results;
+    }
+
+    /**
+     * This is a helper method that reads every remaining row of a result set.
+     *
+     * @param movieSet The result set from the performed query.
+     * @return the movies in the order they were returned.
+     */
+    private static List<MovieRow> readRows(ResultSet movieSet) throws SQLException {
+        List<MovieRow> rows = new ArrayList<>();
+        while (movieSet.next()) {
+            rows.add(readRow(movieSet));
+        }
+        return rows;
+    }
+
+    private static MovieRow readRow(ResultSet movieSet) throws SQLException {
+        return new MovieRow(movieSet.getString("title"), movieSet.getInt("mid"), movieSet.getTimestamp("date"),
+                movieSet.getInt("length"), movieSet.getString("mpaa"), null, null);
+    }
+
+    private static MovieRow readSearchRow(ResultSet movieSet) throws SQLException {
+        return new MovieRow(movieSet.getString("title"), movieSet.getInt("mid"), movieSet.getTimestamp("date"),
+                movieSet.getInt("length"), movieSet.getString("mpaa"), movieSet.getString("gname"),
+                movieSet.getString("sname"));
+    }
+
+    /**
+     * This is a helper method that runs a detail query for a batch of movies and joins the names returned for each
+     * movie with commas, keeping the order of the query. The query must take the array of mids as its only parameter
+     * and return the mid first, followed by either a name column or fname and lname columns for people.
+     *
+     * @param con   The connection to query with.
+     * @param query The detail query, ordered by mid and then by name.
+     * @param mids  The array of movie ids to fetch details for.
+     * @param names The map each movie's comma separated names are added to.
+     */
+    private static void fetchNameLists(Connection con, String query, Array mids, Map<Integer, String> names)
+            throws SQLException {
+        try (PreparedStatement detailStmt = con.prepareStatement(query)) {
+            detailStmt.setArray(1, mids);
+            ResultSet detailSet = detailStmt.executeQuery();
+            boolean isPerson = detailSet.getMetaData().getColumnCount() == 3;
+            while (detailSet.next()) {
+                int mid = detailSet.getInt(1);
+                String name = detailSet.getString(2);
+                if (isPerson && detailSet.getObject(3) != null) {
+                    name += " " + detailSet.getString(3);
                 }
+                names.merge(mid, name, (previous, next) -> previous + ", " + next);
             }
-
-            System.out.println(output);
         }
-        System.out.println("-------");
     }
 
     /**
      * This method prompts the user to enter how much of the given movie they want to watch, and then logs a watch
      * session between the time the command was run and that time + the provided length.
      *
+     * @param session The session of the user interacting with this page.
      * @param movieId The integer representing the ID of the movie that the user wants to watch.
      */
-    private static void WatchMovie(int movieId) throws SQLException {
+    private static void WatchMovie(UserSession session, int movieId) throws SQLException {
         ResultSet lengthSet;
         int length;
-        try (Statement lengthStmt = InitConnection.getCon().createStatement()) {
-            String lengthQuery = "SELECT length FROM movie WHERE mid = " + movieId;
-            lengthSet = lengthStmt.executeQuery(lengthQuery);
+        try (Connection con = session.getCon();
+             PreparedStatement lengthStmt = con.prepareStatement("SELECT length FROM movie WHERE mid = ?")) {
+            lengthStmt.setInt(1, movieId);
+            lengthSet = lengthStmt.executeQuery();
             if (!lengthSet.next()) {
-                System.out.println("There is no movie matching this ID, please select a valid movie id.");
+                session.println("There is no movie matching this ID, please select a valid movie id.");
                 return;
             }
             length = lengthSet.getInt("length");
         }
-        System.out.println("Please enter how many minutes out of " + length + " total you want to watch or " +
+        session.println("Please enter how many minutes out of " + length + " total you want to watch or " +
                 "Exit to return to the movie menu.");
         String userLength;
         int watchLength;
         while (true) {
-            userLength = InputReader.nextLine().trim();
+            userLength = session.nextLine().trim();
             if (userLength.equals("Exit")) {
                 return;
             }
@@ -638,23 +945,18 @@ public class MoviePage {
             try {
                 watchLength = Integer.parseInt(userLength);
             } catch (NumberFormatException e) {
-                System.out.println("Please provide a number for movie ID.");
+                session.println("Please provide a number for movie ID.");
                 continue;
             }
 
             // Here, we only consider watching a movie to occur for at least 1 minute.
             if (watchLength <= 0 || watchLength > length) {
-                System.out.println("Please only enter a movie watch time between 1 and the total length " + length + ".");
+                session.println("Please only enter a movie watch time between 1 and the total length " + length + ".");
                 continue;
             }
 
-            try (PreparedStatement watchStmt = InitConnection.getCon().prepareStatement(
-                    "INSERT INTO watches(mid, uid, starttime, endtime) VALUES(?, ?, NOW(), NOW() + CAST(? " +
-                            "AS interval))")) {
-                watchStmt.setInt(1, movieId);
-                watchStmt.setInt(2, UserID);
-                watchStmt.setString(3, watchLength + " minutes");
-                watchStmt.executeUpdate();
+            try (Connection con = session.getCon()) {
+                WatchHistory.record(con, session.getUserId(), movieId, 0, watchLength);
             }
             return;
         }
@@ -663,21 +965,22 @@ public class MoviePage {
     /**
      * This method allows the user to rate a movie 1-5 stars, and then records the rating in the database.
      *
+     * @param session The session of the user interacting with this page.
      * @param movieId The integer representing the id of the movie the user wants to rate.
      */
-    private static void RateMovie(int movieId) throws SQLException {
+    private static void RateMovie(UserSession session, int movieId) throws SQLException {
         ResultSet ratingSet;
-        boolean hasRating = false;
-        try (Statement currentRatingStmt = InitConnection.getCon().createStatement()) {
-            String ratingQuery = "SELECT rating FROM rates WHERE mid = " + movieId + " AND uid = " + UserID;
-            ratingSet = currentRatingStmt.executeQuery(ratingQuery);
+        try (Connection con = session.getCon(); PreparedStatement currentRatingStmt = con.prepareStatement(
+                "SELECT rating FROM rates WHERE mid = ? AND uid = ?")) {
+            currentRatingStmt.setInt(1, movieId);
+            currentRatingStmt.setInt(2, session.getUserId());
+            ratingSet = currentRatingStmt.executeQuery();
             if (!ratingSet.next()) {
-                System.out.println("You have not yet rated this movie, enter Rating [1-5] to rate the movie or " +
+                session.println("You have not yet rated this movie, enter Rating [1-5] to rate the movie or " +
                         "Exit to return to the movie menu.");
             } else {
-                System.out.println("You have already rated this movie a " + ratingSet.getInt("rating") +
+                session.println("You have already rated this movie a " + ratingSet.getInt("rating") +
                         " out of 5, enter Rating [1-5] to re-rate the movie or Exit to return to the movie menu.");
-                hasRating = true;
             }
         }
 
@@ -685,11 +988,11 @@ public class MoviePage {
         String userRating;
         int movieRating;
         while (true) {
-            userCommand = InputReader.nextLine().trim();
+            userCommand = session.nextLine().trim();
             if (userCommand.equals("Exit")) {
                 return;
             } else if (!userCommand.startsWith("Rating")) {
-                System.out.println("Please enter Rating [1-5] or Exit.");
+                session.println("Please enter Rating [1-5] or Exit.");
                 continue;
             }
 
@@ -698,27 +1001,27 @@ public class MoviePage {
             try {
                 movieRating = Integer.parseInt(userRating);
             } catch (NumberFormatException e) {
-                System.out.println("Please provide a number for your rating.");
+                session.println("Please provide a number for your rating.");
                 continue;
             }
 
-            String rateQuery = hasRating ? "UPDATE rates SET rating = ? WHERE mid = ? AND uid = ?" : "INSERT INTO " +
-                    "rates(rating, mid, uid) VALUES(?, ?, ?)";
-            // Do update if we already have a rating and insert if not.
-            try (PreparedStatement rateStmt = InitConnection.getCon().prepareStatement(rateQuery)) {
-                rateStmt.setInt(1, movieRating);
-                rateStmt.setInt(2, movieId);
-                rateStmt.setInt(3, UserID);
+            // The rating and the movie's running totals change in one transaction, so the average and distribution
+            // read from movie_summary always agree with the rates table. The pool rolls back anything left uncommitted.
+            try (Connection con = session.getCon()) {
+                con.setAutoCommit(false);
                 // As with our other added constraints, let the DB constraints handle bouncing bad requests.
                 try {
-                    rateStmt.executeUpdate();
-                    System.out.println("You have successfully rated movie " + movieId + "! Enter Rating [1-5] to " +
+                    recordRating(con, session.getUserId(), movieId, movieRating);
+                    con.commit();
+                    UserProfiles.rated(session.getUserId(), movieId, movieRating);
+                    ItemMatrix.rated(session.getUserId(), movieId, movieRating);
+                    RecommendationCache.invalidate(session.getUserId());
+                    session.println("You have successfully rated movie " + movieId + "! Enter Rating [1-5] to " +
                             "re-rate the movie or Exit to return to the movie menu.");
-                    hasRating = true;
                 } catch (SQLException e) {
                     String errorMessage = e.getMessage();
                     if (errorMessage.contains("check constraint")) {    // Corresponds to SQLState 23514
-                        System.out.println("Please rate the movie 1-5 stars.");
+                        session.println("Please rate the movie 1-5 stars.");
                     } else {
                         // If it is not the check constraint error we expect, throw it.
                         throw e;
@@ -727,4 +1030,78 @@ public class MoviePage {
             }
         }
     }
+
+    /**
+     * This method records a user's rating of a movie, inserting it or replacing their previous rating, and applies the
+     * change to the movie's rating sum, count, and histogram in movie_summary, all in one statement. The previous
+     * rating is locked and read in the same statement, so two sessions of the same user rating the same movie at once
+     * cannot both take it off the totals, or both count a new rating. It must be called inside a transaction so the
+     * rating and the totals are committed together.
+     *
+     * @param con     The connection to record the rating on, with autocommit off.
+     * @param userId  The uid of the user rating the movie.
+     * @param movieId The mid of the movie being rated.
+     * @param rating  The rating, from 1 to 5.
+     */
+    private static void recordRating(Connection con, int userId, int movieId, int rating) throws SQLException {
+        // A new rating adds one to its bucket of the histogram, while a changed rating moves one between buckets. If
+        // another session inserted the rating after this statement started, it cannot be read here, so the update is
+        // skipped and nothing is returned; running the statement again then sees it.
+        try (PreparedStatement rateStmt = con.prepareStatement(
+                "WITH previous AS (SELECT rating FROM rates WHERE uid = ? AND mid = ? FOR UPDATE), " +
+                        "rated AS (INSERT INTO rates AS r (uid, mid, rating) VALUES (?, ?, ?) " +
+                        "ON CONFLICT (uid, mid) DO UPDATE SET rating = EXCLUDED.rating " +
+                        "WHERE EXISTS (SELECT 1 FROM previous) " +
+                        "RETURNING r.mid, r.rating, COALESCE((SELECT rating FROM previous), 0) AS previous), " +
+                        "totals AS (UPDATE movie_summary ms SET rating_sum = ms.rating_sum + r.rating - r.previous, " +
+                        "rating_count = ms.rating_count + (r.previous = 0)::int, " +
+                        "rating_counts = ARRAY(SELECT c + (i = r.rating)::int - (i = r.previous)::int " +
+                        "FROM unnest(ms.rating_counts) WITH ORDINALITY AS t(c, i) ORDER BY i) " +
+                        "FROM rated r WHERE ms.mid = r.mid AND r.rating <> r.previous) " +
+                        "SELECT previous FROM rated")) {
+            rateStmt.setInt(1, userId);
+            rateStmt.setInt(2, movieId);
+            rateStmt.setInt(3, userId);
+            rateStmt.setInt(4, movieId);
+            rateStmt.setInt(5, rating);
+            while (!rateStmt.executeQuery().next()) {
+                // Lost the race to insert the first rating; the other session's rating is the previous one now.
+            }
+        }
+    }
+
+    /**
+     * This method prints how a movie's ratings are distributed across 1-5 stars, with its average rating. The counts
+     * are read from the movie's row of movie_summary, so this costs the same however many ratings the movie has.
+     *
+     * @param session The session of the user interacting with this page.
+     * @param movieId The integer representing the id of the movie to show the ratings of.
+     */
+    private static void ratingDistribution(UserSession session, int movieId) throws SQLException {
+        try (Connection con = session.getCon(); PreparedStatement distributionStmt = con.prepareStatement(
+                "SELECT m.title, ms.rating_sum, ms.rating_count, ms.rating_counts FROM movie m, movie_summary ms " +
+                        "WHERE m.mid = ? AND ms.mid = m.mid")) {
+            distributionStmt.setInt(1, movieId);
+            ResultSet distributionSet = distributionStmt.executeQuery();
+            if (!distributionSet.next()) {
+                session.println("No movie exists with ID " + movieId + ".");
+                return;
+            }
+            String title = distributionSet.getString("title");
+            int ratingCount = distributionSet.getInt("rating_count");
+            if (ratingCount == 0) {
+                session.println(title + " has no ratings yet.");
+                return;
+            }
+            Integer[] counts = (Integer[]) distributionSet.getArray("rating_counts").getArray();
+            session.println("Rating distribution for " + title + " (" + ratingCount + " ratings, average " +
+                    String.format("%.2f", (double) distributionSet.getLong("rating_sum") / ratingCount) + "):");
+            for (int stars = 5; stars >= 1; stars--) {
+                int count = counts[stars - 1];
+                // Bars are scaled so that a movie with every rating in one bucket gets a bar of 40 characters.
+                session.println(stars + " stars | " + String.format("%-40s", "#".repeat(count * 40 / ratingCount)) +
+                        " | " + String.format("%5.1f%%", 100.0 * count / ratingCount) + " (" + count + ")");
+            }
+        }
+    }
 }
@@ -3,7 +3,8 @@ import java.util.*;
 
 /**
  * This class contains methods that compute similar users based on watch and rating history, then display some
- * recommendations based on those users' highly rated movies.
+ * recommendations based on those users' highly rated movies, or that display the movies most like the ones the user
+ * watched.
  *
  * @author Aditya Kumar ak6169
  * @author Donald Tsang dht1455
@@ -14,34 +15,97 @@ import java.util.*;
 public class MovieRecommendationPage {
 
     /**
-     * This method computes and displays a list of recommended movies to watch via similar users.
+     * This method displays a list of recommended movies to watch via similar users, or via the movies the user
+     * watched. The list is served from the recommendation cache when that is on, and computed here otherwise.
      *
-     * @param id The int representing the uid of the currently logged-in user.
+     * @param session The session of the currently logged-in user.
+     * @param engine  "movies" to recommend movies like the ones watched, or "users" or nothing to use similar users.
      */
-    public static void FindMovies(int id) throws SQLException {
+    public static void FindMovies(UserSession session, String engine) throws SQLException {
+        if (engine.isEmpty()) {
+            engine = "users";
+        } else if (!engine.equals("users") && !engine.equals("movies")) {
+            session.println("Please choose recommendations from users or movies.");
+            return;
+        }
+        int id = session.getUserId();
 
-        ArrayList<Integer> similarUserIds = findSimilarUsers(id);
+        List<String> lines;
+        if (RecommendationCache.ENABLED) {
+            lines = RecommendationCache.get(id, engine);
+        } else {
+            try (Connection con = session.getCon()) {
+                lines = recommend(con, id, engine);
+            }
+        }
+        for (String line : lines) {
+            session.println(line);
+        }
+    }
+
+    /**
+     * This method computes a user's recommendations from either engine, as the lines to display.
+     *
+     * @param con    The connection to query with.
+     * @param userId The int representing the uid of the user to recommend movies to.
+     * @param engine "movies" to recommend movies like the ones watched, or "users" to use similar users.
+     *
+     * @return the lines to display.
+     */
+    static List<String> recommend(Connection con, int userId, String engine) throws SQLException {
+        List<String> lines = new ArrayList<>();
+        if (engine.equals("movies")) {
+            findLikeWatched(con, userId, lines);
+            return lines;
+        }
+
+        ArrayList<Integer> similarUserIds = findSimilarUsers(con, userId);
 
         // If there are no similar users, the user is probably new. This is very unlikely given the low matching
         // threshold currently set, so really only occurs when you have watched a single movie that no one else has.
         if (similarUserIds.isEmpty()) {
-            System.out.println("No similar users found to generate recommendations.");
-            return;
+            lines.add("No similar users found to generate recommendations.");
+            return lines;
         }
 
-        //Otherwise, find and print movie recommendations based on highly rated movies from the similar users.
-        getHighlyRatedMovies(similarUserIds, id);
+        //Otherwise, find movie recommendations based on highly rated movies from the similar users.
+        getHighlyRatedMovies(con, similarUserIds, userId, lines);
+        return lines;
     }
 
     /**
      * This method finds the most similar users for the currently logged-in user by genre, actor, and director. The
-     * arbitrary threshold for similarity is set at 3 matching genres, actors, or directors total.
+     * arbitrary threshold for similarity is set at 3 matching genres, actors, or directors total. They are found from
+     * the last run of the neighbours job where it found some for the user. Otherwise, such as for users new since that
+     * run, they are found live from the in-memory user profiles once those are loaded, and with a query if not.
      *
+     * @param con The connection to query with.
      * @param userId The int representing the uid of the currently logged-in user.
      *
      * @return  ArrayList of Integer Ids corresponding to similar users.
      */
-    private static ArrayList<Integer> findSimilarUsers(int userId) throws SQLException {
+    private static ArrayList<Integer> findSimilarUsers(Connection con, int userId) throws SQLException {
+        if (Neighbours.ENABLED) {
+            ArrayList<Integer> neighbours = Neighbours.find(con, userId);
+            if (neighbours != null) {
+                return neighbours;
+            }
+        }
+        if (UserProfiles.isLoaded()) {
+            return UserProfiles.similarUsers(userId);
+        }
+        return similarUsersQuery(con, userId);
+    }
+
+    /**
+     * This method finds the most similar users with a query that compares the user's watches with everyone else's.
+     *
+     * @param con The connection to query with.
+     * @param userId The int representing the uid of the currently logged-in user.
+     *
+     * @return  ArrayList of Integer Ids corresponding to similar users.
+     */
+    static ArrayList<Integer> similarUsersQuery(Connection con, int userId) throws SQLException {
         ArrayList<Integer> similarUsers = new ArrayList<>();
 
         // Takes all the users who have watched the same types of movies according to genre, actors, and directors.
@@ -73,7 +137,7 @@ public class MovieRecommendationPage {
                 "ORDER BY (similar_users.genre_matches + similar_users.actor_matches + similar_users.director_matches) DESC " +
                 "LIMIT 50";
 
-        try (PreparedStatement stmt = InitConnection.getCon().prepareStatement(query)) {
+        try (PreparedStatement stmt = con.prepareStatement(query)) {
             stmt.setInt(1, userId);
             stmt.setInt(2, userId);
             stmt.setInt(3, userId);
@@ -89,13 +153,53 @@ public class MovieRecommendationPage {
     }
 
     /**
-     * This method prints the set of movies that are both highly rated (> 3) by another user and unwatched by the
+     * This method lists the movies most like the ones the currently logged-in user has watched and rated, from the
+     * item-item matrix.
+     *
+     * @param con The connection to query with.
+     * @param userId The int representing the uid of the currently logged-in user.
+     * @param lines The lines to display, which the list is added to.
+     */
+    private static void findLikeWatched(Connection con, int userId, List<String> lines) throws SQLException {
+        if (!ItemMatrix.isLoaded()) {
+            lines.add("Recommendations from the movies you watched are not available right now.");
+            return;
+        }
+        List<ItemMatrix.Scored> recommended = ItemMatrix.recommend(userId);
+        if (recommended.isEmpty()) {
+            lines.add("No recommendations found based on the movies you watched.");
+            return;
+        }
+
+        int[] mids = recommended.stream().mapToInt(ItemMatrix.Scored::mid).toArray();
+        Map<Integer, String> titles = new HashMap<>();
+        try (PreparedStatement stmt = con.prepareStatement("SELECT mid, title FROM movie WHERE mid = ANY(?)")) {
+            stmt.setArray(1, SearchIndexes.idArray(con, mids));
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                titles.put(rs.getInt("mid"), rs.getString("title"));
+            }
+        }
+        lines.add("Movies Like The Ones You Watched:");
+        lines.add(String.format("%-30s", "Title") + " | " + String.format("%-5s", "MID") + " | Score");
+        for (ItemMatrix.Scored movie : recommended) {
+            lines.add(String.format("%-30s", titles.get(movie.mid())).substring(0, 30) + " | " +
+                    String.format("%-5s", movie.mid()) + " | " + String.format("%.3f", movie.score()));
+        }
+        lines.add("-------");
+    }
+
+    /**
+     * This method lists the set of movies that are both highly rated (> 3) by another user and unwatched by the
      * currently logged-in user.
      *
+     * @param con The connection to query with.
      * @param similarUserIds ArrayList<Integer> containing the Ids of similar users.
      * @param loggedInId The int representing the uid of the currently logged-in user.
+     * @param lines The lines to display, which the list is added to.
      */
-    private static void getHighlyRatedMovies(ArrayList<Integer> similarUserIds, int loggedInId) throws SQLException {
+    private static void getHighlyRatedMovies(Connection con, ArrayList<Integer> similarUserIds, int loggedInId,
+                                             List<String> lines) throws SQLException {
         // Query simply gets all ratings from the other users for movies not in our watched list to determine the 20
         // most highly rated movies among our peers.
         // Note: Unlike for measuring similarities, we do not look at unrated movies from other users nor do we look at
@@ -108,28 +212,28 @@ public class MovieRecommendationPage {
                 "ORDER BY avg_rating DESC " +
                 "LIMIT 20";
 
-        try (PreparedStatement stmt = InitConnection.getCon().prepareStatement(query)) {
+        try (PreparedStatement stmt = con.prepareStatement(query)) {
             // Convert the ArrayList into the jdbc Array type so we can use it in the query.
             // Note: = ANY(?) is used with the jdbc array because IN is not supported on arrays.
-            Array sqlArray = InitConnection.getCon().createArrayOf("INTEGER", similarUserIds.toArray());
+            Array sqlArray = con.createArrayOf("INTEGER", similarUserIds.toArray());
             stmt.setArray(1, sqlArray);
             stmt.setInt(2, loggedInId);
             stmt.setDouble(3, 3);
             ResultSet rs = stmt.executeQuery();
             if (rs.isBeforeFirst()) {
-                System.out.println("Recommended Movies:");
-                System.out.println(String.format("%-30s", "Title") + " | " + String.format("%-5s", "MID")  +
+                lines.add("Recommended Movies:");
+                lines.add(String.format("%-30s", "Title") + " | " + String.format("%-5s", "MID")  +
                         " | Average Rating");
                 while (rs.next()) {
                     String title = rs.getString("title");
                     int mid = rs.getInt("mid");
                     double rating = rs.getDouble("avg_rating");
-                    System.out.println(String.format("%-30s", title).substring(0, 30) + " | " +
+                    lines.add(String.format("%-30s", title).substring(0, 30) + " | " +
                             String.format("%-5s", mid) + " | " + String.format("%-14s", rating));
                 }
-                System.out.println("-------");
+                lines.add("-------");
             }else{
-                System.out.println("No recommendations found based on your preferences.");
+                lines.add("No recommendations found based on your preferences.");
             }
 
         }
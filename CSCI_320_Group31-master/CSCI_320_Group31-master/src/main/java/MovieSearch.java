@@ -0,0 +1,294 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class builds the queries behind the movie search page. Every search type and filter combination maps to one of
+ * a fixed set of parameterized SQL texts, with the user's input passed as parameters, so the same statement (and the
+ * same PostgreSQL plan) is reused across calls and users instead of a new SQL string being built for every search.
+ * Substring searches on titles, names, and studios are answered by the in-memory search indexes when they are loaded,
+ * so the query only fetches the matching ids instead of scanning the table with LIKE. Results are paged by keyset in
+ * any of the orders the page offers, with the condition pushed into the query so each page comes off an index.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class MovieSearch {
+
+    /**
+     * The orders a search can be paged in. DEFAULT is used until the user picks one, and the rest match the options
+     * offered when sorting search results. Every order sorts by one column, or title and then release date for
+     * DEFAULT, and ends with the movie id so rows never tie, which lets the last row of a page mark exactly where the
+     * next page starts.
+     */
+    public enum SortOrder {
+        DEFAULT(false, "title", "date"),
+        TITLE_ASC(false, "title"),
+        TITLE_DESC(true, "title"),
+        DATE_ASC(false, "date"),
+        DATE_DESC(true, "date"),
+        GENRE_ASC(false, "gname"),
+        GENRE_DESC(true, "gname"),
+        STUDIO_ASC(false, "sname"),
+        STUDIO_DESC(true, "sname");
+
+        private final boolean descending;
+        private final String[] keys;
+
+        SortOrder(boolean descending, String... columns) {
+            this.descending = descending;
+            keys = Arrays.copyOf(columns, columns.length + 1);
+            keys[columns.length] = "mid";
+        }
+
+        /**
+         * @param row A result set positioned on a row of a search.
+         * @return the sort key values of the row, which can be passed to prepare to fetch the rows after it.
+         */
+        public Object[] keyOf(ResultSet row) throws SQLException {
+            Object[] key = new Object[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                key[i] = row.getObject(keys[i]);
+            }
+            return key;
+        }
+    }
+
+    private static final String PRIMARY_GENRE = "ms.primary_genre";
+    private static final String PRIMARY_STUDIO = "ms.primary_studio";
+
+    // Every search reads the release date, genre, and studio it shows from movie_summary. Movies missing any of the
+    // three are left out, as they always have been.
+    private static final String COLUMNS = "m.title, m.mid, ms.first_release AS date, m.length, m.mpaa, ";
+    private static final String SUMMARY = "ms.mid = m.mid AND ms.first_release IS NOT NULL " +
+            "AND ms.primary_genre IS NOT NULL AND ms.primary_studio IS NOT NULL";
+
+    private static final String TITLE_QUERY = "SELECT " + COLUMNS + "ms.primary_genre AS gname, " +
+            "ms.primary_studio AS sname FROM movie m, movie_summary ms WHERE " + SUMMARY + " AND %s";
+    private static final String TITLE_LIKE_QUERY = String.format(TITLE_QUERY, "title LIKE ?");
+    private static final String TITLE_IDS_QUERY = String.format(TITLE_QUERY, "m.mid = ANY(?)");
+    private static final String DATE_QUERY = String.format(TITLE_QUERY,
+            "ms.first_release >= ? AND ms.first_release < ?");
+
+    // Every query lists each movie once without DISTINCT or GROUP BY and ends in its WHERE clause, so the keyset
+    // condition and ORDER BY of a page go straight into it, where they can be answered from an index on the sort key.
+    private static final String PERSON_QUERY = "SELECT " + COLUMNS + "ms.primary_genre AS gname, " +
+            "ms.primary_studio AS sname FROM movie m, movie_summary ms WHERE " + SUMMARY + " AND EXISTS " +
+            "(SELECT 1 FROM person p, %1$s WHERE p.pid = x.pid AND x.mid = m.mid AND %2$s)";
+    private static final String CAST_FIRST_QUERY = String.format(PERSON_QUERY, "actsin x", "fname LIKE ?");
+    private static final String CAST_LAST_QUERY = String.format(PERSON_QUERY, "actsin x", "lname LIKE ?");
+    private static final String CAST_BOTH_QUERY = String.format(PERSON_QUERY, "actsin x",
+            "fname LIKE ? AND lname LIKE ?");
+    private static final String CAST_IDS_QUERY = String.format(PERSON_QUERY, "actsin x", "p.pid = ANY(?)");
+    private static final String DIRECTOR_FIRST_QUERY = String.format(PERSON_QUERY, "directs x", "fname LIKE ?");
+    private static final String DIRECTOR_LAST_QUERY = String.format(PERSON_QUERY, "directs x", "lname LIKE ?");
+    private static final String DIRECTOR_BOTH_QUERY = String.format(PERSON_QUERY, "directs x",
+            "fname LIKE ? AND lname LIKE ?");
+    private static final String DIRECTOR_IDS_QUERY = String.format(PERSON_QUERY, "directs x", "p.pid = ANY(?)");
+
+    // A movie made by several matching studios is listed once, under the first of them. That name depends on the
+    // search, so no index holds it, and sorting a studio search by studio reads every match before the first page.
+    private static final String STUDIO_QUERY = "SELECT " + COLUMNS + "ms.primary_genre AS gname, matched.sname " +
+            "FROM movie m, movie_summary ms, LATERAL (SELECT MIN(s.name) AS sname FROM studio s, produces p " +
+            "WHERE p.mid = m.mid AND s.sid = p.sid AND %s) AS matched " +
+            "WHERE " + SUMMARY + " AND matched.sname IS NOT NULL";
+    private static final String MATCHED_STUDIO = "matched.sname";
+    private static final String STUDIO_LIKE_QUERY = String.format(STUDIO_QUERY, "s.name LIKE ?");
+    private static final String STUDIO_IDS_QUERY = String.format(STUDIO_QUERY, "s.sid = ANY(?)");
+
+    // Genre names are unique (see search_orders.sql), so joining the named genre lists each movie once.
+    private static final String GENRE_QUERY = "SELECT " + COLUMNS + "g.name AS gname, " +
+            "ms.primary_studio AS sname FROM movie m, movie_summary ms, genre g WHERE " + SUMMARY + " AND " +
+            "g.name = ? AND EXISTS (SELECT 1 FROM genreof o WHERE o.mid = m.mid AND o.gid = g.gid)";
+    private static final String NAMED_GENRE = "g.name";
+
+    private final String query;
+    // The expressions the gname and sname columns are read from, which the genre and studio orders sort by.
+    private final String genreColumn;
+    private final String studioColumn;
+    private final List<Object> params;
+
+    private MovieSearch(String query, Object... params) {
+        this(query, PRIMARY_GENRE, PRIMARY_STUDIO, List.of(params));
+    }
+
+    private MovieSearch(String query, String genreColumn, String studioColumn, List<Object> params) {
+        this.query = query;
+        this.genreColumn = genreColumn;
+        this.studioColumn = studioColumn;
+        this.params = params;
+    }
+
+    /**
+     * @param title Text the movie title must contain.
+     * @return a search for movies whose title contains the given text.
+     */
+    public static MovieSearch title(String title) {
+        if (SearchIndexes.isLoaded()) {
+            return new MovieSearch(TITLE_IDS_QUERY, (Object) SearchIndexes.TITLES.search(title));
+        }
+        return new MovieSearch(TITLE_LIKE_QUERY, contains(title));
+    }
+
+    /**
+     * @param mids The ids of the movies to find.
+     * @return a search for the given movies.
+     */
+    public static MovieSearch movies(int[] mids) {
+        return new MovieSearch(TITLE_IDS_QUERY, (Object) mids);
+    }
+
+    /**
+     * @param date A date in the form YYYY, YYYY-MM, or YYYY-MM-DD.
+     * @return a search for movies first released in the given year, month, or on the given day.
+     * @throws DateTimeException if the date is in the right form but does not exist, such as 2024-13.
+     */
+    public static MovieSearch releaseDate(String date) {
+        LocalDate start;
+        LocalDate end;
+        if (date.length() == 4) {
+            start = LocalDate.of(Integer.parseInt(date), 1, 1);
+            end = start.plusYears(1);
+        } else if (date.length() == 7) {
+            start = YearMonth.parse(date).atDay(1);
+            end = start.plusMonths(1);
+        } else {
+            start = LocalDate.parse(date);
+            end = start.plusDays(1);
+        }
+        // A range on the first release date, rather than comparing part of it, lets the query use its index.
+        return new MovieSearch(DATE_QUERY, Timestamp.valueOf(start.atStartOfDay()),
+                Timestamp.valueOf(end.atStartOfDay()));
+    }
+
+    /**
+     * @param firstName Text the cast member's first name must contain, or blank to match any first name.
+     * @param lastName  Text the cast member's last name must contain, or blank to match any last name.
+     * @return a search for movies with a matching cast member.
+     */
+    public static MovieSearch castMember(String firstName, String lastName) {
+        return person(CAST_FIRST_QUERY, CAST_LAST_QUERY, CAST_BOTH_QUERY, CAST_IDS_QUERY, firstName, lastName);
+    }
+
+    /**
+     * @param firstName Text the director's first name must contain, or blank to match any first name.
+     * @param lastName  Text the director's last name must contain, or blank to match any last name.
+     * @return a search for movies with a matching director.
+     */
+    public static MovieSearch director(String firstName, String lastName) {
+        return person(DIRECTOR_FIRST_QUERY, DIRECTOR_LAST_QUERY, DIRECTOR_BOTH_QUERY, DIRECTOR_IDS_QUERY, firstName,
+                lastName);
+    }
+
+    /**
+     * @param studio Text the studio name must contain.
+     * @return a search for movies produced by a matching studio.
+     */
+    public static MovieSearch studio(String studio) {
+        if (SearchIndexes.isLoaded()) {
+            return new MovieSearch(STUDIO_IDS_QUERY, PRIMARY_GENRE, MATCHED_STUDIO,
+                    List.of(SearchIndexes.STUDIOS.search(studio)));
+        }
+        return new MovieSearch(STUDIO_LIKE_QUERY, PRIMARY_GENRE, MATCHED_STUDIO, List.of(contains(studio)));
+    }
+
+    /**
+     * @param genre The exact genre name.
+     * @return a search for movies with the given genre.
+     */
+    public static MovieSearch genre(String genre) {
+        return new MovieSearch(GENRE_QUERY, NAMED_GENRE, PRIMARY_STUDIO, List.of(genre));
+    }
+
+    /**
+     * This prepares one page of the search on the given connection with its parameters bound, ready to execute. Pages
+     * are found by keyset rather than by offset: the page starts right after the given sort key, and the condition and
+     * ORDER BY are part of the search's own WHERE clause, so the page is read from the index on the sort key (see
+     * search_orders.sql) and later pages cost the same as the first one.
+     *
+     * @param con   The connection to prepare the statement on.
+     * @param order The order the results should be returned in.
+     * @param after The sort key of the last row of the previous page, or null for the first page.
+     * @param limit The maximum number of rows to return.
+     * @return the prepared statement, which the caller must close.
+     */
+    public PreparedStatement prepare(Connection con, SortOrder order, Object[] after, int limit) throws SQLException {
+        String[] columns = new String[order.keys.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = column(order, order.keys[i]);
+        }
+        String direction = order.descending ? " DESC" : "";
+        StringBuilder sql = new StringBuilder(query);
+        if (after != null) {
+            // All keys share one direction, so a single row comparison marks where the page starts in the index.
+            sql.append(" AND (").append(String.join(", ", columns)).append(order.descending ? ") < (" : ") > (")
+                    .append(String.join(", ", Collections.nCopies(columns.length, "?"))).append(")");
+        }
+        sql.append(" ORDER BY ").append(String.join(direction + ", ", columns)).append(direction).append(" LIMIT ?");
+        PreparedStatement stmt = con.prepareStatement(sql.toString());
+        int index = 1;
+        for (Object param : params) {
+            if (param instanceof int[] ids) {
+                stmt.setArray(index++, SearchIndexes.idArray(con, ids));
+            } else {
+                stmt.setObject(index++, param);
+            }
+        }
+        if (after != null) {
+            for (Object key : after) {
+                stmt.setObject(index++, key);
+            }
+        }
+        stmt.setInt(index, limit);
+        return stmt;
+    }
+
+    private String column(SortOrder order, String key) {
+        return switch (key) {
+            case "title" -> "m.title";
+            case "date" -> "ms.first_release";
+            case "gname" -> genreColumn;
+            case "sname" -> studioColumn;
+            // The id comes from the same table as the leading key, so the pair matches one index.
+            default -> order.keys[0].equals("title") ? "m.mid" : "ms.mid";
+        };
+    }
+
+    private static MovieSearch person(String firstQuery, String lastQuery, String bothQuery, String idsQuery,
+                                      String firstName, String lastName) {
+        if (SearchIndexes.isLoaded()) {
+            // The name indexes find the matching people, so the query only has to look up their movies.
+            int[] pids;
+            if (lastName.isBlank()) {
+                pids = SearchIndexes.FIRST_NAMES.search(firstName);
+            } else if (firstName.isBlank()) {
+                pids = SearchIndexes.LAST_NAMES.search(lastName);
+            } else {
+                pids = TrigramIndex.intersect(SearchIndexes.FIRST_NAMES.search(firstName),
+                        SearchIndexes.LAST_NAMES.search(lastName));
+            }
+            return new MovieSearch(idsQuery, (Object) pids);
+        }
+        if (lastName.isBlank()) {
+            return new MovieSearch(firstQuery, contains(firstName));
+        } else if (firstName.isBlank()) {
+            return new MovieSearch(lastQuery, contains(lastName));
+        }
+        return new MovieSearch(bothQuery, contains(firstName), contains(lastName));
+    }
+
+    private static String contains(String text) {
+        return "%" + text + "%";
+    }
+}
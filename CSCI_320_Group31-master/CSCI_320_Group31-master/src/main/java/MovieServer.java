@@ -0,0 +1,148 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class serves the application's menus over a local TCP port. Each client that connects gets its own session
+ * running the same WelcomePage/MainMenu conversation as the terminal version, on its own virtual thread, with all
+ * sessions sharing the connection pool. Clients talk to it line by line, e.g. with netcat. When the server is closed,
+ * sessions in progress get -Dserver.graceSeconds to finish before their sockets are closed under them.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class MovieServer implements AutoCloseable {
+    public static final int DEFAULT_PORT = 5050;
+
+    private static final int GRACE_SECONDS = Integer.getInteger("server.graceSeconds", 10);
+
+    private final ServerSocket serverSocket;
+    private final ConnectionPool pool;
+    private final ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+    // The sockets of sessions in progress, so closing the server can end sessions whose clients have gone quiet.
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicLong totalSessions = new AtomicLong();
+
+    /**
+     * This opens the server socket on the loopback interface.
+     *
+     * @param port The port to listen on, or 0 to pick any free port.
+     * @param pool The connection pool shared by every client session.
+     */
+    public MovieServer(int port, ConnectionPool pool) throws IOException {
+        this.serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        this.pool = pool;
+    }
+
+    /**
+     * @return the port the server is listening on.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * This accepts clients until the server is closed, starting a session for each one on a new virtual thread.
+     */
+    public void serve() throws IOException {
+        System.out.println("Listening for clients on port " + getPort() + ".");
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                // Thrown by accept when close() is called from another thread, which is how the server is stopped.
+                break;
+            }
+            socket.setTcpNoDelay(true);
+            clients.submit(() -> runSession(socket));
+        }
+    }
+
+    /**
+     * This runs the full login and menu conversation for one client, then closes its socket.
+     *
+     * @param socket The connected client.
+     */
+    private void runSession(Socket socket) {
+        activeSessions.incrementAndGet();
+        totalSessions.incrementAndGet();
+        sockets.add(socket);
+        try (socket) {
+            // Output is buffered and flushed by the session whenever it waits for input, so a menu goes out in one
+            // write instead of one per line.
+            PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false,
+                    StandardCharsets.UTF_8);
+            UserSession session = new UserSession(socket.getInputStream(), out, pool);
+            try {
+                LoginPage.WelcomePage(session);
+            } catch (SQLException e) {
+                session.println("Encountered unexpected SQL error:  " + e.getMessage() + " Closing connection.");
+            } catch (NoSuchElementException e) {
+                // The client disconnected in the middle of a menu, so there is nobody left to talk to.
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Nothing can be sent to a client whose socket failed, so just drop the session.
+        } finally {
+            sockets.remove(socket);
+            activeSessions.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return a short description of the current session counts and pool metrics.
+     */
+    public String stats() {
+        return "sessions active=" + activeSessions.get() + " total=" + totalSessions.get() + ", pool " + pool.stats();
+    }
+
+    /**
+     * This stops accepting clients, which makes serve return, and leaves sessions already in progress running.
+     */
+    public void stop() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * This stops accepting clients and waits for sessions already in progress to finish. Sessions still running once
+     * the grace period is over, such as ones whose clients are sitting idle at a menu, have their sockets closed, which
+     * ends them at their next read.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        clients.shutdown();
+        try {
+            clients.awaitTermination(GRACE_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // The session is ending either way.
+            }
+        }
+        clients.close();
+    }
+}
@@ -0,0 +1,182 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * This class contains the precomputed similar users that recommendations are made from. A batch job, run as
+ * {@code java -cp app.jar Neighbours [threads]}, loads every user's profile, finds each user's most similar users in
+ * parallel across a fork/join pool, and writes them to the neighbours table stamped with a new generation, replacing
+ * the previous run's in one transaction. Recommendations then read a user's neighbours with one lookup, and only find
+ * similar users live for users who are new since the last run, or who had none then.
+ * <p>
+ * The job connects with -Ddb.url, -Ddb.user, and -Ddb.password, and uses every core unless given a number of threads.
+ * Setting -Drecommend.neighbours=false ignores the precomputed neighbours and always finds similar users live.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class Neighbours {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("recommend.neighbours", "true"));
+
+    // Rows sent to the database per batch when writing a run.
+    private static final int BATCH_SIZE = 1000;
+
+    // Advisory lock key held while a run is written, so two runs finishing together are numbered one after the other.
+    private static final long LOCK_KEY = 32032L;
+
+    /**
+     * One finished run of the job: its generation, how many users it covered, and how long finding and writing their
+     * neighbours took.
+     */
+    public record Run(long generation, int users, int threads, long computeNanos, long writeNanos) {
+
+        /**
+         * @return how many users' neighbours were found per second.
+         */
+        public double usersPerSecond() {
+            return users / (computeNanos / 1e9);
+        }
+    }
+
+    /**
+     * This runs the job once against the database given by -Ddb.url.
+     *
+     * @param args The number of threads to find neighbours with, which defaults to the number of cores.
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+        try (Connection con = DriverManager.getConnection(System.getProperty("db.url"),
+                System.getProperty("db.user", ""), System.getProperty("db.password", ""))) {
+            if (SchemaMigrations.ENABLED) {
+                SchemaMigrations.migrate(con);
+            }
+            long loadStart = System.nanoTime();
+            UserProfiles.load(con);
+            System.out.printf("Profiles loaded in %.0fms%n", (System.nanoTime() - loadStart) / 1e6);
+            Run run = run(con, threads);
+            System.out.printf("Generation %d: %d users in %.0fms on %d threads (%.0f users/s), written in %.0fms%n",
+                    run.generation(), run.users(), run.computeNanos() / 1e6, run.threads(), run.usersPerSecond(),
+                    run.writeNanos() / 1e6);
+        }
+    }
+
+    /**
+     * This finds the neighbours of every user with a profile and writes them as a new generation. The profiles must
+     * already be loaded.
+     *
+     * @param con     The connection to write the neighbours with.
+     * @param threads The number of threads to find neighbours with.
+     * @return the finished run.
+     */
+    public static Run run(Connection con, int threads) throws SQLException, InterruptedException {
+        int[] uids = UserProfiles.userIds();
+        long start = System.nanoTime();
+        int[][] similar = compute(uids, threads);
+        long computeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long generation = write(con, uids, similar, computeNanos);
+        return new Run(generation, uids.length, threads, computeNanos, System.nanoTime() - start);
+    }
+
+    /**
+     * This finds the most similar users of each of the given users, splitting them across a pool of the given number
+     * of threads. Each thread reads the shared profiles and keeps its own scratch counts, so they never wait on each
+     * other.
+     *
+     * @param uids    The users to find neighbours for.
+     * @param threads The number of threads to use.
+     * @return each user's similar users, in the same order as the uids.
+     */
+    public static int[][] compute(int[] uids, int threads) throws InterruptedException {
+        int[][] similar = new int[uids.length][];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, uids.length).parallel().forEach(i -> similar[i] =
+                    UserProfiles.similarUsers(uids[i]).stream().mapToInt(Integer::intValue).toArray())).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not find neighbours.", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return similar;
+    }
+
+    /**
+     * This gives a user's neighbours from the last run of the job.
+     *
+     * @param con    The connection to read the neighbours with.
+     * @param userId The uid of the user.
+     * @return the user's similar users, most similar first, or null if the last run found none for them.
+     */
+    public static ArrayList<Integer> find(Connection con, int userId) throws SQLException {
+        try (PreparedStatement stmt = con.prepareStatement("SELECT similar_uids FROM neighbours WHERE uid = ?")) {
+            stmt.setInt(1, userId);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            Integer[] similar = (Integer[]) rs.getArray("similar_uids").getArray();
+            return similar.length == 0 ? null : new ArrayList<>(List.of(similar));
+        }
+    }
+
+    /**
+     * This is a helper method that writes one run's neighbours under the next generation, in one transaction so
+     * recommendations see either all of the previous run or all of this one. Users the run did not cover are removed.
+     *
+     * @return the generation written.
+     */
+    private static long write(Connection con, int[] uids, int[][] similar, long computeNanos) throws SQLException {
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try (Statement stmt = con.createStatement();
+             PreparedStatement upsertStmt = con.prepareStatement("INSERT INTO neighbours (uid, generation, " +
+                     "similar_uids) VALUES (?, ?, ?) ON CONFLICT (uid) DO UPDATE SET " +
+                     "generation = EXCLUDED.generation, similar_uids = EXCLUDED.similar_uids");
+             PreparedStatement runStmt = con.prepareStatement("INSERT INTO neighbour_runs " +
+                     "(generation, finished, users, compute_ms) VALUES (?, NOW(), ?, ?)")) {
+            stmt.execute("SELECT pg_advisory_xact_lock(" + LOCK_KEY + ")");
+            ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(generation), 0) + 1 FROM neighbour_runs");
+            rs.next();
+            long generation = rs.getLong(1);
+
+            for (int i = 0; i < uids.length; i++) {
+                upsertStmt.setInt(1, uids[i]);
+                upsertStmt.setLong(2, generation);
+                upsertStmt.setArray(3, SearchIndexes.idArray(con, similar[i]));
+                upsertStmt.addBatch();
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    upsertStmt.executeBatch();
+                }
+            }
+            upsertStmt.executeBatch();
+            stmt.executeUpdate("DELETE FROM neighbours WHERE generation < " + generation);
+
+            runStmt.setLong(1, generation);
+            runStmt.setInt(2, uids.length);
+            runStmt.setLong(3, computeNanos / 1_000_000);
+            runStmt.executeUpdate();
+            con.commit();
+            return generation;
+        } catch (SQLException | RuntimeException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+    }
+}
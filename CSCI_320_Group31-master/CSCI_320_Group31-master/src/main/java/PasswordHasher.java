@@ -0,0 +1,237 @@
+import java.nio.charset.StandardCharsets;
+import java.security.DrbgParameters;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * This class contains the hashing of user passwords. New passwords are hashed with the algorithm and cost picked by
+ * -Dpassword.algorithm and -Dpassword.cost, and stored as {@code $algorithm$cost$hash} so each hash records how it was
+ * made. Hashes from before this format are the original salted SHA3-256, which is still checked so those users can log
+ * in; a login whose hash is not made with the current algorithm and cost is hashed again, so old hashes are replaced
+ * as their users come back and the cost can be raised later the same way.
+ * <p>
+ * Salts come from one shared DRBG that is seeded once and never waits on the system's entropy pool afterwards, unlike
+ * the blocking strong instance used before. The digests and MACs are made once per thread and reused.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class PasswordHasher {
+
+    /**
+     * The ways a password can be hashed. Each is named by the id stored at the start of its hashes, and takes a cost
+     * that sets how much work a hash is, where the algorithm has one.
+     */
+    public enum Algorithm {
+        /**
+         * The original hash: SHA3-256 over the password with the whole salt inserted every 2 characters. It has no
+         * cost and is only kept to check the hashes made before the others existed.
+         */
+        SHA3_256("sha3-256") {
+            @Override
+            byte[] hash(String password, String salt, int cost) {
+                MessageDigest digest = SHA3.get();
+                byte[] saltBytes = String.valueOf(salt).getBytes(StandardCharsets.UTF_8);
+                // If password length is odd, pad it with a '0' to make it even length.
+                if (password.length() % 2 == 1) {
+                    password += "0";
+                }
+                // Feed the salt and each pair of characters to the digest in turn, which hashes the same bytes as
+                // building the whole salted string first.
+                for (int i = 0; i < password.length(); i += 2) {
+                    digest.update(saltBytes);
+                    digest.update(password.substring(i, i + 2).getBytes(StandardCharsets.UTF_8));
+                }
+                digest.update(saltBytes);
+                return digest.digest();
+            }
+        },
+        /**
+         * PBKDF2 with HMAC-SHA256 and a 256 bit result, where the cost is the number of iterations.
+         */
+        PBKDF2_SHA256("pbkdf2-sha256") {
+            @Override
+            byte[] hash(String password, String salt, int cost) {
+                Mac mac = HMAC_SHA256.get();
+                byte[] key = password.getBytes(StandardCharsets.UTF_8);
+                try {
+                    // HMAC pads short keys with zeros, so an empty password is the same key as a single zero byte,
+                    // which SecretKeySpec accepts where it refuses an empty one.
+                    mac.init(new SecretKeySpec(key.length == 0 ? new byte[1] : key, "HmacSHA256"));
+                    // One block is the whole 256 bit result: U1 = HMAC(salt || 1), Un = HMAC(Un-1), and the result is
+                    // the xor of them all.
+                    byte[] u = new byte[mac.getMacLength()];
+                    mac.update(String.valueOf(salt).getBytes(StandardCharsets.UTF_8));
+                    mac.update(new byte[]{0, 0, 0, 1});
+                    mac.doFinal(u, 0);
+                    byte[] result = u.clone();
+                    for (int i = 1; i < cost; i++) {
+                        mac.update(u);
+                        mac.doFinal(u, 0);
+                        for (int b = 0; b < result.length; b++) {
+                            result[b] ^= u[b];
+                        }
+                    }
+                    return result;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Could not compute a PBKDF2 hash.", e);
+                }
+            }
+        };
+
+        private final String id;
+
+        Algorithm(String id) {
+            this.id = id;
+        }
+
+        /**
+         * @return the id stored at the start of this algorithm's hashes.
+         */
+        public String id() {
+            return id;
+        }
+
+        abstract byte[] hash(String password, String salt, int cost);
+
+        static Algorithm fromId(String id) {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.id.equals(id)) {
+                    return algorithm;
+                }
+            }
+            throw new IllegalArgumentException("Unknown password algorithm " + id + ".");
+        }
+    }
+
+    public static final Algorithm ALGORITHM =
+            Algorithm.fromId(System.getProperty("password.algorithm", Algorithm.PBKDF2_SHA256.id()));
+
+    public static final int COST = Integer.getInteger("password.cost", 100_000);
+
+    // Shared by every thread; it is only seeded when created, so generating a salt never waits for entropy.
+    private static final SecureRandom SALTS;
+
+    static {
+        try {
+            SALTS = SecureRandom.getInstance("DRBG",
+                    DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, null));
+        } catch (GeneralSecurityException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final ThreadLocal<MessageDigest> SHA3 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA3-256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA3-256 is not available.", e);
+        }
+    });
+
+    private static final ThreadLocal<Mac> HMAC_SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available.", e);
+        }
+    });
+
+    /**
+     * This generates a new random salt.
+     *
+     * @return 32 random bytes, encoded in base 64.
+     */
+    public static String newSalt() {
+        byte[] salt = new byte[32];
+        SALTS.nextBytes(salt);
+        // Encode in base64 rather than in hex to be more concise.
+        return Base64.getEncoder().encodeToString(salt);
+    }
+
+    /**
+     * This hashes a password with the current algorithm and cost.
+     *
+     * @param password The password to hash.
+     * @param salt     The user's salt.
+     * @return the hash to store, which records the algorithm and cost it was made with.
+     */
+    public static String hash(String password, String salt) {
+        return hash(ALGORITHM, COST, password, salt);
+    }
+
+    /**
+     * This hashes a password with the given algorithm and cost.
+     *
+     * @return the hash to store, which records the algorithm and cost it was made with.
+     */
+    public static String hash(Algorithm algorithm, int cost, String password, String salt) {
+        return prefix(algorithm, cost) + Base64.getEncoder().encodeToString(algorithm.hash(password, salt, cost));
+    }
+
+    /**
+     * This checks a password attempt against a stored hash, made with whichever algorithm and cost it records.
+     *
+     * @param attempt The password entered.
+     * @param salt    The user's salt.
+     * @param stored  The user's stored hash.
+     * @return true if the attempt is the password the hash was made from.
+     */
+    public static boolean verify(String attempt, String salt, String stored) {
+        if (stored == null) {
+            return false;
+        }
+        Algorithm algorithm = Algorithm.SHA3_256;
+        int cost = 0;
+        byte[] expected;
+        try {
+            String hash = stored;
+            if (stored.startsWith("$")) {
+                String[] parts = stored.split("\\$");
+                if (parts.length != 4) {
+                    return false;
+                }
+                algorithm = Algorithm.fromId(parts[1]);
+                cost = Integer.parseInt(parts[2]);
+                hash = parts[3];
+            }
+            expected = Base64.getDecoder().decode(hash);
+        } catch (IllegalArgumentException e) {
+            // Not a hash this class made, so no attempt can match it.
+            return false;
+        }
+        // Compare in constant time, so how long a check takes says nothing about how close the attempt was.
+        return MessageDigest.isEqual(expected, algorithm.hash(attempt, salt, cost));
+    }
+
+    /**
+     * This checks whether a stored hash was made with anything other than the current algorithm and cost, in which
+     * case it should be replaced once the user's password is next entered correctly.
+     *
+     * @param stored The user's stored hash.
+     * @return true if the password should be hashed again.
+     */
+    public static boolean needsRehash(String stored) {
+        String current = prefix(ALGORITHM, COST);
+        if (stored == null || !stored.startsWith("$")) {
+            // A bare hash is the original SHA3, which is only current if SHA3 has been picked again.
+            return !current.isEmpty();
+        }
+        return current.isEmpty() || !stored.startsWith(current);
+    }
+
+    /**
+     * This is a helper method that gives the start of every hash made with an algorithm and cost. The original hashes
+     * are stored bare, so the ones made with SHA3 can still be checked by older builds.
+     */
+    private static String prefix(Algorithm algorithm, int cost) {
+        return algorithm == Algorithm.SHA3_256 ? "" : "$" + algorithm.id() + "$" + cost + "$";
+    }
+}
@@ -0,0 +1,320 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class contains the cache of each user's recommendations, from either engine. A user's recommendations are
+ * computed once and served from memory until something they depend on changes: the user watching or rating a movie
+ * drops both of their lists, and a new run of the neighbours job drops every list made from similar users, which a
+ * background thread notices by checking the latest generation on a fixed schedule. Changes made by other users do not
+ * drop anyone's list, so a list can fall behind their watches and ratings, which the served age in the stats measures.
+ * <p>
+ * Both of a user's lists are computed in the background as soon as they log in, so the first time they open their
+ * recommendations they are usually already there. A list still being computed is waited for rather than computed
+ * twice. A user's lists are dropped when they log out, and the same background thread drops lists nobody has asked
+ * for in -Drecommend.cache.idleMinutes, and the least recently used lists once there are more than
+ * -Drecommend.cache.maxLists. At most -Drecommend.cache.maxWarming lists are warmed up at once; logins past that
+ * leave their lists to be computed when asked for. Setting -Drecommend.cache=false computes recommendations every
+ * time, and -Drecommend.cache.pollSeconds sets how often the neighbours generation is checked.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class RecommendationCache {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("recommend.cache", "true"));
+
+    private static final int POLL_SECONDS = Integer.getInteger("recommend.cache.pollSeconds", 30);
+    private static final long IDLE_MILLIS = Integer.getInteger("recommend.cache.idleMinutes", 30) * 60_000L;
+    private static final int MAX_LISTS = Integer.getInteger("recommend.cache.maxLists", 20_000);
+    private static final int MAX_WARMING = Integer.getInteger("recommend.cache.maxWarming", 64);
+
+    private static final String[] ENGINES = {"users", "movies"};
+
+    /**
+     * One user's list from one engine.
+     */
+    private record Key(int uid, String engine) {
+    }
+
+    /**
+     * A computed list, with when it was computed.
+     */
+    private record Cached(List<String> lines, long builtAtMillis) {
+    }
+
+    /**
+     * A list in the cache, computed or still being computed, with when it was last asked for.
+     */
+    private static final class Entry {
+        private final CompletableFuture<Cached> future = new CompletableFuture<>();
+        private volatile long usedAtMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * A computed list with when it was last asked for, read once so the lists can be sorted by it.
+     */
+    private record Used(Key key, Entry entry, long usedAtMillis) {
+    }
+
+    private static final Map<Key, Entry> cache = new ConcurrentHashMap<>();
+    // Warm-ups queued or running, so a burst of logins cannot queue up work without limit.
+    private static final AtomicInteger warming = new AtomicInteger();
+    private static final AtomicLong hits = new AtomicLong();
+    // Hits on a list that was still being computed, such as one still warming up after login.
+    private static final AtomicLong waits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong warmups = new AtomicLong();
+    private static final AtomicLong skippedWarmups = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+    private static final AtomicLong invalidations = new AtomicLong();
+    private static final AtomicLong refreshes = new AtomicLong();
+    private static final AtomicLong totalServedAgeMillis = new AtomicLong();
+    private static final AtomicLong maxServedAgeMillis = new AtomicLong();
+    // The latest neighbours generation seen, or -1 before the first check.
+    private static volatile long generation = -1;
+    // Only started and stopped by the main thread, alongside the connection pool.
+    private static ScheduledExecutorService worker = null;
+
+    /**
+     * This starts the background threads that warm up lists after login, drop idle lists, and check for new
+     * neighbours.
+     */
+    public static void start() {
+        if (worker != null) {
+            return;
+        }
+        worker = Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, "recommendation-cache");
+            t.setDaemon(true);
+            return t;
+        });
+        if (Neighbours.ENABLED) {
+            worker.scheduleWithFixedDelay(RecommendationCache::checkNeighbours, 0, POLL_SECONDS, TimeUnit.SECONDS);
+        }
+        worker.scheduleWithFixedDelay(RecommendationCache::evict, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * This stops the background threads once the lists still warming up are finished.
+     */
+    public static void close() throws InterruptedException {
+        if (worker != null) {
+            worker.shutdown();
+            worker.awaitTermination(10, TimeUnit.SECONDS);
+            worker = null;
+        }
+    }
+
+    /**
+     * This returns a user's recommendations from an engine, computing them on this thread if they are not cached
+     * and waiting for them if they are still being computed.
+     *
+     * @param userId The uid of the user.
+     * @param engine The engine, "users" or "movies".
+     * @return the lines to display.
+     */
+    public static List<String> get(int userId, String engine) throws SQLException {
+        Key key = new Key(userId, engine);
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            Entry computing = new Entry();
+            entry = cache.putIfAbsent(key, computing);
+            if (entry == null) {
+                misses.incrementAndGet();
+                fill(key, computing);
+                entry = computing;
+            } else {
+                hits.incrementAndGet();
+            }
+        } else {
+            hits.incrementAndGet();
+            if (!entry.future.isDone()) {
+                waits.incrementAndGet();
+            }
+        }
+        entry.usedAtMillis = System.currentTimeMillis();
+
+        Cached cached;
+        try {
+            cached = entry.future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+            throw e;
+        }
+        long age = Math.max(0, System.currentTimeMillis() - cached.builtAtMillis());
+        totalServedAgeMillis.addAndGet(age);
+        maxServedAgeMillis.accumulateAndGet(age, Math::max);
+        return cached.lines();
+    }
+
+    /**
+     * This starts computing both of a user's lists in the background, unless they are already cached or too many
+     * lists are already being warmed up, so they are ready by the time the user asks for them.
+     *
+     * @param userId The uid of the user who just logged in.
+     */
+    public static void warm(int userId) {
+        ScheduledExecutorService running = worker;
+        if (running == null) {
+            return;
+        }
+        for (String engine : ENGINES) {
+            Key key = new Key(userId, engine);
+            if (cache.containsKey(key)) {
+                continue;
+            }
+            if (warming.incrementAndGet() > MAX_WARMING) {
+                warming.decrementAndGet();
+                skippedWarmups.incrementAndGet();
+                continue;
+            }
+            Entry computing = new Entry();
+            if (cache.putIfAbsent(key, computing) != null) {
+                warming.decrementAndGet();
+                continue;
+            }
+            warmups.incrementAndGet();
+            try {
+                running.execute(() -> {
+                    try {
+                        fill(key, computing);
+                    } finally {
+                        warming.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down, so leave the list to be computed if it is asked for.
+                warming.decrementAndGet();
+                cache.remove(key, computing);
+                computing.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * This drops a user's lists after they watch or rate a movie, so the next request computes them again.
+     *
+     * @param userId The uid of the user whose history changed.
+     */
+    public static void invalidate(int userId) {
+        for (String engine : ENGINES) {
+            if (cache.remove(new Key(userId, engine)) != null) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * This drops a user's lists when they log out, since they are not needed again until the user's next login.
+     *
+     * @param userId The uid of the user logging out.
+     */
+    public static void forget(int userId) {
+        for (String engine : ENGINES) {
+            cache.remove(new Key(userId, engine));
+        }
+    }
+
+    /**
+     * This returns the cache metrics: the hit rate, how many hits waited for a list still being computed, and how old
+     * the lists served were, which is how far behind other users' changes they could have been.
+     *
+     * @return the current cache stats.
+     */
+    public static String stats() {
+        long hitCount = hits.get();
+        long served = hitCount + misses.get();
+        return String.format("size=%d hits=%d waits=%d misses=%d hitRate=%.1f%% warmups=%d skippedWarmups=%d " +
+                        "invalidations=%d evictions=%d refreshes=%d avgServedAge=%.1fs maxServedAge=%.1fs",
+                cache.size(), hitCount, waits.get(), misses.get(), served == 0 ? 0.0 : 100.0 * hitCount / served,
+                warmups.get(), skippedWarmups.get(), invalidations.get(), evictions.get(), refreshes.get(),
+                served == 0 ? 0.0 : totalServedAgeMillis.get() / 1000.0 / served, maxServedAgeMillis.get() / 1000.0);
+    }
+
+    /**
+     * This is a helper method that computes a list and completes its entry with it. If computing fails, the entry is
+     * dropped from the cache so the next request tries again.
+     */
+    private static void fill(Key key, Entry computing) {
+        try (Connection con = InitConnection.getCon()) {
+            long start = System.currentTimeMillis();
+            computing.future.complete(new Cached(MovieRecommendationPage.recommend(con, key.uid(), key.engine()),
+                    start));
+        } catch (SQLException | RuntimeException e) {
+            cache.remove(key, computing);
+            computing.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * This is a helper method that drops the lists nobody has asked for in the idle time, and then the least recently
+     * used lists until the cache is back under its size limit. Lists still being computed are left alone.
+     */
+    private static void evict() {
+        long idleSince = System.currentTimeMillis() - IDLE_MILLIS;
+        List<Used> done = new ArrayList<>();
+        for (Map.Entry<Key, Entry> cached : cache.entrySet()) {
+            Entry entry = cached.getValue();
+            long usedAtMillis = entry.usedAtMillis;
+            if (!entry.future.isDone()) {
+                continue;
+            }
+            if (usedAtMillis < idleSince) {
+                if (cache.remove(cached.getKey(), entry)) {
+                    evictions.incrementAndGet();
+                }
+            } else {
+                done.add(new Used(cached.getKey(), entry, usedAtMillis));
+            }
+        }
+        int excess = cache.size() - MAX_LISTS;
+        if (excess > 0) {
+            done.sort(Comparator.comparingLong(Used::usedAtMillis));
+            for (int i = 0; i < done.size() && excess > 0; i++) {
+                if (cache.remove(done.get(i).key(), done.get(i).entry())) {
+                    evictions.incrementAndGet();
+                    excess--;
+                }
+            }
+        }
+    }
+
+    /**
+     * This is a helper method that drops every list made from similar users once a new run of the neighbours job has
+     * been written.
+     */
+    private static void checkNeighbours() {
+        try (Connection con = InitConnection.getCon(); Statement stmt = con.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(generation), 0) FROM neighbour_runs");
+            rs.next();
+            long latest = rs.getLong(1);
+            if (generation != -1 && latest != generation) {
+                cache.keySet().removeIf(key -> key.engine().equals("users"));
+                refreshes.incrementAndGet();
+            }
+            generation = latest;
+        } catch (SQLException e) {
+            // The neighbours table may not exist yet; lists are still dropped as users change, so try again later.
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * This class contains the setup for the tables, functions, and triggers the application adds on top of the base
+ * schema. The scripts under /schema on the classpath are checked in order at startup, so a database is brought up to
+ * date simply by starting the application against it. Each script that runs is recorded in schema_scripts with a
+ * checksum of its text, and is only run again once its text changes, so starting another server or running a batch
+ * job does not repeat DDL that locks the tables in use. The scripts are still written to be safe to run again.
+ * Setting -Dschema.migrate=false skips them.
+ * <p>
+ * Run on its own, as {@code java -cp app.jar SchemaMigrations [--reconcile]}, it applies the scripts and, with
+ * --reconcile, also recomputes the totals the application keeps alongside its own writes from the tables they count.
+ * That must be done after rows are added to or changed in those tables by anything other than the application, such as
+ * a bulk load. It connects with -Ddb.url, -Ddb.user, and -Ddb.password.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class SchemaMigrations {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("schema.migrate", "true"));
+
+    // The scripts to run, in the order they must be applied.
+    private static final String[] SCRIPTS = {
+            "movie_summary.sql",
+            "rating_counts.sql",
+            "watch_days.sql",
+            "following_feed.sql",
+            "watch_journal.sql",
+            "neighbours.sql",
+            "search_orders.sql"
+    };
+
+    // The functions that recompute the totals kept by the application, each returning how many rows it corrected.
+    private static final String[] RECONCILERS = {
+            "movie_summary_reconcile_ratings",
+            "movie_summary_reconcile_watches"
+    };
+
+    // Advisory lock key held while the scripts run, so servers starting at the same time apply them one at a time.
+    private static final long LOCK_KEY = 32031L;
+
+    /**
+     * This applies the schema scripts, and reconciles the totals if asked to.
+     *
+     * @param args "--reconcile" to also reconcile the totals.
+     */
+    public static void main(String[] args) throws SQLException {
+        try (Connection con = DriverManager.getConnection(System.getProperty("db.url"),
+                System.getProperty("db.user", ""), System.getProperty("db.password", ""))) {
+            migrate(con);
+            if (args.length > 0 && args[0].equals("--reconcile")) {
+                for (Map.Entry<String, Integer> reconciled : reconcile(con).entrySet()) {
+                    System.out.println(reconciled.getKey() + ": " + reconciled.getValue() + " rows corrected");
+                }
+            }
+        }
+    }
+
+    /**
+     * This recomputes every total the application keeps from the rows it counts, each in its own transaction. The
+     * tables being counted are locked against writes while their totals are recomputed.
+     *
+     * @param con The connection to reconcile on.
+     * @return how many rows each reconcile function corrected.
+     */
+    public static Map<String, Integer> reconcile(Connection con) throws SQLException {
+        Map<String, Integer> corrected = new LinkedHashMap<>();
+        try (Statement stmt = con.createStatement()) {
+            for (String function : RECONCILERS) {
+                ResultSet rs = stmt.executeQuery("SELECT " + function + "()");
+                rs.next();
+                corrected.put(function, rs.getInt(1));
+            }
+        }
+        return corrected;
+    }
+
+    /**
+     * This runs every schema script that has not been run yet, or has changed since it was, each in its own
+     * transaction along with the record that it ran.
+     *
+     * @param con The connection to run the scripts on.
+     */
+    public static void migrate(Connection con) throws SQLException {
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try (Statement stmt = con.createStatement();
+             PreparedStatement appliedStmt = con.prepareStatement(
+                     "SELECT checksum FROM schema_scripts WHERE script = ?");
+             PreparedStatement recordStmt = con.prepareStatement("INSERT INTO schema_scripts (script, checksum, " +
+                     "applied) VALUES (?, ?, NOW()) ON CONFLICT (script) DO UPDATE SET checksum = " +
+                     "EXCLUDED.checksum, applied = EXCLUDED.applied")) {
+            stmt.execute("SELECT pg_advisory_xact_lock(" + LOCK_KEY + ")");
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_scripts (script varchar(100) PRIMARY KEY, " +
+                    "checksum bigint NOT NULL, applied timestamp NOT NULL)");
+            con.commit();
+            for (String script : SCRIPTS) {
+                String text = read(script);
+                CRC32 crc = new CRC32();
+                crc.update(text.getBytes(StandardCharsets.UTF_8));
+                stmt.execute("SELECT pg_advisory_xact_lock(" + LOCK_KEY + ")");
+                appliedStmt.setString(1, script);
+                ResultSet applied = appliedStmt.executeQuery();
+                if (!applied.next() || applied.getLong("checksum") != crc.getValue()) {
+                    stmt.execute(text);
+                    recordStmt.setString(1, script);
+                    recordStmt.setLong(2, crc.getValue());
+                    recordStmt.executeUpdate();
+                }
+                con.commit();
+            }
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static String read(String script) throws SQLException {
+        try (InputStream in = SchemaMigrations.class.getResourceAsStream("/schema/" + script)) {
+            if (in == null) {
+                throw new SQLException("Schema script " + script + " is missing from the classpath.");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new SQLException("Could not read schema script " + script + ".", e);
+        }
+    }
+}
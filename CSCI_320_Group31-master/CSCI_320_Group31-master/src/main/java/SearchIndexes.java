@@ -0,0 +1,143 @@
+import org.postgresql.PGConnection;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This class contains the in-memory substring indexes behind the substring searches: movie titles, person first and
+ * last names, studio names, and user emails. They are loaded once at startup, and pages that create rows searched by
+ * substring add them here as well. Searches only use the indexes once they are loaded, and otherwise fall back to
+ * LIKE queries, so they can be turned off with -Dsearch.index=false.
+ * <p>
+ * Titles and full person names are also indexed in a normalized form for fuzzy search, where case and punctuation are
+ * ignored so that only the letters a user typed count towards a match.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class SearchIndexes {
+
+    private static final int FETCH_SIZE = 10000;
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("search.index", "true"));
+
+    public static final TrigramIndex TITLES = new TrigramIndex();
+    public static final TrigramIndex FIRST_NAMES = new TrigramIndex();
+    public static final TrigramIndex LAST_NAMES = new TrigramIndex();
+    public static final TrigramIndex STUDIOS = new TrigramIndex();
+    public static final TrigramIndex EMAILS = new TrigramIndex();
+    public static final TrigramIndex FUZZY_TITLES = new TrigramIndex();
+    public static final TrigramIndex FUZZY_PEOPLE = new TrigramIndex();
+
+    private static volatile boolean loaded = false;
+
+    /**
+     * This loads every index from the database. Each table is read in key order through a cursor, so the posting lists
+     * are built by appending and the driver never holds a whole table in memory.
+     *
+     * @param con The connection to read the tables with.
+     */
+    public static void load(Connection con) throws SQLException {
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try {
+            try (PreparedStatement movieStmt = con.prepareStatement("SELECT mid, title FROM movie ORDER BY mid")) {
+                movieStmt.setFetchSize(FETCH_SIZE);
+                ResultSet movies = movieStmt.executeQuery();
+                while (movies.next()) {
+                    TITLES.put(movies.getInt(1), movies.getString(2));
+                    FUZZY_TITLES.put(movies.getInt(1), fuzzyKey(movies.getString(2)));
+                }
+            }
+            try (PreparedStatement personStmt = con.prepareStatement(
+                    "SELECT pid, fname, lname FROM person ORDER BY pid")) {
+                personStmt.setFetchSize(FETCH_SIZE);
+                ResultSet people = personStmt.executeQuery();
+                while (people.next()) {
+                    int pid = people.getInt(1);
+                    FIRST_NAMES.put(pid, people.getString(2));
+                    LAST_NAMES.put(pid, people.getString(3));
+                    FUZZY_PEOPLE.put(pid, fuzzyKey(fullName(people.getString(2), people.getString(3))));
+                }
+            }
+            loadIndex(con, "SELECT sid, name FROM studio ORDER BY sid", STUDIOS);
+            loadIndex(con, "SELECT uid, email FROM users ORDER BY uid", EMAILS);
+            con.commit();
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+        loaded = true;
+    }
+
+    /**
+     * @return true if the indexes have been loaded and should be used for substring searches.
+     */
+    public static boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * This is a helper method that binds the ids returned by an index search as a SQL integer array, for queries
+     * of the form {@code id = ANY(?)}. The driver accepts the primitive array directly, so no boxing is needed.
+     *
+     * @param con The connection the array will be used on.
+     * @param ids The ids to bind.
+     * @return the SQL array of ids.
+     */
+    public static Array idArray(Connection con, int[] ids) throws SQLException {
+        return con.unwrap(PGConnection.class).createArrayOf("int4", ids);
+    }
+
+    /**
+     * This normalizes text for the fuzzy indexes: letters and digits are lowercased, every run of anything else becomes
+     * one space, and the text is padded so the start and end of it form trigrams of their own, the way pg_trgm does.
+     *
+     * @param text The title, name, or query to normalize.
+     * @return the normalized text, or null if the text was null.
+     */
+    public static String fuzzyKey(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder("  ");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                key.append(Character.toLowerCase(c));
+            } else if (key.charAt(key.length() - 1) != ' ') {
+                key.append(' ');
+            }
+        }
+        if (key.charAt(key.length() - 1) != ' ') {
+            key.append(' ');
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param firstName A person's first name, which may be null.
+     * @param lastName  A person's last name, which may be null.
+     * @return the person's full name as it is displayed.
+     */
+    public static String fullName(String firstName, String lastName) {
+        if (lastName == null) {
+            return firstName == null ? "" : firstName;
+        }
+        return firstName == null ? lastName : firstName + " " + lastName;
+    }
+
+    private static void loadIndex(Connection con, String query, TrigramIndex index) throws SQLException {
+        try (PreparedStatement loadStmt = con.prepareStatement(query)) {
+            loadStmt.setFetchSize(FETCH_SIZE);
+            ResultSet rows = loadStmt.executeQuery();
+            while (rows.next()) {
+                index.put(rows.getInt(1), rows.getString(2));
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the prepared statements of one pooled connection open between uses, keyed by their SQL text, so
+ * pages that prepare the same query again get the already parsed statement back instead of a new one. Closing a cached
+ * statement just clears its parameters and hands it back to the cache. The least recently used statement is closed
+ * once the cache is full.
+ * <p>
+ * Because the same PreparedStatement object is reused, pgjdbc counts its executions across calls and switches it to a
+ * named server-side prepared statement once it passes the driver's prepareThreshold, so hot queries stop being
+ * re-planned on the server as well.
+ * <p>
+ * A cache belongs to a single connection and, like the connection, is only used by one thread at a time.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class StatementCache {
+
+    /**
+     * Hit, miss, and eviction counters, shared by the caches of every connection in a pool.
+     */
+    public static final class Metrics {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        public long hits() {
+            return hits.get();
+        }
+
+        public long misses() {
+            return misses.get();
+        }
+
+        public long evictions() {
+            return evictions.get();
+        }
+    }
+
+    private final Connection raw;
+    private final int maxSize;
+    private final Metrics metrics;
+    private final LinkedHashMap<String, CachedStatement> statements;
+
+    /**
+     * This tracks one cached statement and whether a caller currently has it checked out.
+     */
+    private final class CachedStatement implements InvocationHandler {
+        private final PreparedStatement statement;
+        private boolean inUse;
+        private boolean evicted;
+        private Connection owner;
+        private PreparedStatement proxy;
+
+        CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+
+        PreparedStatement checkOut(Connection owner) {
+            this.owner = owner;
+            inUse = true;
+            proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, this);
+            return proxy;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            boolean current = inUse && proxy == this.proxy;
+            switch (method.getName()) {
+                case "close" -> {
+                    if (current) {
+                        checkIn();
+                    }
+                    return null;
+                }
+                case "isClosed" -> {
+                    return !current;
+                }
+                case "getConnection" -> {
+                    return owner;
+                }
+                case "equals" -> {
+                    return proxy == args[0];
+                }
+                case "hashCode" -> {
+                    return System.identityHashCode(proxy);
+                }
+            }
+            if (!current) {
+                throw new SQLException("This statement has already been closed.");
+            }
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * This resets the statement so the next caller sees it as freshly prepared, or closes it if it was evicted
+         * while checked out or can no longer be reset.
+         */
+        private void checkIn() {
+            inUse = false;
+            owner = null;
+            if (evicted) {
+                closeQuietly(statement);
+                return;
+            }
+            try {
+                ResultSet open = statement.getResultSet();
+                if (open != null) {
+                    open.close();
+                }
+                statement.clearParameters();
+                statement.clearBatch();
+                statement.clearWarnings();
+                if (statement.getFetchSize() != 0) {
+                    statement.setFetchSize(0);
+                }
+                if (statement.getMaxRows() != 0) {
+                    statement.setMaxRows(0);
+                }
+            } catch (SQLException e) {
+                statements.values().remove(this);
+                closeQuietly(statement);
+            }
+        }
+    }
+
+    /**
+     * This creates an empty cache for the given connection.
+     *
+     * @param raw     The physical connection statements are prepared on.
+     * @param maxSize The number of statements to keep before evicting the least recently used.
+     * @param metrics The counters to record hits, misses, and evictions in.
+     */
+    public StatementCache(Connection raw, int maxSize, Metrics metrics) {
+        this.raw = raw;
+        this.maxSize = maxSize;
+        this.metrics = metrics;
+        // Access ordered, so iteration starts at the least recently used statement.
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= StatementCache.this.maxSize) {
+                    return false;
+                }
+                metrics.evictions.incrementAndGet();
+                CachedStatement cached = eldest.getValue();
+                if (cached.inUse) {
+                    cached.evicted = true;
+                } else {
+                    closeQuietly(cached.statement);
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * This returns a prepared statement for the given SQL, reusing the cached one when it is not already checked out.
+     *
+     * @param owner             The pooled connection handed to callers, returned by the statement's getConnection().
+     * @param sql               The SQL text to prepare.
+     * @param autoGeneratedKeys Statement.RETURN_GENERATED_KEYS or Statement.NO_GENERATED_KEYS.
+     * @return a statement that returns itself to the cache when closed.
+     */
+    public PreparedStatement prepare(Connection owner, String sql, int autoGeneratedKeys) throws SQLException {
+        String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "K:" + sql : sql;
+        CachedStatement cached = statements.get(key);
+        if (cached != null && !cached.inUse) {
+            metrics.hits.incrementAndGet();
+            return cached.checkOut(owner);
+        }
+        metrics.misses.incrementAndGet();
+        PreparedStatement statement = raw.prepareStatement(sql, autoGeneratedKeys);
+        if (cached != null) {
+            // The same SQL is already open further up the call stack, so this one is used once and not cached.
+            return statement;
+        }
+        cached = new CachedStatement(statement);
+        statements.put(key, cached);
+        return cached.checkOut(owner);
+    }
+
+    /**
+     * This closes every cached statement, for when the connection itself is being closed.
+     */
+    public void closeAll() {
+        for (CachedStatement cached : statements.values()) {
+            closeQuietly(cached.statement);
+        }
+        statements.clear();
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ignored) {
+            // The statement is being discarded, so a failure to close it cleanly changes nothing.
+        }
+    }
+}
@@ -0,0 +1,215 @@
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class contains an in-memory, approximate count of watches per movie over the last days, which answers "most
+ * watched in the last N days" without reading the watches at all. Each day has its own Count-Min sketch: a few rows of
+ * counters, where every watch adds one to a counter picked by hashing the movie in each row, and a movie's count is
+ * read as the smallest of its counters. Collisions can only add to a counter, so a count is never underestimated, and
+ * with the default sizes the overestimate is tiny next to the counts of the movies that actually trend. Each day also
+ * keeps the movies with the highest counts seen that day as candidates, and a window's top movies are picked from the
+ * candidates of its days by summing their counts across those days. Days older than the longest window are dropped as
+ * newer days reuse their slots, so memory stays fixed however many watches are recorded. Watches that start after
+ * today, such as the later movies of a collection watched in one sitting, keep their own day for up to a week ahead;
+ * the few that start even later are counted on the last of those days, so they leave the windows slightly early.
+ * <p>
+ * Recording a watch is a handful of array increments under a short exclusive lock, while queries may run concurrently
+ * with each other.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class TrendingSketch {
+
+    // How many days after today a watch can start and still be counted on its own day.
+    private static final int FUTURE_DAYS = 7;
+
+    /**
+     * A movie in a trending list, with its estimated number of watches in the window.
+     */
+    public record Estimate(int mid, long watches) {
+    }
+
+    /**
+     * The sketch and top candidates for the watches of one day.
+     */
+    private final class Day {
+        private long epochDay = Long.MIN_VALUE;
+        private final int[][] counters = new int[depth][width];
+        private final HashMap<Integer, Long> candidates = new HashMap<>();
+        // The smallest count among the candidates, which a movie must beat to replace one once they are full.
+        private long candidateFloor;
+
+        void reset(long newEpochDay) {
+            epochDay = newEpochDay;
+            for (int[] row : counters) {
+                Arrays.fill(row, 0);
+            }
+            candidates.clear();
+            candidateFloor = 0;
+        }
+
+        long add(int mid, int count) {
+            long estimate = Long.MAX_VALUE;
+            for (int r = 0; r < depth; r++) {
+                int[] row = counters[r];
+                int column = column(mid, r);
+                row[column] += count;
+                estimate = Math.min(estimate, row[column]);
+            }
+            return estimate;
+        }
+
+        long estimate(int mid) {
+            long estimate = Long.MAX_VALUE;
+            for (int r = 0; r < depth; r++) {
+                estimate = Math.min(estimate, counters[r][column(mid, r)]);
+            }
+            return estimate;
+        }
+
+        void offer(int mid, long estimate) {
+            if (candidates.containsKey(mid) || candidates.size() < candidatesPerDay) {
+                candidates.put(mid, estimate);
+                if (candidates.size() == candidatesPerDay) {
+                    candidateFloor = minCandidate().getValue();
+                }
+            } else if (estimate > candidateFloor) {
+                // Candidates' counts only grow, so the floor may be stale; check the current minimum before replacing.
+                Map.Entry<Integer, Long> min = minCandidate();
+                if (estimate > min.getValue()) {
+                    candidates.remove(min.getKey());
+                    candidates.put(mid, estimate);
+                    min = minCandidate();
+                }
+                candidateFloor = min.getValue();
+            }
+        }
+
+        private Map.Entry<Integer, Long> minCandidate() {
+            Map.Entry<Integer, Long> min = null;
+            for (Map.Entry<Integer, Long> candidate : candidates.entrySet()) {
+                if (min == null || candidate.getValue() < min.getValue()) {
+                    min = candidate;
+                }
+            }
+            return min;
+        }
+    }
+
+    private final int depth;
+    private final int width;
+    private final int candidatesPerDay;
+    private final int maxWindow;
+    private final long[] seeds;
+    private final Day[] days;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param maxWindow        The longest window, in days, that will be asked for.
+     * @param depth            The number of rows of counters in each day's sketch.
+     * @param width            The number of counters in each row.
+     * @param candidatesPerDay The number of top movies kept as candidates for each day.
+     */
+    public TrendingSketch(int maxWindow, int depth, int width, int candidatesPerDay) {
+        this.maxWindow = maxWindow;
+        this.depth = depth;
+        this.width = width;
+        this.candidatesPerDay = candidatesPerDay;
+        seeds = new long[depth];
+        for (int r = 0; r < depth; r++) {
+            seeds[r] = 0x9E3779B97F4A7C15L * (r + 1);
+        }
+        // Every day of the longest window and every day ahead has its own slot, so none of them can push out another.
+        days = new Day[maxWindow + FUTURE_DAYS + 1];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = new Day();
+        }
+    }
+
+    /**
+     * This adds watches of a movie on a day. Watches on a day too old to be in any window are ignored, and watches on
+     * a day more than a week after today are counted on the last day the sketch keeps ahead.
+     *
+     * @param mid   The movie watched.
+     * @param day   The day the watches started on.
+     * @param count The number of watches to add.
+     * @param today The current day.
+     */
+    public void record(int mid, LocalDate day, int count, LocalDate today) {
+        long epochDay = Math.min(day.toEpochDay(), today.toEpochDay() + FUTURE_DAYS);
+        lock.writeLock().lock();
+        try {
+            Day slot = days[Math.floorMod(epochDay, days.length)];
+            if (slot.epochDay > epochDay) {
+                return;
+            } else if (slot.epochDay < epochDay) {
+                slot.reset(epochDay);
+            }
+            slot.offer(mid, slot.add(mid, count));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This estimates the most watched movies in a window of days ending today, counting watches that start after
+     * today as well, the same way the watch_day query does.
+     *
+     * @param limit  The most movies to return.
+     * @param window The number of days in the window, at most the longest window the sketch was created for.
+     * @param today  The last day of the window.
+     * @return the movies with the highest estimated watches in the window, most watched first.
+     */
+    public List<Estimate> top(int limit, int window, LocalDate today) {
+        if (window > maxWindow) {
+            throw new IllegalArgumentException("The sketch only covers the last " + maxWindow + " days.");
+        }
+        long first = today.toEpochDay() - window + 1;
+        lock.readLock().lock();
+        try {
+            List<Day> inWindow = new ArrayList<>();
+            Set<Integer> candidates = new HashSet<>();
+            for (Day day : days) {
+                if (day.epochDay >= first) {
+                    inWindow.add(day);
+                    candidates.addAll(day.candidates.keySet());
+                }
+            }
+            List<Estimate> estimates = new ArrayList<>(candidates.size());
+            for (int mid : candidates) {
+                long watches = 0;
+                for (Day day : inWindow) {
+                    watches += day.estimate(mid);
+                }
+                estimates.add(new Estimate(mid, watches));
+            }
+            estimates.sort(Comparator.comparingLong(Estimate::watches).reversed().thenComparingInt(Estimate::mid));
+            return estimates.size() > limit ? new ArrayList<>(estimates.subList(0, limit)) : estimates;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This is a helper method that picks a movie's counter in one row, mixing the movie id with the row's seed so
+     * that each row spreads the movies differently.
+     */
+    private int column(int mid, int row) {
+        long hash = (mid ^ seeds[row]) * 0xBF58476D1CE4E5B9L;
+        hash = (hash ^ (hash >>> 31)) * 0x94D049BB133111EBL;
+        hash ^= hash >>> 29;
+        return (int) Math.floorMod(hash, (long) width);
+    }
+}
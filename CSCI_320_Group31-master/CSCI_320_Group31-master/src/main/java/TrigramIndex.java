@@ -0,0 +1,379 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class contains an in-memory substring index over a set of strings keyed by integer ids, such as movie titles
+ * keyed by mid. Every string is broken into its trigrams (each run of three consecutive characters), and each trigram
+ * maps to a sorted array of the ids whose string contains it. A substring search intersects the posting lists of the
+ * pattern's trigrams, then checks the few remaining candidates for the exact substring, so it matches the same strings
+ * as {@code LIKE '%pattern%'} without scanning them all. Patterns shorter than a trigram are checked against every
+ * string directly, which is still far cheaper than a sequential scan in the database.
+ * <p>
+ * The same posting lists also rank strings by trigram similarity to a possibly misspelled query, for fuzzy search.
+ * <p>
+ * Searches may run concurrently with each other, while updates take an exclusive lock.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class TrigramIndex {
+
+    /**
+     * A string found by a similarity search: its id and the share of trigrams it has in common with the query.
+     */
+    public record Match(int id, double similarity) {
+    }
+
+    // The most strings a similarity search will score, which bounds its time however large the index grows.
+    private static final int MAX_CANDIDATES = Integer.getInteger("search.fuzzyMaxCandidates", 50000);
+
+    /**
+     * The sorted ids of the strings containing one trigram, in an array that grows as ids are added.
+     */
+    private static final class Postings {
+        private int[] ids = new int[4];
+        private int size;
+
+        void add(int id) {
+            int index = size == 0 || ids[size - 1] < id ? size : Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0 && index < size) {
+                return;
+            }
+            index = index < 0 ? -index - 1 : index;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, index, ids, index + 1, size - index);
+            ids[index] = id;
+            size++;
+        }
+
+        void remove(int id) {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+                size--;
+            }
+        }
+    }
+
+    /**
+     * Candidate ids and how many of the query's trigrams each has, in open-addressed arrays so counting them does not
+     * box, holding at most the given number of candidates.
+     */
+    private static final class Counts {
+        private final int[] keys;
+        private final int[] counts;
+        private final boolean[] used;
+        private final int mask;
+        private final int limit;
+        private int size;
+
+        Counts(int limit) {
+            this.limit = limit;
+            // At least twice the candidates, so probe runs stay short.
+            int capacity = Integer.highestOneBit(Math.max(1, limit * 2 - 1)) << 1;
+            keys = new int[capacity];
+            counts = new int[capacity];
+            used = new boolean[capacity];
+            mask = capacity - 1;
+        }
+
+        /**
+         * This counts one more trigram for an id, adding it as a candidate unless the limit has been reached.
+         *
+         * @return false if the id is new and there is no room for it.
+         */
+        boolean increment(int id) {
+            int hash = id * 0x9E3779B9;
+            int slot = (hash ^ hash >>> 16) & mask;
+            while (used[slot] && keys[slot] != id) {
+                slot = (slot + 1) & mask;
+            }
+            if (!used[slot]) {
+                if (size == limit) {
+                    return false;
+                }
+                used[slot] = true;
+                keys[slot] = id;
+                size++;
+            }
+            counts[slot]++;
+            return true;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final HashMap<Long, Postings> postings = new HashMap<>();
+    // Every indexed id in sorted order, with its string and its number of distinct trigrams at the same position.
+    private int[] ids = new int[16];
+    private String[] texts = new String[16];
+    private int[] trigramCounts = new int[16];
+    private int size;
+
+    /**
+     * This adds a string to the index, replacing the string previously indexed under the same id if there was one.
+     * Adding ids in increasing order, as when loading a table ordered by its key, only ever appends to the arrays.
+     *
+     * @param id   The id the string belongs to.
+     * @param text The string to index; null strings are not indexed.
+     */
+    public void put(int id, String text) {
+        if (text == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Set<Long> textTrigrams = trigrams(text);
+            int index = size == 0 || ids[size - 1] < id ? -size - 1 : Arrays.binarySearch(ids, 0, size, id);
+            if (index >= 0) {
+                for (long trigram : trigrams(texts[index])) {
+                    postings.get(trigram).remove(id);
+                }
+            } else {
+                index = -index - 1;
+                if (size == ids.length) {
+                    ids = Arrays.copyOf(ids, size * 2);
+                    texts = Arrays.copyOf(texts, size * 2);
+                    trigramCounts = Arrays.copyOf(trigramCounts, size * 2);
+                }
+                System.arraycopy(ids, index, ids, index + 1, size - index);
+                System.arraycopy(texts, index, texts, index + 1, size - index);
+                System.arraycopy(trigramCounts, index, trigramCounts, index + 1, size - index);
+                ids[index] = id;
+                size++;
+            }
+            texts[index] = text;
+            trigramCounts[index] = textTrigrams.size();
+            for (long trigram : textTrigrams) {
+                postings.computeIfAbsent(trigram, key -> new Postings()).add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This finds every indexed string containing the given pattern, matching case the same way LIKE does.
+     *
+     * @param pattern The substring to search for.
+     * @return the ids of the matching strings, in increasing order.
+     */
+    public int[] search(String pattern) {
+        lock.readLock().lock();
+        try {
+            if (pattern.length() < 3) {
+                int[] matches = new int[size];
+                int found = 0;
+                for (int i = 0; i < size; i++) {
+                    if (texts[i].contains(pattern)) {
+                        matches[found++] = ids[i];
+                    }
+                }
+                return Arrays.copyOf(matches, found);
+            }
+
+            Set<Long> patternTrigrams = trigrams(pattern);
+            Postings[] lists = new Postings[patternTrigrams.size()];
+            int n = 0;
+            for (long trigram : patternTrigrams) {
+                lists[n] = postings.get(trigram);
+                if (lists[n] == null || lists[n].size == 0) {
+                    return new int[0];
+                }
+                n++;
+            }
+            // Intersect starting from the shortest list, so the candidate set is as small as possible from the start.
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+            int[] candidates = Arrays.copyOf(lists[0].ids, lists[0].size);
+            int count = candidates.length;
+            for (int l = 1; l < lists.length && count > 0; l++) {
+                int kept = 0;
+                int from = 0;
+                for (int c = 0; c < count; c++) {
+                    int index = Arrays.binarySearch(lists[l].ids, from, lists[l].size, candidates[c]);
+                    if (index >= 0) {
+                        candidates[kept++] = candidates[c];
+                        from = index + 1;
+                    } else {
+                        from = -index - 1;
+                    }
+                }
+                count = kept;
+            }
+
+            // Having every trigram does not mean they are adjacent, so confirm the substring itself.
+            int found = 0;
+            for (int c = 0; c < count; c++) {
+                int index = Arrays.binarySearch(ids, 0, size, candidates[c]);
+                if (texts[index].contains(pattern)) {
+                    candidates[found++] = candidates[c];
+                }
+            }
+            return Arrays.copyOf(candidates, found);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This finds the strings most similar to the query, scored like pg_trgm: the number of trigrams they share divided
+     * by the number of distinct trigrams in either. A string scoring at least the threshold shares at least that share
+     * of the query's trigrams, so it must appear in one of the query's rarest posting lists; only those lists are
+     * scanned for candidates, and the remaining lists are probed per candidate. Once the maximum of candidates is reached,
+     * no more are added and the rest of the lists, including the rest of the one being scanned, are probed for the
+     * candidates already found instead, which keeps a search bounded even when the query is made of very common
+     * trigrams while still scoring each candidate against every trigram of the query.
+     *
+     * @param query     The text to match, which should be normalized the same way as the indexed strings.
+     * @param limit     The most matches to return.
+     * @param threshold The lowest similarity, between 0 and 1, to return.
+     * @return the closest matches, most similar first.
+     */
+    public List<Match> similar(String query, int limit, double threshold) {
+        Set<Long> queryTrigrams = trigrams(query);
+        int queryCount = queryTrigrams.size();
+        if (queryCount == 0 || limit <= 0) {
+            return List.of();
+        }
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>();
+            for (long trigram : queryTrigrams) {
+                Postings list = postings.get(trigram);
+                if (list != null && list.size > 0) {
+                    lists.add(list);
+                }
+            }
+            lists.sort((a, b) -> Integer.compare(a.size, b.size));
+            int minShared = Math.max(1, (int) Math.ceil(threshold * queryCount));
+            int prefix = Math.min(lists.size(), queryCount - minShared + 1);
+
+            long listed = 0;
+            for (int l = 0; l < prefix; l++) {
+                listed += lists.get(l).size;
+            }
+            Counts shared = new Counts((int) Math.min(MAX_CANDIDATES, listed));
+            // Where merging stopped: the lists from here on, starting at this position in the first of them, are
+            // probed per candidate instead, so each candidate is counted against every list exactly once.
+            int probeList = prefix;
+            int probeFrom = 0;
+            merge:
+            for (int l = 0; l < prefix; l++) {
+                Postings list = lists.get(l);
+                for (int i = 0; i < list.size; i++) {
+                    if (!shared.increment(list.ids[i])) {
+                        probeList = l;
+                        probeFrom = i;
+                        break merge;
+                    }
+                }
+            }
+
+            // Keep the best matches in a heap with the worst of them on top, ready to be replaced.
+            PriorityQueue<Match> best = new PriorityQueue<>(Comparator.comparingDouble(Match::similarity)
+                    .thenComparing(Match::id, Comparator.reverseOrder()));
+            for (int slot = 0; slot < shared.keys.length; slot++) {
+                if (!shared.used[slot]) {
+                    continue;
+                }
+                int id = shared.keys[slot];
+                int common = shared.counts[slot];
+                for (int l = probeList; l < lists.size(); l++) {
+                    Postings list = lists.get(l);
+                    if (Arrays.binarySearch(list.ids, l == probeList ? probeFrom : 0, list.size, id) >= 0) {
+                        common++;
+                    }
+                }
+                int textCount = trigramCounts[Arrays.binarySearch(ids, 0, size, id)];
+                double similarity = (double) common / (queryCount + textCount - common);
+                if (similarity >= threshold) {
+                    best.add(new Match(id, similarity));
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+            }
+            List<Match> matches = new ArrayList<>(best);
+            matches.sort(best.comparator().reversed());
+            return matches;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param id The id to look up.
+     * @return the string indexed under the id, or null if there is none.
+     */
+    public String get(int id) {
+        lock.readLock().lock();
+        try {
+            int index = Arrays.binarySearch(ids, 0, size, id);
+            return index >= 0 ? texts[index] : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of strings in the index.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This is a helper method that returns the ids found in both of two sorted id arrays, such as the results of two
+     * searches.
+     *
+     * @param first  The first sorted array of ids.
+     * @param second The second sorted array of ids.
+     * @return the sorted ids in both arrays.
+     */
+    public static int[] intersect(int[] first, int[] second) {
+        int[] both = new int[Math.min(first.length, second.length)];
+        int found = 0;
+        for (int i = 0, j = 0; i < first.length && j < second.length; ) {
+            if (first[i] < second[j]) {
+                i++;
+            } else if (first[i] > second[j]) {
+                j++;
+            } else {
+                both[found++] = first[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(both, found);
+    }
+
+    /**
+     * This is a helper method that packs each distinct run of three characters in a string into a long key.
+     *
+     * @param text The string to break into trigrams.
+     * @return the distinct trigram keys of the string.
+     */
+    private static Set<Long> trigrams(String text) {
+        Set<Long> trigrams = new HashSet<>();
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            trigrams.add(((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2));
+        }
+        return trigrams;
+    }
+}
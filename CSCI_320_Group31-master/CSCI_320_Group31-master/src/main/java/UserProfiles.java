@@ -0,0 +1,654 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class contains an in-memory profile of every user's tastes, which finds similar users for recommendations
+ * without joining everyone's watches against each other. A user's profile is a sparse vector over the genres, actors,
+ * and directors of the distinct movies they have watched, counting the movies with each one, along with the movies
+ * they watched and how they rated them. Each genre, actor, and director also lists the users whose profile has it, so
+ * comparing one user with everyone only visits the users who share something with them.
+ * <p>
+ * Two users are as similar as the number of genres, actors, and directors they have both watched, the same measure
+ * the similarity query used. A movie both users watched and rated more than 2 stars apart does not count towards it,
+ * so a genre, actor, or director shared only through such a movie is not counted. The profiles are loaded once at
+ * startup and updated as watches and ratings are committed through this server, and similar users fall back to the
+ * query when they are turned off with -Drecommend.profiles=false.
+ * <p>
+ * For more users than can each be compared with everyone sharing a genre, -Drecommend.lsh=true only ranks the users
+ * sharing a MinHash bucket with the user, which finds most but not always all of the same similar users. The buckets
+ * are tuned with -Drecommend.lsh.bands and -Drecommend.lsh.rows, and Benchmark lsh measures their recall.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class UserProfiles {
+
+    private static final int FETCH_SIZE = 10000;
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("recommend.profiles", "true"));
+
+    // A user is only similar if they share more than this many genres, actors, and directors in total.
+    public static final int THRESHOLD = 3;
+
+    // The most similar users returned.
+    public static final int LIMIT = 50;
+
+    // Whether similar users are found approximately, by re-ranking only the users sharing a MinHash bucket.
+    public static final boolean APPROXIMATE = Boolean.parseBoolean(System.getProperty("recommend.lsh", "false"));
+
+    // The bands each signature is split into, and the MinHash values in each band.
+    public static final int BANDS = Integer.getInteger("recommend.lsh.bands", 64);
+    public static final int ROWS = Integer.getInteger("recommend.lsh.rows", 1);
+
+    // How many arrays of shared counts are kept for finding similar users between calls. More calls than this at once
+    // each allocate their own, which are dropped afterwards.
+    private static final int SCRATCH_POOL = Integer.getInteger("recommend.profiles.scratch",
+            Runtime.getRuntime().availableProcessors());
+
+    // Each genre, actor, and director is one key: its id shifted left, with the low bits saying which kind it is, so an
+    // actor who also directs is two keys.
+    private static final int GENRE = 0;
+    private static final int ACTOR = 1;
+    private static final int DIRECTOR = 2;
+
+    /**
+     * A growable list of ints, for the lists built one entry at a time.
+     */
+    private static final class IntList {
+        private int[] items = new int[4];
+        private int size;
+
+        void add(int item) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = item;
+        }
+
+        void remove(int item) {
+            for (int i = 0; i < size; i++) {
+                if (items[i] == item) {
+                    items[i] = items[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * One user's profile. Every array is sorted and only its first entries, up to its count, are in use.
+     */
+    private static final class Profile {
+        private int[] mids = new int[8];
+        private int movieCount;
+        private int[] features = new int[16];
+        // The number of the user's movies with each feature.
+        private int[] featureMovies = new int[16];
+        private int featureCount;
+        private int[] ratedMids = new int[4];
+        private byte[] ratings = new byte[4];
+        private int ratedCount;
+
+        boolean watched(int mid) {
+            return Arrays.binarySearch(mids, 0, movieCount, mid) >= 0;
+        }
+
+        int moviesWith(int feature) {
+            int index = Arrays.binarySearch(features, 0, featureCount, feature);
+            return index < 0 ? 0 : featureMovies[index];
+        }
+    }
+
+    /**
+     * The users who rated a movie and their ratings.
+     */
+    private static final class Raters {
+        private final IntList uids = new IntList();
+        private byte[] ratings = new byte[4];
+    }
+
+    /**
+     * MinHash signatures of every profile's genres, actors, and directors, split into bands that are each hashed to a
+     * bucket. Two users share the bucket of a band with a probability that rises steeply with the Jaccard similarity of
+     * their features, so the users sharing any bucket with a user are likely to include the ones most similar to them,
+     * without visiting everyone who shares a single genre with them. More rows per band make the buckets smaller and
+     * stricter, and more bands find more of the similar users at the cost of more candidates. The caller must hold the
+     * profiles' lock.
+     */
+    static final class MinHashIndex {
+        private final int bands;
+        private final int rows;
+        private final int[] seeds;
+        private final Map<Integer, int[]> signatures = new HashMap<>();
+        private final Map<Long, IntList> buckets = new HashMap<>();
+
+        MinHashIndex(int bands, int rows) {
+            this.bands = bands;
+            this.rows = rows;
+            // A fixed seed, so an index built with the same bands and rows always finds the same candidates.
+            seeds = new Random(320).ints(bands * rows).toArray();
+        }
+
+        /**
+         * This adds features to a user's signature, moving the user to new buckets in the bands whose values changed.
+         * A signature only ever keeps the smallest hash seen, so adding features one watch at a time gives the same
+         * signature as adding them all at once.
+         */
+        void add(int uid, int[] features, int count) {
+            if (count == 0) {
+                return;
+            }
+            int[] signature = signatures.get(uid);
+            long[] before = null;
+            if (signature == null) {
+                signature = new int[bands * rows];
+                Arrays.fill(signature, Integer.MAX_VALUE);
+                signatures.put(uid, signature);
+            } else {
+                before = keys(signature);
+            }
+            for (int f = 0; f < count; f++) {
+                for (int i = 0; i < signature.length; i++) {
+                    signature[i] = Math.min(signature[i], hash(features[f] ^ seeds[i]));
+                }
+            }
+            long[] after = keys(signature);
+            for (int b = 0; b < bands; b++) {
+                if (before != null) {
+                    if (before[b] == after[b]) {
+                        continue;
+                    }
+                    IntList bucket = buckets.get(before[b]);
+                    bucket.remove(uid);
+                    if (bucket.size == 0) {
+                        buckets.remove(before[b]);
+                    }
+                }
+                buckets.computeIfAbsent(after[b], key -> new IntList()).add(uid);
+            }
+        }
+
+        /**
+         * This finds every other user sharing at least one bucket with a user.
+         *
+         * @return the candidates' uids, in ascending order.
+         */
+        int[] candidates(int uid) {
+            int[] signature = signatures.get(uid);
+            if (signature == null) {
+                return new int[0];
+            }
+            IntList found = new IntList();
+            for (long key : keys(signature)) {
+                IntList bucket = buckets.get(key);
+                for (int i = 0; i < bucket.size; i++) {
+                    if (bucket.items[i] != uid) {
+                        found.add(bucket.items[i]);
+                    }
+                }
+            }
+            return Arrays.stream(found.items, 0, found.size).sorted().distinct().toArray();
+        }
+
+        /**
+         * This is a helper method that hashes each band of a signature, along with the band's number, so equal values
+         * in different bands are different buckets.
+         */
+        private long[] keys(int[] signature) {
+            long[] keys = new long[bands];
+            for (int b = 0; b < bands; b++) {
+                long key = b + 1;
+                for (int r = b * rows; r < (b + 1) * rows; r++) {
+                    key = (key ^ (signature[r] & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L;
+                    key ^= key >>> 32;
+                }
+                keys[b] = key;
+            }
+            return keys;
+        }
+
+        /**
+         * This is a helper method that scrambles a value with the MurmurHash3 finalizer, so each seed orders the
+         * features differently.
+         */
+        private static int hash(int value) {
+            value ^= value >>> 16;
+            value *= 0x85EBCA6B;
+            value ^= value >>> 13;
+            value *= 0xC2B2AE35;
+            value ^= value >>> 16;
+            return value;
+        }
+    }
+
+    private static final Map<Integer, int[]> movieFeatures = new HashMap<>();
+    private static final Map<Integer, Profile> profiles = new HashMap<>();
+    // The users with each feature in their profile.
+    private static final Map<Integer, IntList> postings = new HashMap<>();
+    private static final Map<Integer, Raters> raters = new HashMap<>();
+    private static int maxUid = 0;
+    // Only built in approximate mode.
+    private static MinHashIndex minHash = null;
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private static volatile boolean loaded = false;
+
+    // Pooled rather than kept per thread, since server sessions run on virtual threads that are never reused.
+    private static final ArrayBlockingQueue<int[]> sharedPool = new ArrayBlockingQueue<>(SCRATCH_POOL);
+
+    /**
+     * This builds every profile from the database: each movie's genres, actors, and directors, then everyone's
+     * watches and ratings. The tables are read through a cursor, so the driver never holds a whole table in memory.
+     *
+     * @param con The connection to read the tables with.
+     */
+    public static void load(Connection con) throws SQLException {
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        lock.writeLock().lock();
+        try {
+            Map<Integer, IntList> features = new HashMap<>();
+            String[] featureQueries = {"SELECT mid, gid FROM genreof", "SELECT mid, pid FROM actsin",
+                    "SELECT mid, pid FROM directs"};
+            int[] kinds = {GENRE, ACTOR, DIRECTOR};
+            for (int k = 0; k < kinds.length; k++) {
+                try (PreparedStatement featureStmt = con.prepareStatement(featureQueries[k])) {
+                    featureStmt.setFetchSize(FETCH_SIZE);
+                    ResultSet featureSet = featureStmt.executeQuery();
+                    while (featureSet.next()) {
+                        features.computeIfAbsent(featureSet.getInt(1), mid -> new IntList())
+                                .add(featureSet.getInt(2) << 2 | kinds[k]);
+                    }
+                }
+            }
+            for (Map.Entry<Integer, IntList> movie : features.entrySet()) {
+                movieFeatures.put(movie.getKey(), Arrays.stream(movie.getValue().items, 0, movie.getValue().size)
+                        .sorted().distinct().toArray());
+            }
+            try (PreparedStatement watchStmt = con.prepareStatement("SELECT DISTINCT uid, mid FROM watches")) {
+                watchStmt.setFetchSize(FETCH_SIZE);
+                ResultSet watchSet = watchStmt.executeQuery();
+                while (watchSet.next()) {
+                    addWatch(watchSet.getInt(1), watchSet.getInt(2));
+                }
+            }
+            if (APPROXIMATE) {
+                minHash = buildIndex(BANDS, ROWS);
+            }
+            try (PreparedStatement rateStmt = con.prepareStatement("SELECT uid, mid, rating FROM rates")) {
+                rateStmt.setFetchSize(FETCH_SIZE);
+                ResultSet rateSet = rateStmt.executeQuery();
+                while (rateSet.next()) {
+                    addRating(rateSet.getInt(1), rateSet.getInt(2), rateSet.getInt(3));
+                }
+            }
+            con.commit();
+        } finally {
+            lock.writeLock().unlock();
+            con.setAutoCommit(autoCommit);
+        }
+        loaded = true;
+    }
+
+    /**
+     * @return true if the profiles have been loaded and should be used to find similar users.
+     */
+    public static boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * This adds a committed watch to the user's profile. Watching a movie already in the profile changes nothing, and
+     * nothing is kept until the profiles are loaded.
+     *
+     * @param userId  The uid of the user who watched the movie.
+     * @param movieId The mid of the movie watched.
+     */
+    public static void watched(int userId, int movieId) {
+        if (!loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            addWatch(userId, movieId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This sets a user's committed rating of a movie in their profile, replacing any earlier rating of it.
+     *
+     * @param userId  The uid of the user who rated the movie.
+     * @param movieId The mid of the movie rated.
+     * @param rating  The rating, from 1 to 5.
+     */
+    public static void rated(int userId, int movieId, int rating) {
+        if (!loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            addRating(userId, movieId, rating);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This builds a MinHash index of every profile with the given bands and rows. The caller must hold the lock.
+     *
+     * @return the index.
+     */
+    private static MinHashIndex buildIndex(int bands, int rows) {
+        MinHashIndex built = new MinHashIndex(bands, rows);
+        for (Map.Entry<Integer, Profile> profile : profiles.entrySet()) {
+            built.add(profile.getKey(), profile.getValue().features, profile.getValue().featureCount);
+        }
+        return built;
+    }
+
+    /**
+     * This builds a MinHash index of every profile with the given bands and rows, to compare how closely it finds the
+     * exact similar users.
+     *
+     * @return the index, which is not updated as profiles change.
+     */
+    static MinHashIndex minHashIndex(int bands, int rows) {
+        lock.readLock().lock();
+        try {
+            return buildIndex(bands, rows);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This returns the uid of every user with a profile, which is everyone who has watched a movie.
+     *
+     * @return the uids, in ascending order.
+     */
+    public static int[] userIds() {
+        lock.readLock().lock();
+        try {
+            return profiles.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This finds the users most similar to a user: everyone sharing more than the threshold of genres, actors, and
+     * directors with them, most shared first, up to the limit. Users sharing as many are ordered by uid. In approximate
+     * mode, only the users sharing a MinHash bucket with the user are considered.
+     *
+     * @param userId The uid of the user to find similar users for.
+     * @return the uids of the most similar users.
+     */
+    public static ArrayList<Integer> similarUsers(int userId) {
+        return similarUsers(userId, minHash);
+    }
+
+    /**
+     * This finds the users most similar to a user, considering everyone when the index is null, and otherwise only the
+     * users sharing a bucket of it with the user. Every user considered is ranked exactly.
+     *
+     * @param userId The uid of the user to find similar users for.
+     * @param lsh    The MinHash index to find candidates with, or null.
+     * @return the uids of the most similar users.
+     */
+    static ArrayList<Integer> similarUsers(int userId, MinHashIndex lsh) {
+        ArrayList<Integer> similar = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Profile user = profiles.get(userId);
+            if (user == null) {
+                return similar;
+            }
+            // The counts are borrowed from the pool, and only the users counted are reset before they go back.
+            int[] shared = sharedPool.poll();
+            if (shared == null || shared.length <= maxUid) {
+                shared = new int[maxUid + 1];
+            }
+            IntList touched = new IntList();
+            if (lsh == null) {
+                for (int f = 0; f < user.featureCount; f++) {
+                    IntList posting = postings.get(user.features[f]);
+                    for (int i = 0; i < posting.size; i++) {
+                        int other = posting.items[i];
+                        if (other != userId && shared[other]++ == 0) {
+                            touched.add(other);
+                        }
+                    }
+                }
+            } else {
+                for (int other : lsh.candidates(userId)) {
+                    shared[other] = sharedFeatures(user, profiles.get(other));
+                    if (shared[other] > 0) {
+                        touched.add(other);
+                    }
+                }
+            }
+
+            // Take back what was only shared through a movie both watched and rated too differently. A feature is
+            // shared through nothing else exactly when that movie is the only one with it in both profiles.
+            for (int r = 0; r < user.ratedCount; r++) {
+                int mid = user.ratedMids[r];
+                Raters movieRaters = raters.get(mid);
+                int[] features = movieFeatures.get(mid);
+                if (features == null || !user.watched(mid)) {
+                    continue;
+                }
+                for (int i = 0; i < movieRaters.uids.size; i++) {
+                    int other = movieRaters.uids.items[i];
+                    if (other == userId || Math.abs(movieRaters.ratings[i] - user.ratings[r]) <= 2
+                            || shared[other] == 0) {
+                        continue;
+                    }
+                    Profile otherProfile = profiles.get(other);
+                    if (otherProfile == null || !otherProfile.watched(mid)) {
+                        continue;
+                    }
+                    for (int feature : features) {
+                        if (user.moviesWith(feature) == 1 && otherProfile.moviesWith(feature) == 1) {
+                            shared[other]--;
+                        }
+                    }
+                }
+            }
+
+            // Keep the best users in a min-heap, whose root is the worst of them and is replaced by anyone better.
+            int[] heapUids = new int[LIMIT];
+            int[] heapShared = new int[LIMIT];
+            int heapSize = 0;
+            for (int i = 0; i < touched.size; i++) {
+                int other = touched.items[i];
+                int count = shared[other];
+                if (count <= THRESHOLD) {
+                    continue;
+                }
+                if (heapSize < LIMIT) {
+                    heapUids[heapSize] = other;
+                    heapShared[heapSize] = count;
+                    siftUp(heapUids, heapShared, heapSize++);
+                } else if (better(count, other, heapShared[0], heapUids[0])) {
+                    heapUids[0] = other;
+                    heapShared[0] = count;
+                    siftDown(heapUids, heapShared, heapSize);
+                }
+            }
+            Integer[] order = new Integer[heapSize];
+            for (int i = 0; i < heapSize; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> better(heapShared[a], heapUids[a], heapShared[b], heapUids[b]) ? -1 : 1);
+            for (int i : order) {
+                similar.add(heapUids[i]);
+            }
+            for (int i = 0; i < touched.size; i++) {
+                shared[touched.items[i]] = 0;
+            }
+            sharedPool.offer(shared);
+            return similar;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This is a helper method that counts the features two profiles have in common, by walking their sorted features
+     * together.
+     */
+    private static int sharedFeatures(Profile a, Profile b) {
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.featureCount && j < b.featureCount) {
+            if (a.features[i] < b.features[j]) {
+                i++;
+            } else if (a.features[i] > b.features[j]) {
+                j++;
+            } else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * This is a helper method that orders similar users: more shared first, then lower uid first.
+     */
+    private static boolean better(int shared, int uid, int otherShared, int otherUid) {
+        return shared > otherShared || (shared == otherShared && uid < otherUid);
+    }
+
+    private static void siftUp(int[] uids, int[] shared, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!better(shared[parent], uids[parent], shared[index], uids[index])) {
+                return;
+            }
+            swap(uids, shared, parent, index);
+            index = parent;
+        }
+    }
+
+    private static void siftDown(int[] uids, int[] shared, int size) {
+        int index = 0;
+        while (true) {
+            int worst = index;
+            for (int child = 2 * index + 1; child <= 2 * index + 2 && child < size; child++) {
+                if (better(shared[worst], uids[worst], shared[child], uids[child])) {
+                    worst = child;
+                }
+            }
+            if (worst == index) {
+                return;
+            }
+            swap(uids, shared, worst, index);
+            index = worst;
+        }
+    }
+
+    private static void swap(int[] uids, int[] shared, int a, int b) {
+        int uid = uids[a];
+        uids[a] = uids[b];
+        uids[b] = uid;
+        int count = shared[a];
+        shared[a] = shared[b];
+        shared[b] = count;
+    }
+
+    /**
+     * This is a helper method that adds a movie to a user's profile, along with each of its genres, actors, and
+     * directors. The caller must hold the write lock.
+     */
+    private static void addWatch(int userId, int movieId) {
+        Profile profile = profiles.computeIfAbsent(userId, uid -> new Profile());
+        maxUid = Math.max(maxUid, userId);
+        int index = Arrays.binarySearch(profile.mids, 0, profile.movieCount, movieId);
+        if (index >= 0) {
+            return;
+        }
+        profile.mids = insert(profile.mids, profile.movieCount++, -index - 1, movieId);
+        IntList added = new IntList();
+        for (int feature : movieFeatures.getOrDefault(movieId, new int[0])) {
+            int f = Arrays.binarySearch(profile.features, 0, profile.featureCount, feature);
+            if (f >= 0) {
+                profile.featureMovies[f]++;
+                continue;
+            }
+            f = -f - 1;
+            profile.features = insert(profile.features, profile.featureCount, f, feature);
+            profile.featureMovies = insert(profile.featureMovies, profile.featureCount++, f, 1);
+            postings.computeIfAbsent(feature, key -> new IntList()).add(userId);
+            added.add(feature);
+        }
+        if (minHash != null) {
+            minHash.add(userId, added.items, added.size);
+        }
+    }
+
+    /**
+     * This is a helper method that sets a user's rating of a movie in their profile and in the movie's raters. The
+     * caller must hold the write lock.
+     */
+    private static void addRating(int userId, int movieId, int rating) {
+        Profile profile = profiles.computeIfAbsent(userId, uid -> new Profile());
+        maxUid = Math.max(maxUid, userId);
+        int index = Arrays.binarySearch(profile.ratedMids, 0, profile.ratedCount, movieId);
+        if (index >= 0) {
+            profile.ratings[index] = (byte) rating;
+        } else {
+            index = -index - 1;
+            profile.ratedMids = insert(profile.ratedMids, profile.ratedCount, index, movieId);
+            if (profile.ratings.length < profile.ratedMids.length) {
+                profile.ratings = Arrays.copyOf(profile.ratings, profile.ratedMids.length);
+            }
+            System.arraycopy(profile.ratings, index, profile.ratings, index + 1, profile.ratedCount++ - index);
+            profile.ratings[index] = (byte) rating;
+        }
+
+        Raters movieRaters = raters.computeIfAbsent(movieId, mid -> new Raters());
+        for (int i = 0; i < movieRaters.uids.size; i++) {
+            if (movieRaters.uids.items[i] == userId) {
+                movieRaters.ratings[i] = (byte) rating;
+                return;
+            }
+        }
+        movieRaters.uids.add(userId);
+        if (movieRaters.ratings.length < movieRaters.uids.items.length) {
+            movieRaters.ratings = Arrays.copyOf(movieRaters.ratings, movieRaters.uids.items.length);
+        }
+        movieRaters.ratings[movieRaters.uids.size - 1] = (byte) rating;
+    }
+
+    /**
+     * This is a helper method that inserts a value into the first entries of a sorted array at the given index,
+     * growing the array if it is full.
+     *
+     * @return the array holding the entries, which is a new one if it had to grow.
+     */
+    private static int[] insert(int[] array, int count, int index, int value) {
+        if (count == array.length) {
+            array = Arrays.copyOf(array, count * 2);
+        }
+        System.arraycopy(array, index, array, index + 1, count - index);
+        array[index] = value;
+        return array;
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Scanner;
+
+/**
+ * This class holds the state of one user's conversation with the application: where their input comes from, where
+ * output is written, the database handle used for their queries, and which account is logged in. Every page is passed
+ * the session rather than keeping this in static fields, so many sessions can run side by side in the same JVM.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class UserSession {
+    private final Scanner input;
+    private final PrintStream output;
+    private final ConnectionPool pool;
+    // -1 until a user logs in or creates an account.
+    private int userId = -1;
+
+    /**
+     * This creates a session reading commands from the given input and writing responses to the given output.
+     *
+     * @param in   The stream user commands are read from.
+     * @param out  The stream all page output is written to.
+     * @param pool The connection pool queries for this session borrow from.
+     */
+    public UserSession(InputStream in, PrintStream out, ConnectionPool pool) {
+        this.input = new Scanner(in);
+        this.output = out;
+        this.pool = pool;
+    }
+
+    /**
+     * This reads the next line the user entered. Any buffered output is flushed first, since the user needs to see
+     * the prompt before they can answer it.
+     *
+     * @return the next line of user input, without its line terminator.
+     * @throws java.util.NoSuchElementException if the user's input has ended, e.g. a network client disconnected.
+     */
+    public String nextLine() {
+        output.flush();
+        return input.nextLine();
+    }
+
+    /**
+     * This writes a line of output to the user.
+     *
+     * @param line The text to display.
+     */
+    public void println(String line) {
+        output.println(line);
+    }
+
+    /**
+     * This writes a line of output to the user.
+     *
+     * @param line The object whose string form should be displayed.
+     */
+    public void println(Object line) {
+        output.println(line);
+    }
+
+    /**
+     * This writes an empty line to the user.
+     */
+    public void println() {
+        output.println();
+    }
+
+    /**
+     * This borrows a connection for this session from the shared pool. It must be closed to return it.
+     *
+     * @return a pooled connection.
+     */
+    public Connection getCon() throws SQLException {
+        return pool.borrow();
+    }
+
+    /**
+     * @return the uid of the logged-in user, or -1 if no one is logged in.
+     */
+    public int getUserId() {
+        return userId;
+    }
+
+    /**
+     * @param userId The uid of the user who just logged in, or -1 on logout.
+     */
+    public void setUserId(int userId) {
+        this.userId = userId;
+    }
+}
@@ -0,0 +1,201 @@
+import org.postgresql.PGConnection;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class contains the one place watches are recorded. Besides the row in watches, every watch adds to its movie's
+ * total in movie_summary and to the movie's count for the day in watch_day, which trending sums over its window. All
+ * three are written by a single statement, so they can never disagree. The same statement adds the watch to the
+ * following feed of each of the watcher's followers, unless the watcher is a celebrity (see {@link FollowingFeed}).
+ * <p>
+ * Every watch is also fed to an in-memory {@link TrendingSketch}, which answers the trending list without querying the
+ * database. It is warmed from watch_day at startup, and can be turned off with -Dtrending.sketch=false, in which case
+ * trending sums watch_day instead. The sketch's today is always the database's CURRENT_DATE, never the clock of this
+ * JVM, since watch_day dates its rows in the database session's time zone and the two must agree about where a window
+ * starts.
+ * <p>
+ * With -Dwatches.writeBehind=true, watches are journaled and written in batches in the background by
+ * {@link WatchQueue} rather than while the user waits.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class WatchHistory {
+
+    // The shared locks on the watchers are a statement of their own, so they are held before the insert reads who
+    // follows them; both statements are sent together and run in one transaction. The locks are taken in uid order, so
+    // two batches watched by the same users cannot wait on each other. The watches arrive as parallel arrays of
+    // watchers, movies, start and end offsets, and how long ago each was watched, so any number of them are written by
+    // the same statement.
+    private static final String RECORD_QUERY = "SELECT pg_advisory_xact_lock_shared(?, l.uid) " +
+            "FROM (SELECT DISTINCT unnest(?::int[]) AS uid ORDER BY uid) l; " +
+            "WITH watched AS (" +
+            "INSERT INTO watches(uid, mid, starttime, endtime) " +
+            "SELECT v.uid, v.mid, NOW() - v.delay * INTERVAL '1 MILLISECOND' + v.start * INTERVAL '1 MINUTE', " +
+            "NOW() - v.delay * INTERVAL '1 MILLISECOND' + v.finish * INTERVAL '1 MINUTE' " +
+            "FROM unnest(?::int[], ?::int[], ?::int[], ?::int[], ?::bigint[]) AS v(uid, mid, start, finish, delay) " +
+            "RETURNING uid, mid, starttime), " +
+            "counted AS (UPDATE movie_summary ms SET watch_count = ms.watch_count + c.watches " +
+            "FROM (SELECT mid, COUNT(*) AS watches FROM watched GROUP BY mid) c WHERE ms.mid = c.mid), " +
+            "fanned AS (INSERT INTO following_feed(uid, mid, watch_count) " +
+            "SELECT f.followeruid, w.mid, COUNT(*) FROM watched w, follows f WHERE f.followeduid = w.uid " +
+            "AND NOT EXISTS (SELECT 1 FROM feed_celebrity c WHERE c.uid = w.uid) GROUP BY f.followeruid, w.mid " +
+            "ON CONFLICT (uid, mid) DO UPDATE SET watch_count = following_feed.watch_count + EXCLUDED.watch_count), " +
+            "rolled AS (INSERT INTO watch_day(day, mid, watch_count) " +
+            "SELECT starttime::date, mid, COUNT(*) FROM watched GROUP BY starttime::date, mid " +
+            "ON CONFLICT (day, mid) DO UPDATE SET watch_count = watch_day.watch_count + EXCLUDED.watch_count) " +
+            "SELECT uid, mid, starttime::date AS day, CURRENT_DATE AS today FROM watched";
+
+    public static final boolean SKETCH_ENABLED = Boolean.parseBoolean(System.getProperty("trending.sketch", "true"));
+
+    // The longest trending window offered, which is how many days of watches the sketch keeps.
+    public static final int MAX_WINDOW = 90;
+
+    public static final TrendingSketch TRENDING = new TrendingSketch(MAX_WINDOW,
+            Integer.getInteger("trending.sketchDepth", 4), Integer.getInteger("trending.sketchWidth", 2048),
+            Integer.getInteger("trending.candidates", 100));
+
+    private static volatile boolean loaded = false;
+
+    /**
+     * A watch that was written, with the day its rollup row is for and the database's current date when it was.
+     */
+    record Watched(int uid, int mid, LocalDate day, LocalDate today) {
+    }
+
+    /**
+     * This fills the trending sketch with the watches of the last days from the watch_day rollup, so it starts out
+     * agreeing with the database.
+     *
+     * @param con The connection to read the rollup with.
+     */
+    public static void load(Connection con) throws SQLException {
+        try (PreparedStatement loadStmt = con.prepareStatement(
+                "SELECT day, mid, watch_count, CURRENT_DATE AS today FROM watch_day WHERE day > CURRENT_DATE - ?")) {
+            loadStmt.setInt(1, MAX_WINDOW);
+            ResultSet days = loadStmt.executeQuery();
+            while (days.next()) {
+                TRENDING.record(days.getInt("mid"), days.getDate("day").toLocalDate(), days.getInt("watch_count"),
+                        days.getDate("today").toLocalDate());
+            }
+        }
+        loaded = true;
+    }
+
+    /**
+     * This reads the database's current date, which is the day the trending sketch counts its windows back from.
+     *
+     * @param con The connection to read the date with.
+     * @return CURRENT_DATE in the connection's time zone.
+     */
+    public static LocalDate today(Connection con) throws SQLException {
+        try (PreparedStatement todayStmt = con.prepareStatement("SELECT CURRENT_DATE")) {
+            ResultSet today = todayStmt.executeQuery();
+            today.next();
+            return today.getDate(1).toLocalDate();
+        }
+    }
+
+    /**
+     * @return true if the trending sketch has been loaded and should answer the trending list.
+     */
+    public static boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * This records that a user watched a movie, starting and ending the given number of minutes from now.
+     *
+     * @param con          The connection to record the watch on.
+     * @param userId       The uid of the user watching the movie.
+     * @param movieId      The mid of the movie being watched.
+     * @param startMinutes The minutes from now at which the watch starts.
+     * @param endMinutes   The minutes from now at which the watch ends.
+     */
+    public static void record(Connection con, int userId, int movieId, int startMinutes, int endMinutes)
+            throws SQLException {
+        recordAll(con, userId, new int[]{movieId}, new int[]{startMinutes}, new int[]{endMinutes});
+    }
+
+    /**
+     * This records that a user watched several movies, each starting and ending the given number of minutes from now.
+     * Every watch is written by one statement in one round trip, so they are all recorded or none are. When the
+     * write-behind queue is running, the watches are handed to it instead and this returns once they are journaled.
+     *
+     * @param con          The connection to record the watches on.
+     * @param userId       The uid of the user watching the movies.
+     * @param movieIds     The mids of the movies being watched.
+     * @param startMinutes The minutes from now at which each watch starts.
+     * @param endMinutes   The minutes from now at which each watch ends.
+     */
+    public static void recordAll(Connection con, int userId, int[] movieIds, int[] startMinutes, int[] endMinutes)
+            throws SQLException {
+        if (movieIds.length == 0 || WatchQueue.submit(userId, movieIds, startMinutes, endMinutes)) {
+            return;
+        }
+        int[] userIds = new int[movieIds.length];
+        Arrays.fill(userIds, userId);
+        committed(write(con, userIds, movieIds, startMinutes, endMinutes, new long[movieIds.length]));
+    }
+
+    /**
+     * This writes watches by any number of users with one statement. Each watch's offsets are counted from the given
+     * number of milliseconds before now, which is how the write-behind queue records watches at the time they were
+     * made rather than the time they are written.
+     *
+     * @param con          The connection to write the watches on.
+     * @param userIds      The uid of the user who made each watch.
+     * @param movieIds     The mid of the movie each watch is of.
+     * @param startMinutes The minutes after it was made at which each watch starts.
+     * @param endMinutes   The minutes after it was made at which each watch ends.
+     * @param delayMillis  How many milliseconds before now each watch was made.
+     * @return each watch written, to be passed to {@link #committed} once they are committed.
+     */
+    static List<Watched> write(Connection con, int[] userIds, int[] movieIds, int[] startMinutes, int[] endMinutes,
+                      long[] delayMillis) throws SQLException {
+        try (PreparedStatement recordStmt = con.prepareStatement(RECORD_QUERY)) {
+            recordStmt.setInt(1, FollowingFeed.LOCK_CLASS);
+            recordStmt.setArray(2, SearchIndexes.idArray(con, userIds));
+            recordStmt.setArray(3, SearchIndexes.idArray(con, userIds));
+            recordStmt.setArray(4, SearchIndexes.idArray(con, movieIds));
+            recordStmt.setArray(5, SearchIndexes.idArray(con, startMinutes));
+            recordStmt.setArray(6, SearchIndexes.idArray(con, endMinutes));
+            recordStmt.setArray(7, con.unwrap(PGConnection.class).createArrayOf("int8", delayMillis));
+            // The first result is the locks, and the second is each watch with the day it was counted on.
+            recordStmt.execute();
+            recordStmt.getMoreResults();
+            ResultSet recorded = recordStmt.getResultSet();
+            List<Watched> watched = new ArrayList<>();
+            while (recorded.next()) {
+                watched.add(new Watched(recorded.getInt("uid"), recorded.getInt("mid"),
+                        recorded.getDate("day").toLocalDate(), recorded.getDate("today").toLocalDate()));
+            }
+            return watched;
+        }
+    }
+
+    /**
+     * This passes committed watches on to the in-memory trending sketch, user profiles, and item matrix, and drops the
+     * watchers' cached recommendations.
+     *
+     * @param watched The watches, as returned by write.
+     */
+    static void committed(List<Watched> watched) {
+        for (Watched watch : watched) {
+            // Count it in the sketch on the same day the rollup did, so the two agree about where a window starts.
+            TRENDING.record(watch.mid(), watch.day(), 1, watch.today());
+            UserProfiles.watched(watch.uid(), watch.mid());
+            ItemMatrix.watched(watch.uid(), watch.mid());
+            RecommendationCache.invalidate(watch.uid());
+        }
+    }
+}
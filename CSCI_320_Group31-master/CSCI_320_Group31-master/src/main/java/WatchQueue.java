@@ -0,0 +1,567 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * This class contains the optional write-behind mode for watches, turned on with -Dwatches.writeBehind=true. Instead
+ * of writing a watch to the database while the user waits, WatchHistory hands it to a bounded queue. A journal thread
+ * drains the queue, appends everything it drained to a local journal with a single fsync, and only then lets the users
+ * who made those watches continue, so a watch the user was told about survives a crash. An apply thread then writes
+ * each journaled batch with one statement and moves the journal's checkpoint in the watch_journal table forward in the
+ * same transaction. At startup, any journaled watches past the checkpoint are written before users are let in, so each
+ * watch is written exactly once however the previous run ended.
+ * <p>
+ * While the queue is full, or once it has been closed, watches are written directly as before. A watch written behind
+ * shows up in the database a moment after the user is told it was recorded, so lists read straight away may not
+ * include it yet. Each server needs its own journal (-Dwatches.journal, a directory), since the checkpoint is kept per
+ * journal name. -Dwatches.queueCapacity bounds the queue and -Dwatches.batchSize caps how many users' watches are
+ * journaled and written together.
+ *
+ * @author Aditya Kumar ak6169
+ * @author Donald Tsang dht1455
+ * @author Griffin Danner-Doran gtd6864
+ * @author Soban Mahmud sm9614
+ * @author Veronika Zsenits vmz5751
+ */
+public class WatchQueue {
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("watches.writeBehind", "false"));
+
+    private static final int QUEUE_CAPACITY = Integer.getInteger("watches.queueCapacity", 10_000);
+    private static final int BATCH_SIZE = Integer.getInteger("watches.batchSize", 500);
+    private static final Path JOURNAL = Path.of(System.getProperty("watches.journal", "watch-journal"));
+    // A journal segment is closed and a new one started once it grows past this, so applied segments can be deleted.
+    private static final long SEGMENT_BYTES = Long.getLong("watches.segmentBytes", 1 << 20);
+    // Journaled batches waiting to be written; when it is full the journal thread waits, and then the queue fills.
+    private static final int APPLY_BACKLOG = 64;
+    private static final long MAX_RETRY_MILLIS = 30_000;
+
+    /**
+     * The watches one user made with one call, with the time they were made and the future completed once they are
+     * journaled. Sequence numbers are given to each watch as it is journaled.
+     */
+    private record Submission(int userId, int[] movieIds, int[] startMinutes, int[] endMinutes, long madeAtMillis,
+                              long submittedNanos, CompletableFuture<Void> journaled) {
+    }
+
+    /**
+     * Journaled watches ready to be written, with the sequence number of the last one.
+     */
+    private record Batch(List<Submission> submissions, Watches watches, long lastSeq) {
+    }
+
+    /**
+     * Watches laid out as the parallel arrays WatchHistory.write takes, along with their sequence numbers.
+     */
+    private record Watches(long[] seqs, int[] userIds, int[] movieIds, int[] startMinutes, int[] endMinutes,
+                           long[] madeAtMillis) {
+
+        static Watches of(List<long[]> rows) {
+            int n = rows.size();
+            Watches watches = new Watches(new long[n], new int[n], new int[n], new int[n], new int[n], new long[n]);
+            for (int i = 0; i < n; i++) {
+                long[] row = rows.get(i);
+                watches.seqs[i] = row[0];
+                watches.userIds[i] = (int) row[1];
+                watches.movieIds[i] = (int) row[2];
+                watches.startMinutes[i] = (int) row[3];
+                watches.endMinutes[i] = (int) row[4];
+                watches.madeAtMillis[i] = row[5];
+            }
+            return watches;
+        }
+
+        Watches slice(int from, int to) {
+            return new Watches(Arrays.copyOfRange(seqs, from, to), Arrays.copyOfRange(userIds, from, to),
+                    Arrays.copyOfRange(movieIds, from, to), Arrays.copyOfRange(startMinutes, from, to),
+                    Arrays.copyOfRange(endMinutes, from, to), Arrays.copyOfRange(madeAtMillis, from, to));
+        }
+    }
+
+    private static final BlockingQueue<Submission> submissions = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final BlockingQueue<Batch> journaled = new ArrayBlockingQueue<>(APPLY_BACKLOG);
+    // Producers hold the read lock while they check the queue is open and enqueue, so nothing is enqueued after close.
+    private static final ReentrantReadWriteLock openLock = new ReentrantReadWriteLock();
+    // Guards the journal segments, which the journal thread appends to and the apply thread deletes once written.
+    private static final ReentrantLock journalLock = new ReentrantLock();
+    private static final TreeMap<Long, Path> segments = new TreeMap<>();
+    private static FileChannel segment = null;
+    private static long nextSeq;
+    private static volatile boolean running = false;
+    private static ExecutorService journaler = null;
+    private static ExecutorService applier = null;
+
+    private static final AtomicLong submitted = new AtomicLong();
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong backlog = new AtomicLong();
+    private static final AtomicLong acks = new AtomicLong();
+    private static final AtomicLong applied = new AtomicLong();
+    private static final AtomicLong bypassed = new AtomicLong();
+    private static final AtomicLong replayed = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    // Journal lines skipped at startup because a crash cut them short or left them garbled.
+    private static final AtomicLong torn = new AtomicLong();
+    private static final AtomicLong fsyncs = new AtomicLong();
+    private static final AtomicLong rotateFailures = new AtomicLong();
+    private static final AtomicLong retries = new AtomicLong();
+    private static final AtomicLong totalAckNanos = new AtomicLong();
+    private static final AtomicLong maxAckNanos = new AtomicLong();
+    private static final AtomicLong totalLagNanos = new AtomicLong();
+    private static final AtomicLong maxLagNanos = new AtomicLong();
+    private static final AtomicLong maxBacklog = new AtomicLong();
+
+    /**
+     * This writes any watches left in the journal by the previous run, then starts the journal and apply threads.
+     */
+    public static void start() throws IOException, SQLException {
+        if (running) {
+            return;
+        }
+        Files.createDirectories(JOURNAL);
+        nextSeq = replay() + 1;
+        segment = openSegment();
+        journaler = Executors.newSingleThreadExecutor(r -> daemon(r, "watch-journal"));
+        applier = Executors.newSingleThreadExecutor(r -> daemon(r, "watch-apply"));
+        running = true;
+        journaler.execute(WatchQueue::journalLoop);
+        applier.execute(WatchQueue::applyLoop);
+    }
+
+    /**
+     * This stops taking new watches and waits for the ones already taken to be journaled and written. Anything still
+     * unwritten when the wait runs out stays in the journal and is written at the next start.
+     */
+    public static void close() throws InterruptedException {
+        openLock.writeLock().lock();
+        try {
+            if (!running) {
+                return;
+            }
+            running = false;
+        } finally {
+            openLock.writeLock().unlock();
+        }
+        journaler.shutdown();
+        applier.shutdown();
+        if (!journaler.awaitTermination(10, TimeUnit.SECONDS) || !applier.awaitTermination(10, TimeUnit.SECONDS)) {
+            journaler.shutdownNow();
+            applier.shutdownNow();
+        }
+        journalLock.lock();
+        try {
+            segment.close();
+        } catch (IOException ignored) {
+            // Everything journaled was already forced to disk, so there is nothing left to lose.
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * This hands a user's watches to the queue and waits until they are journaled.
+     *
+     * @return true if the watches were journaled, or false if the queue is off, closed, or full, in which case the
+     * caller must write them itself.
+     * @throws SQLException if the watches could not be journaled.
+     */
+    static boolean submit(int userId, int[] movieIds, int[] startMinutes, int[] endMinutes) throws SQLException {
+        if (!running) {
+            return false;
+        }
+        Submission submission = new Submission(userId, movieIds, startMinutes, endMinutes, System.currentTimeMillis(),
+                System.nanoTime(), new CompletableFuture<>());
+        openLock.readLock().lock();
+        try {
+            if (!running || !submissions.offer(submission)) {
+                bypassed.addAndGet(movieIds.length);
+                return false;
+            }
+        } finally {
+            openLock.readLock().unlock();
+        }
+        submitted.addAndGet(movieIds.length);
+        maxBacklog.accumulateAndGet(backlog.addAndGet(movieIds.length), Math::max);
+        try {
+            submission.journaled().get();
+            return true;
+        } catch (ExecutionException e) {
+            throw new SQLException("The watch could not be journaled.", e.getCause());
+        } catch (InterruptedException e) {
+            // The watch is still journaled and written, so only the wait is cut short.
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    /**
+     * This returns the queue metrics: how many watches were taken, written, and written directly instead, how long
+     * users waited for the journal and how far behind the database fell, and the largest backlog of unwritten watches.
+     *
+     * @return the current write-behind stats.
+     */
+    public static String stats() {
+        long acked = Math.max(1, acks.get());
+        long done = Math.max(1, applied.get());
+        return String.format("submitted=%d written=%d replayed=%d torn=%d bypassed=%d rejected=%d backlog=%d " +
+                        "maxBacklog=%d fsyncs=%d rotateFailures=%d retries=%d avgAck=%.2fms maxAck=%.2fms " +
+                        "avgLag=%.2fms maxLag=%.2fms",
+                submitted.get(), written.get(), replayed.get(), torn.get(), bypassed.get(), rejected.get(),
+                backlog.get(), maxBacklog.get(), fsyncs.get(), rotateFailures.get(), retries.get(),
+                totalAckNanos.get() / 1e6 / acked, maxAckNanos.get() / 1e6, totalLagNanos.get() / 1e6 / done,
+                maxLagNanos.get() / 1e6);
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * This drains the queue into the journal for as long as the queue is open, and then until it is empty. Everything
+     * drained at once is appended with one write and one fsync, so the more users are waiting, the fewer fsyncs each
+     * of them pays for.
+     */
+    private static void journalLoop() {
+        List<Submission> drained = new ArrayList<>();
+        try {
+            while (running || !submissions.isEmpty()) {
+                Submission first = submissions.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                drained.add(first);
+                submissions.drainTo(drained, BATCH_SIZE - 1);
+                Batch batch;
+                try {
+                    batch = append(drained);
+                } catch (IOException e) {
+                    for (Submission submission : drained) {
+                        submission.journaled().completeExceptionally(e);
+                    }
+                    drained.clear();
+                    continue;
+                }
+                long now = System.nanoTime();
+                for (Submission submission : drained) {
+                    long ackNanos = now - submission.submittedNanos();
+                    totalAckNanos.addAndGet(ackNanos);
+                    acks.incrementAndGet();
+                    maxAckNanos.accumulateAndGet(ackNanos, Math::max);
+                    submission.journaled().complete(null);
+                }
+                journaled.put(batch);
+                drained = new ArrayList<>();
+            }
+        } catch (InterruptedException e) {
+            // Closing timed out; whatever was journaled is written at the next start.
+        }
+    }
+
+    /**
+     * This writes journaled batches to the database in order until the journal thread is done.
+     */
+    private static void applyLoop() {
+        try {
+            while (!journaler.isTerminated() || !journaled.isEmpty()) {
+                Batch batch = journaled.poll(100, TimeUnit.MILLISECONDS);
+                if (batch == null) {
+                    continue;
+                }
+                apply(batch.watches(), false, written);
+                backlog.addAndGet(-batch.watches().seqs().length);
+                long now = System.nanoTime();
+                for (Submission submission : batch.submissions()) {
+                    long lagNanos = now - submission.submittedNanos();
+                    totalLagNanos.addAndGet(lagNanos);
+                    applied.incrementAndGet();
+                    maxLagNanos.accumulateAndGet(lagNanos, Math::max);
+                }
+                deleteSegmentsThrough(batch.lastSeq());
+            }
+        } catch (InterruptedException e) {
+            // Closing timed out; whatever was journaled is written at the next start.
+        }
+    }
+
+    /**
+     * This appends submissions to the current journal segment, one line per watch ending in a checksum of the line,
+     * and forces them to disk. A segment that has grown too large is replaced first, so once the watches are on disk
+     * nothing else can fail, and an exception always means they were not journaled.
+     */
+    private static Batch append(List<Submission> drained) throws IOException {
+        journalLock.lock();
+        try {
+            if (segment.size() > SEGMENT_BYTES) {
+                rotate();
+            }
+            StringBuilder lines = new StringBuilder();
+            List<long[]> rows = new ArrayList<>();
+            long seq = nextSeq;
+            for (Submission submission : drained) {
+                for (int i = 0; i < submission.movieIds().length; i++) {
+                    long[] row = {seq++, submission.userId(), submission.movieIds()[i], submission.startMinutes()[i],
+                            submission.endMinutes()[i], submission.madeAtMillis()};
+                    rows.add(row);
+                    String line = row[0] + " " + row[1] + " " + row[2] + " " + row[3] + " " + row[4] + " " + row[5];
+                    lines.append(line).append(' ').append(Long.toHexString(checksum(line))).append('\n');
+                }
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.US_ASCII));
+            long position = segment.size();
+            try {
+                while (bytes.hasRemaining()) {
+                    segment.write(bytes);
+                }
+                segment.force(false);
+            } catch (IOException e) {
+                // Cut off whatever made it out, so a restart does not write watches their users were told had failed.
+                segment.truncate(position);
+                throw e;
+            }
+            fsyncs.incrementAndGet();
+            nextSeq = seq;
+            return new Batch(List.copyOf(drained), Watches.of(rows), seq - 1);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * This closes the current segment and continues in a new one. If the new segment cannot be opened, the current one
+     * stays open and keeps growing, and the next append tries again.
+     */
+    private static void rotate() {
+        FileChannel next;
+        try {
+            next = openSegment();
+        } catch (IOException e) {
+            rotateFailures.incrementAndGet();
+            return;
+        }
+        try {
+            segment.close();
+        } catch (IOException ignored) {
+            // Everything in it was already forced to disk.
+        }
+        segment = next;
+    }
+
+    /**
+     * This opens a new journal segment, named by the sequence number of the first watch it will hold.
+     *
+     * @return the segment, open for appending.
+     */
+    private static FileChannel openSegment() throws IOException {
+        Path path = JOURNAL.resolve(nextSeq + ".log");
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        segments.put(nextSeq, path);
+        return channel;
+    }
+
+    /**
+     * This deletes every closed segment whose watches have all been written, which is each segment followed by one
+     * that starts at or before the next unwritten watch.
+     */
+    private static void deleteSegmentsThrough(long appliedSeq) {
+        journalLock.lock();
+        try {
+            while (segments.size() > 1 && segments.higherKey(segments.firstKey()) <= appliedSeq + 1) {
+                Files.deleteIfExists(segments.pollFirstEntry().getValue());
+            }
+        } catch (IOException ignored) {
+            // A segment left behind is only read again at startup, where its watches are skipped as already written.
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    /**
+     * This writes watches and moves the checkpoint to the last of them in one transaction, retrying until the
+     * database takes them. If a batch breaks a constraint, such as a watch of a movie deleted since, its watches are
+     * written one at a time and the ones the database refuses are skipped.
+     *
+     * @param one     true if the watches are already being written one at a time.
+     * @param counter The count to add the written watches to.
+     */
+    private static void apply(Watches watches, boolean one, AtomicLong counter) throws InterruptedException {
+        long backoff = 100;
+        while (true) {
+            try (Connection con = InitConnection.getCon()) {
+                boolean autoCommit = con.getAutoCommit();
+                con.setAutoCommit(false);
+                try {
+                    long now = System.currentTimeMillis();
+                    long[] delays = new long[watches.madeAtMillis().length];
+                    for (int i = 0; i < delays.length; i++) {
+                        delays[i] = Math.max(0, now - watches.madeAtMillis()[i]);
+                    }
+                    List<WatchHistory.Watched> watched = WatchHistory.write(con, watches.userIds(), watches.movieIds(),
+                            watches.startMinutes(), watches.endMinutes(), delays);
+                    checkpoint(con, watches.seqs()[watches.seqs().length - 1]);
+                    con.commit();
+                    WatchHistory.committed(watched);
+                    counter.addAndGet(delays.length);
+                    return;
+                } catch (SQLException e) {
+                    con.rollback();
+                    if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+                        throw e;
+                    }
+                    if (one) {
+                        checkpoint(con, watches.seqs()[0]);
+                        con.commit();
+                        rejected.incrementAndGet();
+                        return;
+                    }
+                } finally {
+                    con.setAutoCommit(autoCommit);
+                }
+            } catch (SQLException e) {
+                // The database is unreachable or busy, so wait and try the same watches again.
+                retries.incrementAndGet();
+                Thread.sleep(backoff);
+                backoff = Math.min(MAX_RETRY_MILLIS, backoff * 2);
+                continue;
+            }
+            for (int i = 0; i < watches.seqs().length; i++) {
+                apply(watches.slice(i, i + 1), true, counter);
+            }
+            return;
+        }
+    }
+
+    private static void checkpoint(Connection con, long seq) throws SQLException {
+        try (PreparedStatement checkpointStmt = con.prepareStatement("INSERT INTO watch_journal(name, applied_seq) " +
+                "VALUES (?, ?) ON CONFLICT (name) DO UPDATE SET applied_seq = EXCLUDED.applied_seq")) {
+            checkpointStmt.setString(1, JOURNAL.getFileName().toString());
+            checkpointStmt.setLong(2, seq);
+            checkpointStmt.executeUpdate();
+        }
+    }
+
+    /**
+     * This writes every watch in the journal past its checkpoint, in batches, and then deletes the journal's segments.
+     * A line is only replayed if it ends in a newline and its checksum matches. Anything else was cut short or garbled
+     * by a crash mid-write, so it was never acknowledged and is ignored.
+     *
+     * @return the sequence number of the last watch journaled, which the next watch follows.
+     */
+    private static long replay() throws IOException, SQLException {
+        long appliedSeq = 0;
+        try (Connection con = InitConnection.getCon();
+             PreparedStatement checkpointStmt = con.prepareStatement(
+                     "SELECT applied_seq FROM watch_journal WHERE name = ?")) {
+            checkpointStmt.setString(1, JOURNAL.getFileName().toString());
+            ResultSet checkpointSet = checkpointStmt.executeQuery();
+            if (checkpointSet.next()) {
+                appliedSeq = checkpointSet.getLong("applied_seq");
+            }
+        }
+        TreeMap<Long, Path> found = new TreeMap<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(JOURNAL, "*.log")) {
+            for (Path log : logs) {
+                String name = log.getFileName().toString();
+                found.put(Long.parseLong(name.substring(0, name.length() - ".log".length())), log);
+            }
+        }
+        List<long[]> rows = new ArrayList<>();
+        long lastSeq = appliedSeq;
+        for (Path log : found.values()) {
+            byte[] bytes = Files.readAllBytes(log);
+            int start = 0;
+            for (int end = 0; end < bytes.length; end++) {
+                if (bytes[end] != '\n') {
+                    continue;
+                }
+                long[] row = parse(new String(bytes, start, end - start, StandardCharsets.US_ASCII));
+                start = end + 1;
+                if (row == null) {
+                    torn.incrementAndGet();
+                    continue;
+                }
+                lastSeq = Math.max(lastSeq, row[0]);
+                if (row[0] > appliedSeq) {
+                    rows.add(row);
+                }
+            }
+            if (start < bytes.length) {
+                // The last line never got its newline, so the write it belonged to never finished.
+                torn.incrementAndGet();
+            }
+        }
+        try {
+            for (int from = 0; from < rows.size(); from += BATCH_SIZE) {
+                Watches watches = Watches.of(rows.subList(from, Math.min(rows.size(), from + BATCH_SIZE)));
+                apply(watches, false, replayed);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while replaying the watch journal.", e);
+        }
+        for (Path log : found.values()) {
+            Files.delete(log);
+        }
+        return lastSeq;
+    }
+
+    /**
+     * This is a helper method that reads one journal line back into its fields.
+     *
+     * @return the line's fields, or null if it is garbled or its checksum does not match.
+     */
+    private static long[] parse(String line) {
+        int split = line.lastIndexOf(' ');
+        if (split < 0) {
+            return null;
+        }
+        String body = line.substring(0, split);
+        String[] fields = body.split(" ");
+        if (fields.length != 6) {
+            return null;
+        }
+        try {
+            if (Long.parseLong(line.substring(split + 1), 16) != checksum(body)) {
+                return null;
+            }
+            long[] row = new long[6];
+            for (int i = 0; i < 6; i++) {
+                row[i] = Long.parseLong(fields[i]);
+            }
+            return row;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long checksum(String line) {
+        CRC32 crc = new CRC32();
+        crc.update(line.getBytes(StandardCharsets.US_ASCII));
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,43 @@
+-- Per-user feed of how many times the people each user follows have watched each movie, so the Following list reads
+-- the top of one user's feed instead of joining watches with follows. Every watch is added to the feed of each of the
+-- watcher's followers as it is recorded (see WatchHistory.record), and following or unfollowing someone adds or removes
+-- their whole watch history (see FollowingFeed). Users with more followers than the fan-out cap are listed in
+-- feed_celebrity instead; their watches are left out of the feeds and counted when the Following list is read. Every
+-- statement is safe to run again.
+
+CREATE TABLE IF NOT EXISTS following_feed (
+    uid         int    NOT NULL REFERENCES users ON DELETE CASCADE,
+    mid         int    NOT NULL REFERENCES movie ON DELETE CASCADE,
+    watch_count bigint NOT NULL,
+    PRIMARY KEY (uid, mid)
+);
+
+CREATE INDEX IF NOT EXISTS following_feed_top ON following_feed (uid, watch_count DESC);
+
+CREATE TABLE IF NOT EXISTS feed_celebrity (
+    uid int PRIMARY KEY REFERENCES users ON DELETE CASCADE
+);
+
+-- Fill the feeds the first time they are created; after that they are kept current as watches and follows change.
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM following_feed) THEN
+        INSERT INTO following_feed (uid, mid, watch_count)
+        SELECT f.followeruid, w.mid, COUNT(*) FROM follows f, watches w
+        WHERE w.uid = f.followeduid GROUP BY f.followeruid, w.mid;
+    END IF;
+END $$;
+
+-- Add (direction 1) or remove (direction -1) everything one user has watched to or from another user's feed.
+CREATE OR REPLACE FUNCTION following_feed_apply(follower_id int, followed_id int, direction int) RETURNS void AS $$
+    INSERT INTO following_feed (uid, mid, watch_count)
+    SELECT follower_id, mid, direction * COUNT(*) FROM watches WHERE uid = followed_id GROUP BY mid
+    ON CONFLICT (uid, mid) DO UPDATE SET watch_count = following_feed.watch_count + EXCLUDED.watch_count;
+    DELETE FROM following_feed WHERE uid = follower_id AND watch_count <= 0;
+$$ LANGUAGE sql;
+
+-- Stop fanning out one user's watches: take them back out of every follower's feed and mark the user as a celebrity.
+CREATE OR REPLACE FUNCTION following_feed_promote(followed_id int) RETURNS void AS $$
+    SELECT following_feed_apply(followeruid, followed_id, -1) FROM follows WHERE followeduid = followed_id;
+    INSERT INTO feed_celebrity (uid) VALUES (followed_id) ON CONFLICT DO NOTHING;
+$$ LANGUAGE sql;
@@ -0,0 +1,139 @@
+-- Denormalized summary of each movie, read by every search instead of aggregating releasedon, genreof, produces,
+-- rates, and watches on each query. The triggers below keep it current as those tables change, so it never needs to
+-- be rebuilt; the rating and watch counts are the exception, and are updated by the application alongside each rating
+-- and watch (see rating_counts.sql and watch_days.sql). Every statement is safe to run again, though the script only
+-- runs again at the first startup after it changes (see SchemaMigrations).
+
+CREATE TABLE IF NOT EXISTS movie_summary (
+    mid            int PRIMARY KEY REFERENCES movie ON DELETE CASCADE,
+    first_release  timestamp,                  -- earliest release on any platform
+    primary_genre  varchar(100),               -- alphabetically first genre
+    primary_studio varchar(200),               -- alphabetically first studio
+    rating_sum     bigint NOT NULL DEFAULT 0,
+    rating_count   int    NOT NULL DEFAULT 0,
+    watch_count    bigint NOT NULL DEFAULT 0
+);
+
+CREATE INDEX IF NOT EXISTS movie_summary_first_release ON movie_summary (first_release);
+
+-- Fill the summary the first time it is created; after that the triggers keep it current.
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM movie_summary) THEN
+        INSERT INTO movie_summary (mid, first_release, primary_genre, primary_studio, rating_sum, rating_count,
+                                   watch_count)
+        SELECT m.mid, r.first_release, g.primary_genre, s.primary_studio, COALESCE(rt.rating_sum, 0),
+               COALESCE(rt.rating_count, 0), COALESCE(w.watch_count, 0)
+        FROM movie m
+        LEFT JOIN (SELECT mid, MIN(releasedate) AS first_release FROM releasedon GROUP BY mid) r ON r.mid = m.mid
+        LEFT JOIN (SELECT o.mid, MIN(g.name) AS primary_genre FROM genreof o, genre g
+                   WHERE o.gid = g.gid GROUP BY o.mid) g ON g.mid = m.mid
+        LEFT JOIN (SELECT p.mid, MIN(s.name) AS primary_studio FROM produces p, studio s
+                   WHERE p.sid = s.sid GROUP BY p.mid) s ON s.mid = m.mid
+        LEFT JOIN (SELECT mid, SUM(rating) AS rating_sum, COUNT(*) AS rating_count FROM rates GROUP BY mid) rt
+               ON rt.mid = m.mid
+        LEFT JOIN (SELECT mid, COUNT(*) AS watch_count FROM watches GROUP BY mid) w ON w.mid = m.mid;
+    END IF;
+END $$;
+
+-- Recompute one column of one movie from scratch, for deletes and updates that may remove its current value.
+CREATE OR REPLACE FUNCTION movie_summary_refresh_release(movie_id int) RETURNS void AS $$
+    UPDATE movie_summary SET first_release = (SELECT MIN(releasedate) FROM releasedon WHERE mid = movie_id)
+    WHERE mid = movie_id;
+$$ LANGUAGE sql;
+
+CREATE OR REPLACE FUNCTION movie_summary_refresh_genre(movie_id int) RETURNS void AS $$
+    UPDATE movie_summary SET primary_genre = (SELECT MIN(g.name) FROM genreof o, genre g
+                                              WHERE o.mid = movie_id AND o.gid = g.gid)
+    WHERE mid = movie_id;
+$$ LANGUAGE sql;
+
+CREATE OR REPLACE FUNCTION movie_summary_refresh_studio(movie_id int) RETURNS void AS $$
+    UPDATE movie_summary SET primary_studio = (SELECT MIN(s.name) FROM produces p, studio s
+                                               WHERE p.mid = movie_id AND p.sid = s.sid)
+    WHERE mid = movie_id;
+$$ LANGUAGE sql;
+
+CREATE OR REPLACE FUNCTION movie_summary_movie_changed() RETURNS trigger AS $$
+BEGIN
+    INSERT INTO movie_summary (mid) VALUES (NEW.mid) ON CONFLICT DO NOTHING;
+    RETURN NULL;
+END $$ LANGUAGE plpgsql;
+
+-- Inserts only ever lower the minimum, so they are applied with LEAST; anything else recomputes the movie.
+CREATE OR REPLACE FUNCTION movie_summary_releasedon_changed() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        UPDATE movie_summary SET first_release = LEAST(first_release, NEW.releasedate) WHERE mid = NEW.mid;
+    ELSE
+        PERFORM movie_summary_refresh_release(OLD.mid);
+        IF TG_OP = 'UPDATE' AND NEW.mid <> OLD.mid THEN
+            PERFORM movie_summary_refresh_release(NEW.mid);
+        END IF;
+    END IF;
+    RETURN NULL;
+END $$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION movie_summary_genreof_changed() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        UPDATE movie_summary SET primary_genre = LEAST(primary_genre, (SELECT name FROM genre WHERE gid = NEW.gid))
+        WHERE mid = NEW.mid;
+    ELSE
+        PERFORM movie_summary_refresh_genre(OLD.mid);
+        IF TG_OP = 'UPDATE' AND NEW.mid <> OLD.mid THEN
+            PERFORM movie_summary_refresh_genre(NEW.mid);
+        END IF;
+    END IF;
+    RETURN NULL;
+END $$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION movie_summary_genre_renamed() RETURNS trigger AS $$
+BEGIN
+    PERFORM movie_summary_refresh_genre(mid) FROM genreof WHERE gid = NEW.gid;
+    RETURN NULL;
+END $$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION movie_summary_produces_changed() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        UPDATE movie_summary SET primary_studio = LEAST(primary_studio, (SELECT name FROM studio WHERE sid = NEW.sid))
+        WHERE mid = NEW.mid;
+    ELSE
+        PERFORM movie_summary_refresh_studio(OLD.mid);
+        IF TG_OP = 'UPDATE' AND NEW.mid <> OLD.mid THEN
+            PERFORM movie_summary_refresh_studio(NEW.mid);
+        END IF;
+    END IF;
+    RETURN NULL;
+END $$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION movie_summary_studio_renamed() RETURNS trigger AS $$
+BEGIN
+    PERFORM movie_summary_refresh_studio(mid) FROM produces WHERE sid = NEW.sid;
+    RETURN NULL;
+END $$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS movie_summary_movie ON movie;
+CREATE TRIGGER movie_summary_movie AFTER INSERT ON movie
+    FOR EACH ROW EXECUTE FUNCTION movie_summary_movie_changed();
+
+DROP TRIGGER IF EXISTS movie_summary_releasedon ON releasedon;
+CREATE TRIGGER movie_summary_releasedon AFTER INSERT OR UPDATE OR DELETE ON releasedon
+    FOR EACH ROW EXECUTE FUNCTION movie_summary_releasedon_changed();
+
+DROP TRIGGER IF EXISTS movie_summary_genreof ON genreof;
+CREATE TRIGGER movie_summary_genreof AFTER INSERT OR UPDATE OR DELETE ON genreof
+    FOR EACH ROW EXECUTE FUNCTION movie_summary_genreof_changed();
+
+DROP TRIGGER IF EXISTS movie_summary_genre ON genre;
+CREATE TRIGGER movie_summary_genre AFTER UPDATE OF name ON genre
+    FOR EACH ROW EXECUTE FUNCTION movie_summary_genre_renamed();
+
+DROP TRIGGER IF EXISTS movie_summary_produces ON produces;
+CREATE TRIGGER movie_summary_produces AFTER INSERT OR UPDATE OR DELETE ON produces
+    FOR EACH ROW EXECUTE FUNCTION movie_summary_produces_changed();
+
+DROP TRIGGER IF EXISTS movie_summary_studio ON studio;
+CREATE TRIGGER movie_summary_studio AFTER UPDATE OF name ON studio
+    FOR EACH ROW EXECUTE FUNCTION movie_summary_studio_renamed();
@@ -0,0 +1,17 @@
+-- Each user's most similar users, as of the last run of the neighbours job (see Neighbours). Every run is numbered by
+-- its generation, and writes every user's neighbours stamped with it in one transaction, so recommendations always
+-- read one whole run. Users who are new since the last run have no row and have their similar users found live. Every
+-- statement is safe to run again.
+
+CREATE TABLE IF NOT EXISTS neighbour_runs (
+    generation  bigint      PRIMARY KEY,
+    finished    timestamptz NOT NULL,
+    users       int         NOT NULL,
+    compute_ms  bigint      NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS neighbours (
+    uid          int    PRIMARY KEY REFERENCES users ON DELETE CASCADE,
+    generation   bigint NOT NULL,
+    similar_uids int[]  NOT NULL
+);
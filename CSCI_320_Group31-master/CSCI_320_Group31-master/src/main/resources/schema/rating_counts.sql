@@ -0,0 +1,73 @@
+-- Per-movie histogram of ratings, so a movie's rating distribution is read from one row instead of grouping rates.
+-- Element n of rating_counts is the number of n-star ratings. The application writes ratings only through
+-- MoviePage.RateMovie, which updates rating_sum, rating_count, and rating_counts in the same statement as the rating
+-- itself, so the trigger that used to maintain the sum and count on every write is removed. The application never
+-- deletes a rating, so deletes, including TRUNCATE, are still taken off the totals by the triggers below. Ratings
+-- inserted or changed any other way, such as by a bulk load or a manual fix, are not counted until
+-- movie_summary_reconcile_ratings() is run, e.g. by java -cp app.jar SchemaMigrations --reconcile. Every statement is
+-- safe to run again.
+
+DROP TRIGGER IF EXISTS movie_summary_rates ON rates;
+DROP FUNCTION IF EXISTS movie_summary_rates_changed();
+
+-- Add and fill the histogram the first time; after that the application keeps it current.
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM information_schema.columns
+                   WHERE table_name = 'movie_summary' AND column_name = 'rating_counts') THEN
+        ALTER TABLE movie_summary ADD COLUMN rating_counts int[] NOT NULL DEFAULT '{0,0,0,0,0}';
+        UPDATE movie_summary ms
+        SET rating_sum = r.rating_sum, rating_count = r.rating_count, rating_counts = r.rating_counts
+        FROM (SELECT mid, SUM(rating) AS rating_sum, COUNT(*) AS rating_count,
+                     ARRAY[COUNT(*) FILTER (WHERE rating = 1), COUNT(*) FILTER (WHERE rating = 2),
+                           COUNT(*) FILTER (WHERE rating = 3), COUNT(*) FILTER (WHERE rating = 4),
+                           COUNT(*) FILTER (WHERE rating = 5)]::int[] AS rating_counts
+              FROM rates GROUP BY mid) r
+        WHERE ms.mid = r.mid;
+    END IF;
+END $$;
+
+CREATE OR REPLACE FUNCTION movie_summary_rating_deleted() RETURNS trigger AS $$
+BEGIN
+    UPDATE movie_summary SET rating_sum = rating_sum - OLD.rating, rating_count = rating_count - 1,
+                             rating_counts[OLD.rating] = rating_counts[OLD.rating] - 1
+    WHERE mid = OLD.mid;
+    RETURN NULL;
+END $$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION movie_summary_ratings_truncated() RETURNS trigger AS $$
+BEGIN
+    UPDATE movie_summary SET rating_sum = 0, rating_count = 0, rating_counts = '{0,0,0,0,0}' WHERE rating_count <> 0;
+    RETURN NULL;
+END $$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS movie_summary_rating_deleted ON rates;
+CREATE TRIGGER movie_summary_rating_deleted AFTER DELETE ON rates
+    FOR EACH ROW EXECUTE FUNCTION movie_summary_rating_deleted();
+
+DROP TRIGGER IF EXISTS movie_summary_ratings_truncated ON rates;
+CREATE TRIGGER movie_summary_ratings_truncated AFTER TRUNCATE ON rates
+    FOR EACH STATEMENT EXECUTE FUNCTION movie_summary_ratings_truncated();
+
+-- Recompute every movie's rating totals from rates, and return how many movies were wrong. Rates is locked against
+-- writes while it runs, so ratings made at the same time wait rather than being lost.
+CREATE OR REPLACE FUNCTION movie_summary_reconcile_ratings() RETURNS int AS $$
+DECLARE
+    fixed int;
+BEGIN
+    LOCK TABLE rates IN SHARE MODE;
+    UPDATE movie_summary ms
+    SET rating_sum = COALESCE(r.rating_sum, 0), rating_count = COALESCE(r.rating_count, 0),
+        rating_counts = COALESCE(r.rating_counts, '{0,0,0,0,0}')
+    FROM movie_summary m
+    LEFT JOIN (SELECT mid, SUM(rating) AS rating_sum, COUNT(*) AS rating_count,
+                      ARRAY[COUNT(*) FILTER (WHERE rating = 1), COUNT(*) FILTER (WHERE rating = 2),
+                            COUNT(*) FILTER (WHERE rating = 3), COUNT(*) FILTER (WHERE rating = 4),
+                            COUNT(*) FILTER (WHERE rating = 5)]::int[] AS rating_counts
+               FROM rates GROUP BY mid) r ON r.mid = m.mid
+    WHERE ms.mid = m.mid
+      AND (ms.rating_sum, ms.rating_count, ms.rating_counts) IS DISTINCT FROM
+          (COALESCE(r.rating_sum, 0), COALESCE(r.rating_count, 0)::int, COALESCE(r.rating_counts, '{0,0,0,0,0}'));
+    GET DIAGNOSTICS fixed = ROW_COUNT;
+    RETURN fixed;
+END $$ LANGUAGE plpgsql;
@@ -0,0 +1,14 @@
+-- Indexes behind the orders movie search results are paged in (see MovieSearch.SortOrder). Each order sorts by one
+-- column and then the movie id, so the page after a given row is found by scanning one of these indexes forwards or
+-- backwards from that row and stopping once the page is full. Every statement is safe to run again.
+
+CREATE INDEX IF NOT EXISTS movie_title_order ON movie (title, mid);
+
+CREATE INDEX IF NOT EXISTS movie_summary_release_order ON movie_summary (first_release, mid);
+
+CREATE INDEX IF NOT EXISTS movie_summary_genre_order ON movie_summary (primary_genre, mid);
+
+CREATE INDEX IF NOT EXISTS movie_summary_studio_order ON movie_summary (primary_studio, mid);
+
+-- A genre search joins the genre it names, so it relies on genre names being unique to list each movie once.
+CREATE UNIQUE INDEX IF NOT EXISTS genre_name ON genre (name);
@@ -0,0 +1,79 @@
+-- Daily rollup of watches per movie, so trending sums at most one row per movie per day of its window instead of
+-- counting every watch in it. The application writes watches only through WatchHistory.record, which adds to this
+-- table and to movie_summary.watch_count in the same statement as the watch itself, so the trigger that used to
+-- maintain the watch count on every write is removed. The application never deletes a watch, so deletes, including
+-- TRUNCATE, are still taken off both by the triggers below. Watches inserted or changed any other way, such as by a
+-- bulk load, are not counted until movie_summary_reconcile_watches() is run, e.g. by
+-- java -cp app.jar SchemaMigrations --reconcile. Every statement is safe to run again.
+
+DROP TRIGGER IF EXISTS movie_summary_watches ON watches;
+DROP FUNCTION IF EXISTS movie_summary_watches_changed();
+
+-- Keyed by day first, so a trending window is one range scan of the primary key.
+CREATE TABLE IF NOT EXISTS watch_day (
+    day         date   NOT NULL,
+    mid         int    NOT NULL REFERENCES movie ON DELETE CASCADE,
+    watch_count bigint NOT NULL,
+    PRIMARY KEY (day, mid)
+);
+
+-- Fill the rollup from the existing watches the first time it is created; after that it is kept current as watches are
+-- recorded.
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM watch_day) THEN
+        INSERT INTO watch_day (day, mid, watch_count)
+        SELECT starttime::date, mid, COUNT(*) FROM watches GROUP BY starttime::date, mid;
+    END IF;
+END $$;
+
+CREATE OR REPLACE FUNCTION movie_summary_watch_deleted() RETURNS trigger AS $$
+BEGIN
+    UPDATE movie_summary SET watch_count = watch_count - 1 WHERE mid = OLD.mid;
+    UPDATE watch_day SET watch_count = watch_count - 1 WHERE day = OLD.starttime::date AND mid = OLD.mid;
+    DELETE FROM watch_day WHERE day = OLD.starttime::date AND mid = OLD.mid AND watch_count <= 0;
+    RETURN NULL;
+END $$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION movie_summary_watches_truncated() RETURNS trigger AS $$
+BEGIN
+    UPDATE movie_summary SET watch_count = 0 WHERE watch_count <> 0;
+    DELETE FROM watch_day;
+    RETURN NULL;
+END $$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS movie_summary_watch_deleted ON watches;
+CREATE TRIGGER movie_summary_watch_deleted AFTER DELETE ON watches
+    FOR EACH ROW EXECUTE FUNCTION movie_summary_watch_deleted();
+
+DROP TRIGGER IF EXISTS movie_summary_watches_truncated ON watches;
+CREATE TRIGGER movie_summary_watches_truncated AFTER TRUNCATE ON watches
+    FOR EACH STATEMENT EXECUTE FUNCTION movie_summary_watches_truncated();
+
+-- Recompute every movie's watch count and the whole rollup from watches, and return how many rows were wrong. Watches
+-- is locked against writes while it runs, so watches made at the same time wait rather than being lost.
+CREATE OR REPLACE FUNCTION movie_summary_reconcile_watches() RETURNS int AS $$
+DECLARE
+    fixed int;
+    total int := 0;
+BEGIN
+    LOCK TABLE watches IN SHARE MODE;
+    UPDATE movie_summary ms SET watch_count = COALESCE(w.watch_count, 0)
+    FROM movie_summary m
+    LEFT JOIN (SELECT mid, COUNT(*) AS watch_count FROM watches GROUP BY mid) w ON w.mid = m.mid
+    WHERE ms.mid = m.mid AND ms.watch_count <> COALESCE(w.watch_count, 0);
+    GET DIAGNOSTICS fixed = ROW_COUNT;
+    total := total + fixed;
+
+    INSERT INTO watch_day (day, mid, watch_count)
+    SELECT starttime::date, mid, COUNT(*) FROM watches GROUP BY starttime::date, mid
+    ON CONFLICT (day, mid) DO UPDATE SET watch_count = EXCLUDED.watch_count
+    WHERE watch_day.watch_count <> EXCLUDED.watch_count;
+    GET DIAGNOSTICS fixed = ROW_COUNT;
+    total := total + fixed;
+
+    DELETE FROM watch_day d WHERE NOT EXISTS (SELECT 1 FROM watches w WHERE w.mid = d.mid
+                                              AND w.starttime >= d.day AND w.starttime < d.day + 1);
+    GET DIAGNOSTICS fixed = ROW_COUNT;
+    RETURN total + fixed;
+END $$ LANGUAGE plpgsql;
@@ -0,0 +1,8 @@
+-- How far each write-behind journal has been applied. WatchQueue numbers every watch it journals and moves this
+-- checkpoint forward in the same transaction that writes a batch of them, so replaying a journal after a crash skips
+-- the watches already written and applies each of the rest exactly once. Every statement is safe to run again.
+
+CREATE TABLE IF NOT EXISTS watch_journal (
+    name        text   PRIMARY KEY,
+    applied_seq bigint NOT NULL
+);